@@ -0,0 +1,261 @@
+package ds.hdfs;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Compares ways for a data node to read a block file, send it to a socket and write it, for several block sizes.
+// Scores are operations (whole blocks) per second, the "bytes" counter is the same in bytes per second, and -prof gc
+// (or main) adds the bytes allocated per operation. The block files are read from the page cache, so this compares
+// the cost of the copies and allocations rather than of the disks. Writes are not forced to disk either, like writes
+// with the NONE durability. The files go to the directory in the benchmark.dir system property, or to the temp
+// directory, so put it on the disk the data nodes use:
+// java -Dbenchmark.dir=/data/bench -jar target/benchmarks.jar BlockIoBenchmark -prof gc
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-XX:MaxDirectMemorySize=1g")
+@State(Scope.Benchmark)
+public class BlockIoBenchmark {
+    // Size of the pooled direct buffers, the same the data node's block writer uses
+    protected static final int BUFFER_SIZE = 1024 * 1024;
+    protected static final int PAGE_SIZE = 4096;
+
+    @Param({"65536", "1048576", "16777216", "67108864"})
+    public int blockSize;
+
+    protected Path directory;
+    protected Path blockFile;
+    protected byte[] blockContents;
+    protected DirectBufferPool bufferPool;
+    protected BlockWriter blockWriter;
+    protected ServerSocketChannel serverChannel;
+    protected Thread drainThread;
+    protected SocketChannel socketChannel;
+
+    // Bytes moved, reported by JMH per second next to the operations
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            this.bytes = 0;
+        }
+    }
+
+    // One output file per thread so writes don't contend on the same file
+    @State(Scope.Thread)
+    public static class Output {
+        protected Path file;
+
+        @Setup
+        public void setup(BlockIoBenchmark benchmark) throws IOException {
+            this.file = Files.createTempFile(benchmark.directory, "write", BlockStorage.BLOCK_SUFFIX);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(this.file);
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        String benchmarkDirectory = System.getProperty("benchmark.dir");
+        this.directory = benchmarkDirectory == null ? Files.createTempDirectory("block-io")
+                : Files.createTempDirectory(new File(benchmarkDirectory).toPath(), "block-io");
+        this.blockContents = new byte[this.blockSize];
+        new Random(1).nextBytes(this.blockContents);
+        this.blockFile = this.directory.resolve("block" + BlockStorage.BLOCK_SUFFIX);
+        Files.write(this.blockFile, this.blockContents);
+
+        this.bufferPool = new DirectBufferPool(BUFFER_SIZE, 4);
+        this.blockWriter = new BlockWriter(BlockWriter.Durability.NONE, BUFFER_SIZE, 4, 0);
+
+        // The receiving end just throws the bytes away, like a client that keeps up with the data node
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        this.drainThread = new Thread(this::drain, "Drain");
+        this.drainThread.setDaemon(true);
+        this.drainThread.start();
+        this.socketChannel = SocketChannel.open(this.serverChannel.getLocalAddress());
+    }
+
+    protected void drain(){
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try(SocketChannel channel = this.serverChannel.accept()){
+            while(channel.read(buffer) >= 0){
+                buffer.clear();
+            }
+        }catch(IOException e){
+            // Closed at tear down
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.socketChannel.close();
+        this.serverChannel.close();
+        this.blockWriter.close();
+        Files.deleteIfExists(this.blockFile);
+        Files.deleteIfExists(this.directory);
+    }
+
+    // Reads the whole block into a new array, what the data node did before reading through FileChannels
+    @Benchmark
+    public byte[] readAllBytes(Bytes bytes) throws IOException {
+        byte[] contents = Files.readAllBytes(this.blockFile);
+        bytes.bytes += contents.length;
+        return contents;
+    }
+
+    // Reads the whole block into a new heap buffer, what readBlockContents does. The JDK reads into a temporary
+    // direct buffer of the full size first and copies from it
+    @Benchmark
+    public ByteBuffer readHeapChannel(Bytes bytes) throws IOException {
+        try(FileChannel channel = FileChannel.open(this.blockFile, StandardOpenOption.READ)){
+            ByteBuffer contents = ByteBuffer.allocate((int) channel.size());
+            BlockCompressor.readFully(channel, contents, 0);
+            bytes.bytes += contents.position();
+            return contents;
+        }
+    }
+
+    // Reads the block through one pooled direct buffer at a time, which is all a data node needs when it passes the
+    // bytes straight on
+    @Benchmark
+    public void readDirectChannel(Bytes bytes, Blackhole blackhole) throws IOException {
+        ByteBuffer buffer = this.bufferPool.acquire();
+        try(FileChannel channel = FileChannel.open(this.blockFile, StandardOpenOption.READ)){
+            int read;
+            while((read = channel.read(buffer)) >= 0){
+                bytes.bytes += read;
+                blackhole.consume(buffer);
+                buffer.clear();
+            }
+        }finally{
+            this.bufferPool.release(buffer);
+        }
+    }
+
+    // Maps the block and touches every page of it, so the cost of setting up the mapping and faulting the pages in
+    // is counted, not only the mapping call
+    @Benchmark
+    public long readMapped(Bytes bytes) throws IOException {
+        try(FileChannel channel = FileChannel.open(this.blockFile, StandardOpenOption.READ)){
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            long sum = 0;
+            for(int position = 0; position < mapped.limit(); position += PAGE_SIZE){
+                sum += mapped.get(position);
+            }
+            bytes.bytes += mapped.limit();
+            return sum;
+        }
+    }
+
+    // Sends the block to a socket from the page cache without copying it into the JVM
+    @Benchmark
+    public void transferToSocket(Bytes bytes) throws IOException {
+        try(FileChannel channel = FileChannel.open(this.blockFile, StandardOpenOption.READ)){
+            long size = channel.size();
+            long position = 0;
+            while(position < size){
+                position += channel.transferTo(position, size - position, this.socketChannel);
+            }
+            bytes.bytes += size;
+        }
+    }
+
+    // The same through a pooled direct buffer, the baseline transferTo has to beat
+    @Benchmark
+    public void readDirectToSocket(Bytes bytes) throws IOException {
+        ByteBuffer buffer = this.bufferPool.acquire();
+        try(FileChannel channel = FileChannel.open(this.blockFile, StandardOpenOption.READ)){
+            while(channel.read(buffer) >= 0){
+                buffer.flip();
+                while(buffer.hasRemaining()){
+                    bytes.bytes += this.socketChannel.write(buffer);
+                }
+                buffer.clear();
+            }
+        }finally{
+            this.bufferPool.release(buffer);
+        }
+    }
+
+    @Benchmark
+    public void writeFilesWrite(Bytes bytes, Output output) throws IOException {
+        Files.write(output.file, this.blockContents);
+        bytes.bytes += this.blockContents.length;
+    }
+
+    // Writes a heap buffer directly, so the JDK copies it into a temporary direct buffer of the full block size
+    @Benchmark
+    public void writeHeapChannel(Bytes bytes, Output output) throws IOException {
+        try(FileChannel channel = FileChannel.open(output.file, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            ByteBuffer contents = ByteBuffer.wrap(this.blockContents);
+            while(contents.hasRemaining()){
+                bytes.bytes += channel.write(contents);
+            }
+        }
+    }
+
+    // The data node's write path, copying through pooled direct buffers
+    @Benchmark
+    public void writeBlockWriter(Bytes bytes, Output output) throws IOException {
+        this.blockWriter.write(output.file.toFile(), ByteBuffer.wrap(this.blockContents));
+        bytes.bytes += this.blockContents.length;
+    }
+
+    @Benchmark
+    public void writeMapped(Bytes bytes, Output output) throws IOException {
+        try(FileChannel channel = FileChannel.open(output.file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.blockContents.length);
+            mapped.put(this.blockContents);
+            bytes.bytes += this.blockContents.length;
+        }
+    }
+
+    // Runs the benchmarks of this class with the gc profiler, which adds the bytes allocated per operation
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(BlockIoBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,197 @@
+package ds.hdfs;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import proto.ProtoHDFS;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Time (and with -prof gc, bytes allocated) to encode and decode the protobuf messages of the hot paths: the block
+// read request and its response, a file handle with many pipelines as the name node returns it, and a block report.
+// Run it again after changing hdfs.proto to see what the change costs
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtoBenchmark {
+    protected static final int REPLICAS = 3;
+    // Size of a ranged read, one checksum chunk
+    protected static final int RANGE_SIZE = BlockChecksum.DEFAULT_BYTES_PER_CHECKSUM;
+    protected static final long BLOCK_LENGTH = 64000000;
+
+    // A read request and its response, the messages of every block transfer
+    @State(Scope.Benchmark)
+    public static class BlockMessages {
+        protected ProtoHDFS.Request request;
+        protected byte[] requestBytes;
+        protected ProtoHDFS.Response response;
+        protected byte[] responseBytes;
+        protected ByteString rangeContents;
+
+        @Setup
+        public void setup(){
+            ProtoHDFS.BlockMeta blockMeta = blockMeta("file", 0, 0, "data1");
+            this.request = readRequest(blockMeta, UUID.randomUUID().toString());
+            this.requestBytes = this.request.toByteArray();
+
+            byte[] range = new byte[RANGE_SIZE];
+            new Random(1).nextBytes(range);
+            this.rangeContents = ByteString.copyFrom(range);
+            ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
+            blockBuilder.setBlockMeta(blockMeta);
+            blockBuilder.setBlockContents(this.rangeContents);
+            ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
+            responseBuilder.setResponseId(this.request.getRequestId());
+            responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.SUCCESS);
+            responseBuilder.setBlock(blockBuilder.build());
+            responseBuilder.setErrorMessage("Block 0 replication 0 for file read success");
+            this.response = responseBuilder.buildPartial();
+            this.responseBytes = this.response.toByteArray();
+        }
+    }
+
+    // Messages that grow with the number of blocks of a file or a data node
+    @State(Scope.Benchmark)
+    public static class ListMessages {
+        @Param({"1", "100", "1000"})
+        public int blocks;
+
+        protected ProtoHDFS.FileHandle fileHandle;
+        protected byte[] fileHandleBytes;
+        protected ProtoHDFS.BlockReport blockReport;
+        protected byte[] blockReportBytes;
+
+        @Setup
+        public void setup(){
+            ProtoHDFS.FileHandle.Builder fileHandleBuilder = ProtoHDFS.FileHandle.newBuilder();
+            fileHandleBuilder.setFileName("/benchmark/file");
+            fileHandleBuilder.setFileSize(BLOCK_LENGTH * this.blocks);
+            fileHandleBuilder.setGeneration(42);
+            for(int i = 0; i < this.blocks; i++){
+                ProtoHDFS.Pipeline.Builder pipelineBuilder = ProtoHDFS.Pipeline.newBuilder();
+                pipelineBuilder.setPipelineNumber(i);
+                for(int j = 0; j < REPLICAS; j++){
+                    ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
+                    blockBuilder.setBlockMeta(blockMeta("/benchmark/file", i, j, "data" + j));
+                    pipelineBuilder.addBlocks(blockBuilder.build());
+                }
+                fileHandleBuilder.addPipelines(pipelineBuilder.build());
+            }
+            this.fileHandle = fileHandleBuilder.build();
+            this.fileHandleBytes = this.fileHandle.toByteArray();
+
+            // Block reports carry the stored block metas, checksums included
+            ProtoHDFS.BlockReport.Builder blockReportBuilder = ProtoHDFS.BlockReport.newBuilder();
+            Random random = new Random(1);
+            for(int i = 0; i < this.blocks; i++){
+                ProtoHDFS.BlockMeta.Builder blockMetaBuilder = blockMeta("/benchmark/file" + i, 0, 0, "data1")
+                        .toBuilder();
+                blockMetaBuilder.setBlockLength(BLOCK_LENGTH);
+                blockMetaBuilder.setBytesPerChecksum(BlockChecksum.DEFAULT_BYTES_PER_CHECKSUM);
+                for(long offset = 0; offset < BLOCK_LENGTH; offset += BlockChecksum.DEFAULT_BYTES_PER_CHECKSUM){
+                    blockMetaBuilder.addChecksums(random.nextInt());
+                }
+                ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
+                blockBuilder.setBlockMeta(blockMetaBuilder.build());
+                blockReportBuilder.addDataNodeBlocks(blockBuilder.build());
+            }
+            this.blockReport = blockReportBuilder.build();
+            this.blockReportBytes = this.blockReport.toByteArray();
+        }
+    }
+
+    protected static ProtoHDFS.BlockMeta blockMeta(String fileName, int blockNumber, int repNumber, String dataId){
+        ProtoHDFS.BlockMeta.Builder blockMetaBuilder = ProtoHDFS.BlockMeta.newBuilder();
+        blockMetaBuilder.setFileName(fileName);
+        blockMetaBuilder.setBlockNumber(blockNumber);
+        blockMetaBuilder.setRepNumber(repNumber);
+        blockMetaBuilder.setDataId(dataId);
+        return blockMetaBuilder.build();
+    }
+
+    // Built the way the client builds its ranged reads
+    protected static ProtoHDFS.Request readRequest(ProtoHDFS.BlockMeta blockMeta, String requestId){
+        ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
+        blockBuilder.setBlockMeta(blockMeta);
+        ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+        requestBuilder.setRequestId(requestId);
+        requestBuilder.setTraceId(requestId);
+        requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.READ);
+        requestBuilder.addBlock(blockBuilder.build());
+        requestBuilder.setOffset(RANGE_SIZE);
+        requestBuilder.setLength(RANGE_SIZE);
+        return requestBuilder.buildPartial();
+    }
+
+    @Benchmark
+    public byte[] buildAndEncodeRequest(BlockMessages messages){
+        return readRequest(messages.request.getBlock(0).getBlockMeta(), messages.request.getRequestId())
+                .toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeRequest(BlockMessages messages){
+        return messages.request.toByteArray();
+    }
+
+    @Benchmark
+    public ProtoHDFS.Request decodeRequest(BlockMessages messages) throws InvalidProtocolBufferException {
+        return ProtoHDFS.Request.parseFrom(messages.requestBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeResponse(BlockMessages messages){
+        return messages.response.toByteArray();
+    }
+
+    @Benchmark
+    public ProtoHDFS.Response decodeResponse(BlockMessages messages) throws InvalidProtocolBufferException {
+        return ProtoHDFS.Response.parseFrom(messages.responseBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeFileHandle(ListMessages messages){
+        return messages.fileHandle.toByteArray();
+    }
+
+    @Benchmark
+    public ProtoHDFS.FileHandle decodeFileHandle(ListMessages messages) throws InvalidProtocolBufferException {
+        return ProtoHDFS.FileHandle.parseFrom(messages.fileHandleBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeBlockReport(ListMessages messages){
+        return messages.blockReport.toByteArray();
+    }
+
+    @Benchmark
+    public ProtoHDFS.BlockReport decodeBlockReport(ListMessages messages) throws InvalidProtocolBufferException {
+        return ProtoHDFS.BlockReport.parseFrom(messages.blockReportBytes);
+    }
+
+    // Runs the benchmarks of this class with the gc profiler, which adds the bytes allocated per operation
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ProtoBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,278 @@
+package ds.hdfs;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import proto.ProtoHDFS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Asynchronous version of the client. Every operation returns right away with a CompletableFuture and runs over the
+// non-blocking RPC transport, so one client process can have thousands of operations in flight on a handful of
+// threads. The requests and responses are the same protobuf messages the RMI interfaces use
+public class AsyncClient {
+    protected final RpcClient rpcClient;
+    protected final InetSocketAddress nameNodeAddress;
+    // Finds the RPC address of a data node from its data node id
+    protected final Function<String, InetSocketAddress> dataNodeAddresses;
+    // Sent with every block read so the data nodes keep the read-ahead of this client apart from other clients'
+    protected final String clientId = UUID.randomUUID().toString();
+    // Renews the leases of the files this client has open until their operations are done, see closeAfter
+    protected final ScheduledExecutorService leaseRenewer;
+
+    public AsyncClient(InetSocketAddress nameNodeAddress, Function<String, InetSocketAddress> dataNodeAddresses)
+            throws IOException {
+        this.rpcClient = new RpcClient(2);
+        this.nameNodeAddress = nameNodeAddress;
+        this.dataNodeAddresses = dataNodeAddresses;
+        this.leaseRenewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "LeaseRenewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // The open request id holds the file lock until closeFile is called with it
+    public CompletableFuture<ProtoHDFS.Response> openFile(String openRequestId, ProtoHDFS.FileHandle fileHandle,
+                                                          ProtoHDFS.Request.RequestType requestType){
+        ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+        requestBuilder.setRequestId(openRequestId);
+        requestBuilder.setRequestType(requestType);
+        requestBuilder.setFileHandle(fileHandle);
+        ProtoHDFS.Request openRequest = requestBuilder.buildPartial();
+        requestBuilder.clear();
+
+        return call(this.nameNodeAddress, "openFile", openRequest, ProtoHDFS.Response.parser());
+    }
+
+    public CompletableFuture<ProtoHDFS.Response> closeFile(String fileName, String openRequestId){
+        ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+        requestBuilder.setRequestId(UUID.randomUUID().toString());
+        requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.CLOSE);
+        requestBuilder.setFileHandle(fileHandle(fileName, 0));
+        requestBuilder.setOpenRequestId(openRequestId);
+        ProtoHDFS.Request closeRequest = requestBuilder.buildPartial();
+        requestBuilder.clear();
+
+        return call(this.nameNodeAddress, "closeFile", closeRequest, ProtoHDFS.Response.parser());
+    }
+
+    public CompletableFuture<ProtoHDFS.Response> renewLease(String fileName, String openRequestId){
+        ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+        requestBuilder.setRequestId(UUID.randomUUID().toString());
+        requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.UPDATE);
+        requestBuilder.setFileHandle(fileHandle(fileName, 0));
+        requestBuilder.setOpenRequestId(openRequestId);
+        ProtoHDFS.Request renewRequest = requestBuilder.buildPartial();
+        requestBuilder.clear();
+
+        return call(this.nameNodeAddress, "renewLease", renewRequest, ProtoHDFS.Response.parser());
+    }
+
+    public CompletableFuture<ProtoHDFS.ListResponse> list(){
+        ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+        requestBuilder.setRequestId(UUID.randomUUID().toString());
+        requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.LIST);
+        ProtoHDFS.Request listRequest = requestBuilder.buildPartial();
+        requestBuilder.clear();
+
+        return call(this.nameNodeAddress, "list", listRequest, ProtoHDFS.ListResponse.parser());
+    }
+
+    // Gets the block locations of many files in one call, see NameNode.getBatchBlockLocations
+    public CompletableFuture<ProtoHDFS.BatchResponse> getFileHandles(List<String> fileNames, String prefix){
+        ProtoHDFS.BatchRequest.Builder batchRequestBuilder = ProtoHDFS.BatchRequest.newBuilder();
+        batchRequestBuilder.setRequestId(UUID.randomUUID().toString());
+        batchRequestBuilder.addAllFileNames(fileNames);
+        if(prefix != null){
+            batchRequestBuilder.setPrefix(prefix);
+        }
+        ProtoHDFS.BatchRequest batchRequest = batchRequestBuilder.build();
+        batchRequestBuilder.clear();
+
+        return call(this.nameNodeAddress, "getBatchBlockLocations", batchRequest, ProtoHDFS.BatchResponse.parser());
+    }
+
+    // Reads length bytes of one replica of a block starting at offset, or the whole replica if length is negative
+    public CompletableFuture<ProtoHDFS.Response> readBlock(ProtoHDFS.Block block, long offset, long length){
+        ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+        requestBuilder.setRequestId(UUID.randomUUID().toString());
+        requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.READ);
+        requestBuilder.addBlock(block);
+        requestBuilder.setReaderId(this.clientId);
+        if(length >= 0){
+            requestBuilder.setOffset(offset);
+            requestBuilder.setLength(length);
+        }
+        ProtoHDFS.Request readRequest = requestBuilder.buildPartial();
+        requestBuilder.clear();
+
+        return call(dataNodeAddress(block), "readBlock", readRequest, ProtoHDFS.Response.parser());
+    }
+
+    public CompletableFuture<ProtoHDFS.Response> writeBlock(ProtoHDFS.Block block, byte[] contents){
+        ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
+        blockBuilder.setBlockMeta(block.getBlockMeta());
+        blockBuilder.setBlockContents(ByteString.copyFrom(contents));
+        ProtoHDFS.Block requestBlock = blockBuilder.build();
+        blockBuilder.clear();
+
+        ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+        requestBuilder.setRequestId(UUID.randomUUID().toString());
+        requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.WRITE);
+        requestBuilder.addBlock(requestBlock);
+        ProtoHDFS.Request writeRequest = requestBuilder.buildPartial();
+        requestBuilder.clear();
+
+        return call(dataNodeAddress(block), "writeBlock", writeRequest, ProtoHDFS.Response.parser());
+    }
+
+    // Stores the bytes as a new replicated file. All blocks and replicas are written at the same time
+    public CompletableFuture<Void> putFile(String fileName, byte[] data){
+        String openRequestId = UUID.randomUUID().toString();
+        return openFile(openRequestId, fileHandle(fileName, data.length), ProtoHDFS.Request.RequestType.WRITE)
+                .thenCompose(openResponse -> {
+                    if(openResponse.getResponseType() != ProtoHDFS.Response.ResponseType.SUCCESS){
+                        return failed(new IOException(openResponse.getErrorMessage()));
+                    }
+
+                    List<ProtoHDFS.Pipeline> pipelines = openResponse.getFileHandle().getPipelinesList();
+                    ArrayList<CompletableFuture<Void>> writes = new ArrayList<>();
+                    for(int i = 0; i < pipelines.size(); i++){
+                        int start = (int) Math.min(data.length, (long) i * Client.BLOCK_SIZE);
+                        int end = (int) Math.min(data.length, (long) (i + 1) * Client.BLOCK_SIZE);
+                        byte[] blockContents = Arrays.copyOfRange(data, start, end);
+                        for(ProtoHDFS.Block replica : pipelines.get(i).getBlocksList()){
+                            writes.add(writeBlock(replica, blockContents).thenAccept(this::checkSuccess));
+                        }
+                    }
+                    CompletableFuture<Void> written = CompletableFuture
+                            .allOf(writes.toArray(new CompletableFuture<?>[0]));
+                    return closeAfter(fileName, openRequestId, written);
+                });
+    }
+
+    // Reads a whole replicated file. All blocks are read at the same time, each from the first replica that works
+    public CompletableFuture<byte[]> getFile(String fileName){
+        String openRequestId = UUID.randomUUID().toString();
+        return openFile(openRequestId, fileHandle(fileName, 0), ProtoHDFS.Request.RequestType.READ)
+                .thenCompose(openResponse -> {
+                    if(openResponse.getResponseType() != ProtoHDFS.Response.ResponseType.SUCCESS){
+                        return failed(new IOException(openResponse.getErrorMessage()));
+                    }
+                    ProtoHDFS.FileHandle fileHandle = openResponse.getFileHandle();
+                    if(fileHandle.hasEcPolicy()){
+                        return closeAfter(fileName, openRequestId, failed(new IOException("Erasure coded file "
+                                + fileName + " can't be read by the async client")));
+                    }
+
+                    ArrayList<CompletableFuture<byte[]>> reads = new ArrayList<>();
+                    for(ProtoHDFS.Pipeline pipeline : fileHandle.getPipelinesList()){
+                        reads.add(readAnyReplica(pipeline.getBlocksList(), 0));
+                    }
+                    CompletableFuture<byte[]> contents = CompletableFuture
+                            .allOf(reads.toArray(new CompletableFuture<?>[0]))
+                            .thenApply(done -> {
+                                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                                for(CompletableFuture<byte[]> read : reads){
+                                    byte[] blockContents = read.join();
+                                    outputStream.write(blockContents, 0, blockContents.length);
+                                }
+                                return outputStream.toByteArray();
+                            });
+                    return closeAfter(fileName, openRequestId, contents);
+                });
+    }
+
+    public void close(){
+        this.leaseRenewer.shutdownNow();
+        this.rpcClient.close();
+    }
+
+    // Tries the replicas one after the other until one of them can be read
+    protected CompletableFuture<byte[]> readAnyReplica(List<ProtoHDFS.Block> replicas, int index){
+        if(index >= replicas.size()){
+            int blockNumber = replicas.isEmpty() ? -1 : replicas.get(0).getBlockMeta().getBlockNumber();
+            return failed(new IOException("No replica of block " + blockNumber + " could be read"));
+        }
+        return readBlock(replicas.get(index), 0, -1)
+                .handle((response, error) -> {
+                    if(error == null && response.getResponseType() == ProtoHDFS.Response.ResponseType.SUCCESS){
+                        return CompletableFuture.completedFuture(response.getBlock().getBlockContents().toByteArray());
+                    }
+                    return readAnyReplica(replicas, index + 1);
+                })
+                .thenCompose(read -> read);
+    }
+
+    // Closes the file once the operation is done, whether it worked or not, and then completes like the operation.
+    // Until then the lease on the file is renewed twice in every lease period so a long operation keeps its lock
+    protected <T> CompletableFuture<T> closeAfter(String fileName, String openRequestId,
+                                                  CompletableFuture<T> operation){
+        long renewMillis = FileLock.LEASE_MILLIS / 2;
+        ScheduledFuture<?> renewal = this.leaseRenewer.scheduleAtFixedRate(() -> renewLease(fileName, openRequestId),
+                renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+        operation.whenComplete((result, error) -> renewal.cancel(false));
+        return operation.handle((result, error) -> closeFile(fileName, openRequestId)
+                .handle((closeResponse, closeError) -> {
+                    if(error != null){
+                        throw error instanceof CompletionException ? (CompletionException) error
+                                : new CompletionException(error);
+                    }
+                    return result;
+                })).thenCompose(closed -> closed);
+    }
+
+    protected <T> CompletableFuture<T> call(InetSocketAddress address, String method, MessageLite request,
+                                            Parser<T> parser){
+        if(address == null){
+            return failed(new IOException("No address for " + method));
+        }
+        return this.rpcClient.call(address, method, request.toByteArray()).thenApply(responseBytes -> {
+            try{
+                return parser.parseFrom(responseBytes);
+            }catch(InvalidProtocolBufferException e){
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    protected void checkSuccess(ProtoHDFS.Response response){
+        if(response.getResponseType() != ProtoHDFS.Response.ResponseType.SUCCESS){
+            throw new CompletionException(new IOException(response.getErrorMessage()));
+        }
+    }
+
+    protected InetSocketAddress dataNodeAddress(ProtoHDFS.Block block){
+        return this.dataNodeAddresses.apply(block.getBlockMeta().getDataId());
+    }
+
+    protected static ProtoHDFS.FileHandle fileHandle(String fileName, long fileSize){
+        ProtoHDFS.FileHandle.Builder fileHandleBuilder = ProtoHDFS.FileHandle.newBuilder();
+        fileHandleBuilder.setFileName(fileName);
+        fileHandleBuilder.setFileSize(fileSize);
+        ProtoHDFS.FileHandle fileHandle = fileHandleBuilder.buildPartial();
+        fileHandleBuilder.clear();
+        return fileHandle;
+    }
+
+    protected static <T> CompletableFuture<T> failed(Throwable error){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+}
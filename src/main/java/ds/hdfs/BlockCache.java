@@ -0,0 +1,215 @@
+package ds.hdfs;
+
+import proto.ProtoHDFS;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Size bounded LRU cache of block contents kept off the heap. Blocks are cached in fixed size chunks, each in a pooled
+// direct buffer, so hot blocks are served from memory without adding to the heap the GC has to trace. An entry is only
+// valid for the block meta it was read for, so a block written again never gets its old contents served
+// The cache is guarded by a ReentrantLock rather than its monitor so virtual thread handlers never pin their carrier
+// thread while they wait for it
+public class BlockCache {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    protected final int chunkSize;
+    protected final int maxChunks;
+    protected final DirectBufferPool bufferPool;
+    // Access ordered, so the first entry is always the least recently used one
+    protected final LinkedHashMap<String, Entry> entries;
+    protected final ReentrantLock lock;
+    protected final LongAdder hits;
+    protected final LongAdder misses;
+    protected final LongAdder evictions;
+
+    public BlockCache(int chunkSize, long capacityBytes){
+        this.chunkSize = chunkSize;
+        this.maxChunks = (int) Math.max(0, capacityBytes / chunkSize);
+        this.bufferPool = new DirectBufferPool(chunkSize, this.maxChunks);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.lock = new ReentrantLock();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    public int getChunkSize(){
+        return this.chunkSize;
+    }
+
+    public long getHits(){
+        return this.hits.sum();
+    }
+
+    public long getMisses(){
+        return this.misses.sum();
+    }
+
+    public long getEvictions(){
+        return this.evictions.sum();
+    }
+
+    public double getHitRatio(){
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public int getCachedChunks(){
+        this.lock.lock();
+        try{
+            return this.entries.size();
+        }finally{
+            this.lock.unlock();
+        }
+    }
+
+    // Copies a cached chunk of the block into the destination, returning false if the chunk isn't cached. The buffer
+    // is pinned while it is copied so an eviction at the same time can't hand it to another chunk
+    public boolean read(String blockName, ProtoHDFS.BlockMeta blockMeta, int chunk, byte[] destination,
+                        int destinationOffset){
+        Entry entry;
+        this.lock.lock();
+        try{
+            entry = this.entries.get(key(blockName, chunk));
+            if(entry == null || entry.blockMeta != blockMeta){
+                this.misses.increment();
+                return false;
+            }
+            entry.pins++;
+        }finally{
+            this.lock.unlock();
+        }
+        this.hits.increment();
+
+        try{
+            ByteBuffer view = entry.buffer.duplicate();
+            view.clear();
+            view.limit(entry.length);
+            view.get(destination, destinationOffset, entry.length);
+        }finally{
+            unpin(entry);
+        }
+        return true;
+    }
+
+    // Tells whether a chunk is cached without counting a hit or a miss or touching its LRU position
+    public boolean contains(String blockName, ProtoHDFS.BlockMeta blockMeta, int chunk){
+        this.lock.lock();
+        try{
+            Entry entry = this.entries.get(key(blockName, chunk));
+            return entry != null && entry.blockMeta == blockMeta;
+        }finally{
+            this.lock.unlock();
+        }
+    }
+
+    // Caches a chunk of the block, evicting the least recently used chunks if the cache is full
+    public void put(String blockName, ProtoHDFS.BlockMeta blockMeta, int chunk, byte[] source, int sourceOffset,
+                    int length){
+        if(this.maxChunks == 0 || length > this.chunkSize){
+            return;
+        }
+        ByteBuffer buffer = this.bufferPool.acquire();
+        buffer.put(source, sourceOffset, length);
+        Entry entry = new Entry(blockMeta, buffer, length);
+
+        this.lock.lock();
+        try{
+            Entry replaced = this.entries.put(key(blockName, chunk), entry);
+            if(replaced != null){
+                retire(replaced);
+            }
+
+            Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+            while(this.entries.size() > this.maxChunks && iterator.hasNext()){
+                Entry eldest = iterator.next().getValue();
+                iterator.remove();
+                retire(eldest);
+                this.evictions.increment();
+            }
+        }finally{
+            this.lock.unlock();
+        }
+    }
+
+    // Drops every cached chunk of the block
+    public void invalidate(String blockName){
+        this.lock.lock();
+        try{
+            Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+            String prefix = blockName + "#";
+            while(iterator.hasNext()){
+                Map.Entry<String, Entry> entry = iterator.next();
+                if(entry.getKey().startsWith(prefix)){
+                    iterator.remove();
+                    retire(entry.getValue());
+                }
+            }
+        }finally{
+            this.lock.unlock();
+        }
+    }
+
+    public void clear(){
+        this.lock.lock();
+        try{
+            for(Entry entry : this.entries.values()){
+                retire(entry);
+            }
+            this.entries.clear();
+        }finally{
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString(){
+        return String.format("hits=%1$d misses=%2$d hitRatio=%3$.3f evictions=%4$d chunks=%5$d/%6$d", getHits(),
+                getMisses(), getHitRatio(), getEvictions(), getCachedChunks(), this.maxChunks);
+    }
+
+    // Gives the buffer of a removed entry back to the pool once nobody is copying out of it anymore
+    protected void retire(Entry entry){
+        entry.retired = true;
+        if(entry.pins == 0){
+            this.bufferPool.release(entry.buffer);
+        }
+    }
+
+    protected void unpin(Entry entry){
+        this.lock.lock();
+        try{
+            entry.pins--;
+            if(entry.retired && entry.pins == 0){
+                this.bufferPool.release(entry.buffer);
+            }
+        }finally{
+            this.lock.unlock();
+        }
+    }
+
+    protected static String key(String blockName, int chunk){
+        return blockName + "#" + chunk;
+    }
+
+    // One cached chunk, guarded by the cache's lock except for its buffer contents
+    protected static class Entry {
+        protected final ProtoHDFS.BlockMeta blockMeta;
+        protected final ByteBuffer buffer;
+        protected final int length;
+        protected int pins;
+        protected boolean retired;
+
+        protected Entry(ProtoHDFS.BlockMeta blockMeta, ByteBuffer buffer, int length){
+            this.blockMeta = blockMeta;
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+}
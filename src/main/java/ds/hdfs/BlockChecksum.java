@@ -0,0 +1,69 @@
+package ds.hdfs;
+
+import proto.ProtoHDFS;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// CRC32 checksums over fixed size chunks of a block. The checksums are stored in the block meta and let a reader
+// check the part of the block it read without having to read the whole block
+public class BlockChecksum {
+    public static final int DEFAULT_BYTES_PER_CHECKSUM = 64 * 1024;
+
+    // Computes one checksum for every bytesPerChecksum bytes of the data
+    public static List<Integer> compute(ByteBuffer data, int bytesPerChecksum){
+        ArrayList<Integer> checksums = new ArrayList<>();
+        CRC32 crc32 = new CRC32();
+        ByteBuffer buffer = data.duplicate();
+        for(int position = buffer.position(); position < data.limit(); position += bytesPerChecksum){
+            buffer.limit(Math.min(data.limit(), position + bytesPerChecksum));
+            buffer.position(position);
+            crc32.reset();
+            crc32.update(buffer);
+            checksums.add((int) crc32.getValue());
+        }
+        return checksums;
+    }
+
+    // Rounds the start of a range of the block down to the start of its checksum chunk
+    public static long alignStart(ProtoHDFS.BlockMeta blockMeta, long start){
+        if(!blockMeta.hasBytesPerChecksum()){
+            return start;
+        }
+        return start - start % blockMeta.getBytesPerChecksum();
+    }
+
+    // Rounds the end of a range of the block up to the end of its checksum chunk, which is at most the block end
+    public static long alignEnd(ProtoHDFS.BlockMeta blockMeta, long end){
+        if(!blockMeta.hasBytesPerChecksum() || end % blockMeta.getBytesPerChecksum() == 0){
+            return end;
+        }
+        long alignedEnd = end - end % blockMeta.getBytesPerChecksum() + blockMeta.getBytesPerChecksum();
+        return Math.min(alignedEnd, blockMeta.getBlockLength());
+    }
+
+    // Number of the checksum chunk a position of the block is in
+    public static int chunkOf(ProtoHDFS.BlockMeta blockMeta, long position){
+        return blockMeta.hasBytesPerChecksum() ? (int) (position / blockMeta.getBytesPerChecksum()) : 0;
+    }
+
+    // Checks data that starts at chunk firstChunk of the block against the checksums in the block meta. Returns the
+    // number of the first chunk that doesn't match or -1 if all chunks are fine
+    public static int verify(ProtoHDFS.BlockMeta blockMeta, ByteBuffer data, int firstChunk){
+        if(!blockMeta.hasBytesPerChecksum()){
+            return -1;
+        }
+
+        List<Integer> expected = blockMeta.getChecksumsList();
+        List<Integer> actual = compute(data, blockMeta.getBytesPerChecksum());
+        for(int i = 0; i < actual.size(); i++){
+            int chunk = firstChunk + i;
+            if(chunk >= expected.size() || expected.get(chunk).intValue() != actual.get(i).intValue()){
+                return chunk;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,127 @@
+package ds.hdfs;
+
+import proto.ProtoHDFS;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compresses blocks chunk by chunk so any chunk can later be decompressed on its own. The compressed chunks are stored
+// back to back in the block file and their lengths are kept in the block meta to find where each chunk starts
+public class BlockCompressor {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    protected final ProtoHDFS.CompressionCodec codec;
+    protected final int codecLevel;
+    protected final int chunkSize;
+
+    public BlockCompressor(ProtoHDFS.CompressionCodec codec, int codecLevel, int chunkSize){
+        this.codec = codec;
+        this.codecLevel = codecLevel;
+        this.chunkSize = chunkSize;
+    }
+
+    // Uses the codec settings recorded in the block meta
+    public BlockCompressor(ProtoHDFS.BlockMeta blockMeta){
+        this(blockMeta.getCodec(),
+                blockMeta.hasCodecLevel() ? blockMeta.getCodecLevel() : Deflater.DEFAULT_COMPRESSION,
+                blockMeta.hasChunkSize() ? blockMeta.getChunkSize() : DEFAULT_CHUNK_SIZE);
+    }
+
+    // Deflater accepts DEFAULT_COMPRESSION (-1) and the levels 0 to 9, it throws on anything else
+    public static boolean isValidLevel(int codecLevel){
+        return codecLevel == Deflater.DEFAULT_COMPRESSION
+                || (codecLevel >= Deflater.NO_COMPRESSION && codecLevel <= Deflater.BEST_COMPRESSION);
+    }
+
+    public int getChunkSize(){
+        return this.chunkSize;
+    }
+
+    // Compresses the block into the output stream and returns the compressed length of every chunk
+    public List<Integer> compress(byte[] data, OutputStream outputStream) throws IOException {
+        ArrayList<Integer> chunkLengths = new ArrayList<>();
+        Deflater deflater = new Deflater(this.codecLevel);
+        byte[] buffer = new byte[this.chunkSize + this.chunkSize / 16 + 64];
+        try{
+            for(int offset = 0; offset < data.length; offset += this.chunkSize){
+                int length = Math.min(this.chunkSize, data.length - offset);
+                deflater.reset();
+                deflater.setInput(data, offset, length);
+                deflater.finish();
+
+                int chunkLength = 0;
+                while(!deflater.finished()){
+                    int compressed = deflater.deflate(buffer);
+                    outputStream.write(buffer, 0, compressed);
+                    chunkLength += compressed;
+                }
+                chunkLengths.add(chunkLength);
+            }
+        }finally{
+            deflater.end();
+        }
+        return chunkLengths;
+    }
+
+    // Decompresses chunks firstChunk to lastChunk (inclusive) of a block written by compress(). The compressed block
+    // starts at baseOffset in the file, which is 0 unless the block is packed in a container file
+    public byte[] decompress(FileChannel channel, long baseOffset, ProtoHDFS.BlockMeta blockMeta, int firstChunk,
+                             int lastChunk) throws IOException {
+        List<Integer> chunkLengths = blockMeta.getChunkLengthsList();
+        long blockLength = blockMeta.getBlockLength();
+
+        long position = baseOffset;
+        for(int i = 0; i < firstChunk; i++){
+            position += chunkLengths.get(i);
+        }
+
+        long start = (long) firstChunk * this.chunkSize;
+        long end = Math.min(blockLength, (long) (lastChunk + 1) * this.chunkSize);
+        byte[] data = new byte[(int) Math.max(0, end - start)];
+
+        Inflater inflater = new Inflater();
+        try{
+            int offset = 0;
+            for(int i = firstChunk; i <= lastChunk && i < chunkLengths.size(); i++){
+                byte[] compressed = new byte[chunkLengths.get(i)];
+                readFully(channel, ByteBuffer.wrap(compressed), position);
+                position += compressed.length;
+
+                inflater.reset();
+                inflater.setInput(compressed);
+                while(!inflater.finished() && offset < data.length){
+                    int inflated = inflater.inflate(data, offset, data.length - offset);
+                    if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                        throw new DataFormatException("Truncated chunk " + i);
+                    }
+                    offset += inflated;
+                }
+            }
+        }catch(DataFormatException e){
+            throw new IOException(String.format("Block %1$d replication %2$d for %3$s is corrupt",
+                    blockMeta.getBlockNumber(), blockMeta.getRepNumber(), blockMeta.getFileName()), e);
+        }finally{
+            inflater.end();
+        }
+        return data;
+    }
+
+    // Positional read that fills the whole buffer, failing if the file ends first
+    public static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()){
+            int read = channel.read(buffer, position);
+            if(read < 0){
+                throw new EOFException("Unexpected end of file at " + position);
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package ds.hdfs;
+
+import proto.ProtoHDFS;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+
+// Background thread that keeps re-reading every block of a data node and checking it against its checksums so bit
+// rot is found before a job needs the data. It reads at most bytesPerSecond and pauses while the data node is busy
+// serving clients. Corrupt replicas are no longer served and are reported to the name node to be re-replicated, but
+// their files are only quarantined. They are deleted once the name node has a new copy somewhere else, so a replica
+// is never lost before the cluster has another one
+public class BlockScanner implements Runnable {
+    protected final DataNode dataNode;
+    protected final NameNodeInterface nameNodeStub;
+    protected final long bytesPerSecond;
+    // A full pass over the blocks is started at most once per scan period
+    protected final long scanPeriodMillis;
+    // The scanner waits while the data node is serving more than this many reads and writes
+    protected final int maxForegroundRequests;
+    protected volatile boolean running;
+    // Quarantined replicas, and the ones of them the name node hasn't been told about yet
+    protected final ConcurrentHashMap<String, ProtoHDFS.BlockMeta> quarantined;
+    protected final ConcurrentHashMap<String, ProtoHDFS.BlockMeta> unreported;
+
+    // Bytes read in the current throttling window and when that window started
+    protected long windowBytes;
+    protected long windowStart;
+
+    public BlockScanner(DataNode dataNode, NameNodeInterface nameNodeStub, long bytesPerSecond, long scanPeriodMillis,
+                        int maxForegroundRequests){
+        this.dataNode = dataNode;
+        this.nameNodeStub = nameNodeStub;
+        this.bytesPerSecond = bytesPerSecond;
+        this.scanPeriodMillis = scanPeriodMillis;
+        this.maxForegroundRequests = maxForegroundRequests;
+        this.running = true;
+        // Replicas quarantined before a restart may never have been reported
+        this.quarantined = new ConcurrentHashMap<>(dataNode.volumeManager.loadQuarantine());
+        this.unreported = new ConcurrentHashMap<>(this.quarantined);
+    }
+
+    public void stop(){
+        this.running = false;
+    }
+
+    @Override
+    public void run(){
+        try{
+            while(this.running){
+                long passStart = System.currentTimeMillis();
+                reportQuarantined();
+                releaseQuarantined();
+                int corruptBlocks = scanAll();
+                System.out.println(String.format("Block scan of %1$s finished in %2$d ms, %3$d corrupt blocks",
+                        this.dataNode.dataId, System.currentTimeMillis() - passStart, corruptBlocks));
+
+                long nextPass = passStart + this.scanPeriodMillis;
+                while(this.running && System.currentTimeMillis() < nextPass){
+                    Thread.sleep(Math.min(1000, Math.max(1, nextPass - System.currentTimeMillis())));
+                }
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Checks every block the data node currently has, returning the number of corrupt ones found
+    protected int scanAll() throws InterruptedException {
+        this.windowStart = System.currentTimeMillis();
+        this.windowBytes = 0;
+
+        int corruptBlocks = 0;
+        ArrayList<ProtoHDFS.BlockMeta> blockMetas = new ArrayList<>(this.dataNode.blockMetas.values());
+        for(ProtoHDFS.BlockMeta blockMeta : blockMetas){
+            if(!this.running){
+                break;
+            }
+            // A block being written or appended to is checked on the next pass, its bytes and meta don't match
+            // until the write is done
+            if(this.dataNode.writingBlocks.contains(BlockStorage.blockName(blockMeta))){
+                continue;
+            }
+            if(!verifyBlock(blockMeta) && handleCorruptBlock(blockMeta)){
+                corruptBlocks++;
+            }
+        }
+        return corruptBlocks;
+    }
+
+    // Reads the block a piece at a time and checks each piece against the checksums in its meta
+    protected boolean verifyBlock(ProtoHDFS.BlockMeta blockMeta) throws InterruptedException {
+        if(!blockMeta.hasBytesPerChecksum()){
+            return true;
+        }
+
+        String blockName = BlockStorage.blockName(blockMeta);
+        BlockStorage volume = this.dataNode.volumeManager.getVolume(blockName);
+        if(volume == null){
+            return false;
+        }
+        try{
+            // A contained block is read under its container store's read lock, which must not be held while the
+            // scanner waits, so its bytes are paid for once the read is done
+            boolean contained = volume.getContainers().contains(blockName);
+            boolean healthy = volume.readBlock(blockMeta, this::verifyContents);
+            if(contained){
+                throttle(blockMeta.getBlockLength());
+            }
+            return healthy;
+        }catch(InterruptedIOException e){
+            throw new InterruptedException(e.getMessage());
+        }catch(IOException e){
+            // A block that can't be read back (missing file, bad compressed data) is as good as corrupt
+            return false;
+        }
+    }
+
+    // Checks the stored bytes of a block, which start at offset in the channel (its own file or its container)
+    protected boolean verifyContents(FileChannel channel, long baseOffset, ProtoHDFS.BlockMeta blockMeta)
+            throws IOException {
+        int bytesPerChecksum = blockMeta.getBytesPerChecksum();
+        if(blockMeta.getCodec() == ProtoHDFS.CompressionCodec.NONE){
+            if(!blockMeta.hasContainerId() && channel.size() != blockMeta.getBlockLength()){
+                return false;
+            }
+            ByteBuffer piece = ByteBuffer.allocate(bytesPerChecksum);
+            for(long offset = 0; offset < blockMeta.getBlockLength(); offset += bytesPerChecksum){
+                int length = (int) Math.min(bytesPerChecksum, blockMeta.getBlockLength() - offset);
+                if(!blockMeta.hasContainerId()){
+                    throttleInterruptibly(length);
+                }
+                piece.clear();
+                piece.limit(length);
+                BlockCompressor.readFully(channel, piece, baseOffset + offset);
+                piece.flip();
+                if(BlockChecksum.verify(blockMeta, piece, (int) (offset / bytesPerChecksum)) != -1){
+                    return false;
+                }
+            }
+        }else{
+            // Compressed chunks are verified one at a time when they line up with the checksum chunks
+            BlockCompressor blockCompressor = new BlockCompressor(blockMeta);
+            int chunkSize = blockCompressor.getChunkSize();
+            int lastChunk = blockMeta.getChunkLengthsCount() - 1;
+            int step = chunkSize % bytesPerChecksum == 0 ? 1 : lastChunk + 1;
+            for(int chunk = 0; chunk <= lastChunk; chunk += step){
+                int endChunk = Math.min(lastChunk, chunk + step - 1);
+                byte[] piece = blockCompressor.decompress(channel, baseOffset, blockMeta, chunk, endChunk);
+                if(!blockMeta.hasContainerId()){
+                    throttleInterruptibly(piece.length);
+                }
+                int firstChecksumChunk = (int) ((long) chunk * chunkSize / bytesPerChecksum);
+                if(BlockChecksum.verify(blockMeta, ByteBuffer.wrap(piece), firstChecksumChunk) != -1){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Throttles from inside a block read, where only I/O exceptions can be thrown
+    protected void throttleInterruptibly(long bytes) throws InterruptedIOException {
+        try{
+            throttle(bytes);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttling the block scan");
+        }
+    }
+
+    // Sleeps long enough to keep the scan under bytesPerSecond, and waits for the data node to be quiet
+    protected void throttle(long bytes) throws InterruptedException {
+        while(this.running && this.dataNode.activeRequests.get() > this.maxForegroundRequests){
+            Thread.sleep(100);
+            this.windowStart = System.currentTimeMillis();
+            this.windowBytes = 0;
+        }
+
+        this.windowBytes += bytes;
+        long expectedMillis = this.windowBytes * 1000 / this.bytesPerSecond;
+        long elapsedMillis = System.currentTimeMillis() - this.windowStart;
+        if(expectedMillis > elapsedMillis){
+            Thread.sleep(expectedMillis - elapsedMillis);
+        }
+    }
+
+    // Stops serving the corrupt replica, quarantines it and tells the name node about it so it can make a new copy
+    // elsewhere. Returns false if the block was removed or rewritten while it was being read, since then it isn't
+    // corrupt, it just changed
+    protected boolean handleCorruptBlock(ProtoHDFS.BlockMeta blockMeta){
+        String blockName = BlockStorage.blockName(blockMeta);
+        // Under the block's lock so no write starts while it is quarantined. The meta is compared by identity first
+        // since writing the same bytes again gives an equal meta
+        Lock blockLock = this.dataNode.blockLock(blockName).writeLock();
+        blockLock.lock();
+        try{
+            if(this.dataNode.blockMetas.get(blockName) != blockMeta
+                    || !this.dataNode.blockMetas.remove(blockName, blockMeta)){
+                return false;
+            }
+            System.out.println(String.format("Block %1$d replication %2$d for %3$s is corrupt",
+                    blockMeta.getBlockNumber(), blockMeta.getRepNumber(), blockMeta.getFileName()));
+
+            try{
+                this.dataNode.volumeManager.quarantineBlock(blockMeta);
+            }catch(IOException e){
+                System.out.println("Could not quarantine " + blockName + ": " + e.getMessage());
+            }
+        }finally{
+            blockLock.unlock();
+        }
+        this.quarantined.put(blockName, blockMeta);
+        this.unreported.put(blockName, blockMeta);
+        reportQuarantined();
+        return true;
+    }
+
+    // Reports the quarantined replicas the name node doesn't know about yet. The ones that fail are tried again on
+    // the next pass
+    protected void reportQuarantined(){
+        if(this.nameNodeStub == null){
+            return;
+        }
+        for(ProtoHDFS.BlockMeta blockMeta : new ArrayList<>(this.unreported.values())){
+            if(reportCorruptBlock(blockMeta)){
+                this.unreported.remove(BlockStorage.blockName(blockMeta), blockMeta);
+            }
+        }
+    }
+
+    // Deletes the quarantined replicas the name node has replaced, i.e. whose place in the file handle is now held
+    // by another data node, or whose file is gone
+    protected void releaseQuarantined(){
+        if(this.nameNodeStub == null || this.quarantined.isEmpty()){
+            return;
+        }
+        TreeSet<String> fileNames = new TreeSet<>();
+        for(ProtoHDFS.BlockMeta blockMeta : this.quarantined.values()){
+            fileNames.add(blockMeta.getFileName());
+        }
+
+        try{
+            ProtoHDFS.BatchRequest.Builder batchRequestBuilder = ProtoHDFS.BatchRequest.newBuilder();
+            batchRequestBuilder.setRequestId(UUID.randomUUID().toString());
+            batchRequestBuilder.addAllFileNames(fileNames);
+            ProtoHDFS.BatchRequest batchRequest = batchRequestBuilder.build();
+            batchRequestBuilder.clear();
+
+            ProtoHDFS.BatchResponse batchResponse = ProtoHDFS.BatchResponse.parseFrom(
+                    this.nameNodeStub.getBatchBlockLocations(batchRequest.toByteArray()));
+            if(batchResponse.getResponseType() != ProtoHDFS.BatchResponse.ResponseType.SUCCESS){
+                System.out.println(batchResponse.getErrorMessage());
+                return;
+            }
+
+            HashMap<String, ProtoHDFS.FileHandle> fileHandles = new HashMap<>();
+            for(ProtoHDFS.FileHandle fileHandle : batchResponse.getFileHandlesList()){
+                fileHandles.put(fileHandle.getFileName(), fileHandle);
+            }
+            for(ProtoHDFS.BlockMeta blockMeta : new ArrayList<>(this.quarantined.values())){
+                String blockName = BlockStorage.blockName(blockMeta);
+                if(this.unreported.containsKey(blockName)
+                        || isStillAssigned(fileHandles.get(blockMeta.getFileName()), blockMeta)){
+                    continue;
+                }
+                this.quarantined.remove(blockName);
+                // A new replica with the same name may have been written since, it has its own files
+                if(!this.dataNode.blockMetas.containsKey(blockName)){
+                    this.dataNode.volumeManager.removeQuarantined(blockName);
+                }
+                System.out.println("Deleted quarantined block " + blockName + ", it has been re-replicated");
+            }
+        }catch(IOException e){
+            System.out.println("Failed to ask the name node about quarantined blocks: " + e.getMessage());
+        }
+    }
+
+    // Whether the file handle still places this replica on this data node
+    protected boolean isStillAssigned(ProtoHDFS.FileHandle fileHandle, ProtoHDFS.BlockMeta blockMeta){
+        if(fileHandle == null){
+            return false;
+        }
+        for(ProtoHDFS.Pipeline pipeline : fileHandle.getPipelinesList()){
+            if(pipeline.getPipelineNumber() != blockMeta.getBlockNumber()){
+                continue;
+            }
+            for(ProtoHDFS.Block block : pipeline.getBlocksList()){
+                if(block.getBlockMeta().getRepNumber() == blockMeta.getRepNumber()
+                        && block.getBlockMeta().getDataId().equals(this.dataNode.dataId)){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Returns whether the name node took the report
+    protected boolean reportCorruptBlock(ProtoHDFS.BlockMeta blockMeta){
+        String blockName = BlockStorage.blockName(blockMeta);
+        try{
+            ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
+            blockBuilder.setBlockMeta(blockMeta);
+            ProtoHDFS.Block block = blockBuilder.build();
+            blockBuilder.clear();
+
+            ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+            requestBuilder.setRequestId(UUID.randomUUID().toString());
+            requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.CORRUPT);
+            requestBuilder.addBlock(block);
+            ProtoHDFS.Request request = requestBuilder.buildPartial();
+            requestBuilder.clear();
+
+            byte[] responseBytes = this.nameNodeStub.reportBadBlocks(request.toByteArray());
+            ProtoHDFS.Response response = ProtoHDFS.Response.parseFrom(responseBytes);
+            System.out.println(response.getErrorMessage());
+            return response.getResponseType() == ProtoHDFS.Response.ResponseType.SUCCESS;
+        }catch(IOException e){
+            System.out.println("Failed to report corrupt block " + blockName + " to the name node");
+            return false;
+        }
+    }
+}
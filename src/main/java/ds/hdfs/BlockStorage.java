@@ -0,0 +1,431 @@
+package ds.hdfs;
+
+import proto.ProtoHDFS;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// On disk layout of the blocks of a data node. Every block gets an id hashed from its name and is stored under
+// root/xx/yy/<id>.blk where xx and yy are the first hex digits of the id, so no directory ever grows too big and
+// file names with '/' in them are safe. Each block has its meta next to it in <id>.meta, which is the only record
+// of it while the data node runs. A clean shutdown saves the metas of all blocks to a local index file so the next
+// start can skip scanning for them. Small blocks are packed into the container files under root/containers instead,
+// see ContainerStore
+public class BlockStorage {
+    public static final String BLOCK_SUFFIX = ".blk";
+    public static final String META_SUFFIX = ".meta";
+    // Journal of an append to a compressed block, see writeTail
+    public static final String TAIL_SUFFIX = ".tail";
+    // Position in the block file and new block length in front of the journaled tail
+    protected static final int TAIL_HEADER_SIZE = 16;
+    public static final String INDEX_FILE = "blocks.index";
+    // Only exists while the index is known to hold every block, i.e. between a clean shutdown and the next start
+    public static final String CLEAN_SHUTDOWN_FILE = "clean_shutdown";
+    public static final String CONTAINER_DIRECTORY = "containers";
+    // Corrupt blocks are kept here, out of sight of the scan, until a healthy copy exists somewhere else
+    public static final String QUARANTINE_DIRECTORY = "quarantine";
+
+    protected final File root;
+    protected final File indexFile;
+    protected final ContainerStore containers;
+
+    public BlockStorage(File root) throws IOException {
+        this.root = root;
+        if(!root.isDirectory() && !root.mkdirs()){
+            throw new IOException("Could not create storage directory " + root.getAbsolutePath());
+        }
+        this.indexFile = new File(root, INDEX_FILE);
+        this.containers = new ContainerStore(new File(root, CONTAINER_DIRECTORY),
+                ContainerStore.DEFAULT_CONTAINER_SIZE, 0.5);
+    }
+
+    public File getRoot(){
+        return this.root;
+    }
+
+    public ContainerStore getContainers(){
+        return this.containers;
+    }
+
+    // This is the name the data node uses for one replication of one block of a file
+    public static String blockName(ProtoHDFS.BlockMeta blockMeta){
+        return blockMeta.getFileName() + "_" + blockMeta.getBlockNumber() + "_" + blockMeta.getRepNumber();
+    }
+
+    // Hashes the block name into a fixed length id that is safe to use as a file name
+    public static String blockId(String blockName){
+        UUID uuid = UUID.nameUUIDFromBytes(blockName.getBytes(StandardCharsets.UTF_8));
+        return uuid.toString().replace("-", "");
+    }
+
+    // Gets the file a block is stored in without creating anything
+    public File blockFile(String blockName){
+        String blockId = blockId(blockName);
+        File directory = new File(new File(this.root, blockId.substring(0, 2)), blockId.substring(2, 4));
+        return new File(directory, blockId + BLOCK_SUFFIX);
+    }
+
+    // Gets the file a block is stored in, creating its directories if needed
+    public File createBlockFile(String blockName) throws IOException {
+        File file = blockFile(blockName);
+        File directory = file.getParentFile();
+        if(!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()){
+            throw new IOException("Could not create block directory " + directory.getAbsolutePath());
+        }
+        return file;
+    }
+
+    // Gets the file the meta of a block is kept in, next to the block file
+    public File metaFile(String blockName){
+        File blockFile = blockFile(blockName);
+        String blockId = blockFile.getName().substring(0, blockFile.getName().length() - BLOCK_SUFFIX.length());
+        return new File(blockFile.getParentFile(), blockId + META_SUFFIX);
+    }
+
+    // Gets the journal of an append to a block, next to the block file
+    public File tailFile(String blockName){
+        File blockFile = blockFile(blockName);
+        String blockId = blockFile.getName().substring(0, blockFile.getName().length() - BLOCK_SUFFIX.length());
+        return new File(blockFile.getParentFile(), blockId + TAIL_SUFFIX);
+    }
+
+    // An append to a compressed block replaces the compressed bytes of its last chunk, which the current meta still
+    // points at. The new tail is journaled here first, then the new meta is written, and only then is the tail
+    // copied into the block file by applyTail. A crash before the new meta leaves the block file untouched and a
+    // crash after it is finished by the scan, see recoverTail
+    public void writeTail(String blockName, long position, long blockLength, ByteBuffer tail,
+                          BlockWriter blockWriter) throws IOException {
+        ByteBuffer journal = ByteBuffer.allocate(TAIL_HEADER_SIZE + tail.remaining());
+        journal.putLong(position).putLong(blockLength).put(tail.duplicate());
+        journal.flip();
+        blockWriter.write(tailFile(blockName), journal);
+    }
+
+    // Copies the journaled tail of a block into its block file and drops the journal
+    public void applyTail(String blockName, long position, ByteBuffer tail, BlockWriter blockWriter)
+            throws IOException {
+        try(FileChannel channel = FileChannel.open(blockFile(blockName).toPath(), StandardOpenOption.WRITE)){
+            writeTail(channel, position, tail.duplicate());
+            blockWriter.sync(channel);
+        }
+        Files.deleteIfExists(tailFile(blockName).toPath());
+    }
+
+    protected static void writeTail(FileChannel channel, long position, ByteBuffer tail) throws IOException {
+        while(tail.hasRemaining()){
+            position += channel.write(tail, position);
+        }
+        channel.truncate(position);
+    }
+
+    // Finishes an append the data node crashed in the middle of. The journaled tail belongs in the block file only if
+    // the meta on disk is already the one written for it, otherwise the append never happened
+    protected static void recoverTail(File blockFile, File tailFile, ProtoHDFS.BlockMeta blockMeta){
+        try{
+            byte[] journal = Files.readAllBytes(tailFile.toPath());
+            if(journal.length >= TAIL_HEADER_SIZE){
+                ByteBuffer buffer = ByteBuffer.wrap(journal);
+                long position = buffer.getLong();
+                long blockLength = buffer.getLong();
+                long storedLength = 0;
+                for(int chunkLength : blockMeta.getChunkLengthsList()){
+                    storedLength += chunkLength;
+                }
+                if(blockMeta.getBlockLength() == blockLength && storedLength == position + buffer.remaining()){
+                    try(FileChannel channel = FileChannel.open(blockFile.toPath(), StandardOpenOption.WRITE)){
+                        writeTail(channel, position, buffer);
+                        channel.force(true);
+                    }
+                    System.out.println("Finished the interrupted append to " + blockFile.getAbsolutePath());
+                }
+            }
+            Files.delete(tailFile.toPath());
+        }catch(IOException e){
+            System.out.println("Could not recover the append journal " + tailFile.getAbsolutePath() + ": "
+                    + e.getMessage());
+        }
+    }
+
+    // Writes the meta next to the block so the block can be found again by scanning the storage directories. The meta
+    // is written to a temporary file first so a crash never leaves a half written meta behind. The temporary file is
+    // made durable before the rename, and the directory after it, which also covers the entry of a new block file
+    public void writeBlockMeta(ProtoHDFS.BlockMeta blockMeta, BlockWriter blockWriter) throws IOException {
+        File metaFile = metaFile(blockName(blockMeta));
+        File tmpFile = new File(metaFile.getParentFile(), metaFile.getName() + ".tmp");
+        blockWriter.write(tmpFile, ByteBuffer.wrap(blockMeta.toByteArray()));
+        Files.move(tmpFile.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        blockWriter.syncDirectory(metaFile.getParentFile());
+    }
+
+    // Runs the reader on the stored bytes of a block, wherever they are. The offset given to the reader is where the
+    // block starts in the channel, which is 0 for a block in its own file
+    public <T> T readBlock(ProtoHDFS.BlockMeta blockMeta, ContainerStore.BlockReader<T> reader) throws IOException {
+        String blockName = blockName(blockMeta);
+        if(this.containers.contains(blockName)){
+            return this.containers.read(blockName, reader);
+        }
+        try(FileChannel channel = FileChannel.open(blockFile(blockName).toPath(), StandardOpenOption.READ)){
+            return reader.read(channel, 0, blockMeta);
+        }
+    }
+
+    // Deletes a block and its meta. The index is only trusted after a clean shutdown, and the snapshot is written
+    // from the live block metas, so it never has to be told
+    public void removeBlock(String blockName){
+        if(this.containers.contains(blockName)){
+            try{
+                this.containers.delete(blockName);
+            }catch(IOException e){
+                System.out.println("Could not delete " + blockName + " from its container: " + e.getMessage());
+            }
+            return;
+        }
+        removeBlockFile(blockName);
+    }
+
+    // Deletes the own file of a block and its meta, if it has them
+    public void removeBlockFile(String blockName){
+        File blockFile = blockFile(blockName);
+        File metaFile = metaFile(blockName);
+        if(metaFile.exists() && !metaFile.delete()){
+            System.out.println("Could not delete " + metaFile.getAbsolutePath());
+        }
+        if(blockFile.exists() && !blockFile.delete()){
+            System.out.println("Could not delete " + blockFile.getAbsolutePath());
+        }
+    }
+
+    // Moves a corrupt block and its meta out of the storage into the quarantine directory. A contained block is
+    // copied out of its container and then deleted from it
+    public void quarantineBlock(ProtoHDFS.BlockMeta blockMeta) throws IOException {
+        String blockName = blockName(blockMeta);
+        File quarantineDirectory = new File(this.root, QUARANTINE_DIRECTORY);
+        if(!quarantineDirectory.isDirectory() && !quarantineDirectory.mkdirs()){
+            throw new IOException("Could not create quarantine directory " + quarantineDirectory.getAbsolutePath());
+        }
+        String blockId = blockId(blockName);
+        File quarantinedBlockFile = new File(quarantineDirectory, blockId + BLOCK_SUFFIX);
+        File quarantinedMetaFile = new File(quarantineDirectory, blockId + META_SUFFIX);
+
+        if(this.containers.contains(blockName)){
+            this.containers.read(blockName, (channel, offset, containedBlockMeta) -> {
+                try(FileChannel quarantineChannel = FileChannel.open(quarantinedBlockFile.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+                    long length = ContainerStore.storedLength(containedBlockMeta);
+                    for(long copied = 0; copied < length; ){
+                        copied += channel.transferTo(offset + copied, length - copied, quarantineChannel);
+                    }
+                }
+                return null;
+            });
+            this.containers.delete(blockName);
+        }else{
+            Files.move(blockFile(blockName).toPath(), quarantinedBlockFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(metaFile(blockName).toPath());
+        }
+        try(OutputStream outputStream = new FileOutputStream(quarantinedMetaFile)){
+            blockMeta.writeTo(outputStream);
+        }
+    }
+
+    // Reads the metas of the quarantined blocks
+    public List<ProtoHDFS.BlockMeta> loadQuarantine(){
+        ArrayList<ProtoHDFS.BlockMeta> blockMetas = new ArrayList<>();
+        File[] files = new File(this.root, QUARANTINE_DIRECTORY).listFiles((dir, name) -> name.endsWith(META_SUFFIX));
+        if(files == null){
+            return blockMetas;
+        }
+        for(File file : files){
+            try(InputStream inputStream = new FileInputStream(file)){
+                blockMetas.add(ProtoHDFS.BlockMeta.parseFrom(inputStream));
+            }catch(IOException e){
+                System.out.println("Ignoring unreadable meta " + file.getAbsolutePath());
+            }
+        }
+        return blockMetas;
+    }
+
+    // Deletes a quarantined block for good
+    public void removeQuarantined(String blockName){
+        File quarantineDirectory = new File(this.root, QUARANTINE_DIRECTORY);
+        String blockId = blockId(blockName);
+        for(String suffix : new String[]{META_SUFFIX, BLOCK_SUFFIX}){
+            File file = new File(quarantineDirectory, blockId + suffix);
+            if(file.exists() && !file.delete()){
+                System.out.println("Could not delete " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    // Loads the metas of all stored blocks. After a clean shutdown the index is a complete snapshot and is used as
+    // is, otherwise the storage directories are scanned in parallel and the index is rewritten from the scan
+    public Map<String, ProtoHDFS.BlockMeta> loadBlockMetas() throws IOException {
+        File cleanShutdownFile = new File(this.root, CLEAN_SHUTDOWN_FILE);
+        if(cleanShutdownFile.exists()){
+            Map<String, ProtoHDFS.BlockMeta> blockMetas = loadIndex();
+            blockMetas.putAll(this.containers.load(blockMetas.values()));
+            // From now on writes can happen that the snapshot doesn't know about until the next clean shutdown
+            Files.delete(cleanShutdownFile.toPath());
+            System.out.println(String.format("Loaded %1$d blocks from the index of %2$s",
+                    blockMetas.size(), this.root.getAbsolutePath()));
+            return blockMetas;
+        }
+
+        long start = System.currentTimeMillis();
+        Map<String, ProtoHDFS.BlockMeta> blockMetas = scan(ForkJoinPool.commonPool());
+        blockMetas.putAll(this.containers.scan());
+        compactIndex(blockMetas.values());
+        System.out.println(String.format("Scanned %1$d blocks in %2$s in %3$d ms", blockMetas.size(),
+                this.root.getAbsolutePath(), System.currentTimeMillis() - start));
+        return blockMetas;
+    }
+
+    // Rebuilds the block metas from the meta files, with one fork join task for every block directory
+    public Map<String, ProtoHDFS.BlockMeta> scan(ForkJoinPool pool){
+        ConcurrentHashMap<String, ProtoHDFS.BlockMeta> blockMetas = new ConcurrentHashMap<>();
+        pool.invoke(new ScanTask(this.root, 0, blockMetas));
+        return blockMetas;
+    }
+
+    // Saves a complete snapshot of the block metas so the next start can skip the scan
+    public void saveSnapshot(Collection<ProtoHDFS.BlockMeta> blockMetas) throws IOException {
+        // Contained blocks may have been moved by a compaction since their metas were handed out
+        ArrayList<ProtoHDFS.BlockMeta> currentBlockMetas = new ArrayList<>();
+        for(ProtoHDFS.BlockMeta blockMeta : blockMetas){
+            ProtoHDFS.BlockMeta containedBlockMeta = this.containers.currentMeta(blockName(blockMeta));
+            currentBlockMetas.add(containedBlockMeta != null ? containedBlockMeta : blockMeta);
+        }
+        compactIndex(currentBlockMetas);
+        this.containers.saveState();
+        File cleanShutdownFile = new File(this.root, CLEAN_SHUTDOWN_FILE);
+        if(!cleanShutdownFile.exists() && !cleanShutdownFile.createNewFile()){
+            throw new IOException("Could not create " + cleanShutdownFile.getAbsolutePath());
+        }
+    }
+
+    // Scans one directory of the storage. The root and the first level of hashed directories fork a task for every
+    // subdirectory, and the second level reads the metas of the blocks it holds
+    protected static class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        protected final File directory;
+        protected final int depth;
+        protected final ConcurrentHashMap<String, ProtoHDFS.BlockMeta> blockMetas;
+
+        protected ScanTask(File directory, int depth, ConcurrentHashMap<String, ProtoHDFS.BlockMeta> blockMetas){
+            this.directory = directory;
+            this.depth = depth;
+            this.blockMetas = blockMetas;
+        }
+
+        @Override
+        protected void compute(){
+            File[] files = this.directory.listFiles();
+            if(files == null){
+                return;
+            }
+
+            if(this.depth < 2){
+                List<ScanTask> subTasks = new ArrayList<>();
+                for(File file : files){
+                    if(file.isDirectory()){
+                        subTasks.add(new ScanTask(file, this.depth + 1, this.blockMetas));
+                    }
+                }
+                invokeAll(subTasks);
+                return;
+            }
+
+            for(File file : files){
+                String name = file.getName();
+                if(!name.endsWith(META_SUFFIX)){
+                    continue;
+                }
+
+                String blockId = name.substring(0, name.length() - META_SUFFIX.length());
+                File blockFile = new File(this.directory, blockId + BLOCK_SUFFIX);
+                if(!blockFile.exists()){
+                    System.out.println("Ignoring meta without a block " + file.getAbsolutePath());
+                    continue;
+                }
+
+                try(InputStream inputStream = new FileInputStream(file)){
+                    ProtoHDFS.BlockMeta blockMeta = ProtoHDFS.BlockMeta.parseFrom(inputStream);
+                    File tailFile = new File(this.directory, blockId + TAIL_SUFFIX);
+                    if(tailFile.exists()){
+                        recoverTail(blockFile, tailFile, blockMeta);
+                    }else if(blockMeta.getCodec() == ProtoHDFS.CompressionCodec.NONE && blockMeta.hasBlockLength()
+                            && !blockMeta.hasContainerId() && blockFile.length() > blockMeta.getBlockLength()){
+                        // An append to an uncompressed block writes past its end before the new meta, so the
+                        // bytes the meta doesn't know about are from an append that never finished
+                        try(FileChannel channel = FileChannel.open(blockFile.toPath(), StandardOpenOption.WRITE)){
+                            channel.truncate(blockMeta.getBlockLength());
+                        }
+                    }
+                    this.blockMetas.put(blockName(blockMeta), blockMeta);
+                }catch(IOException e){
+                    System.out.println("Ignoring unreadable meta " + file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    // Reads the index back into a map from block name to block meta. A partly written entry at the end of the file is
+    // ignored
+    public synchronized Map<String, ProtoHDFS.BlockMeta> loadIndex() throws IOException {
+        HashMap<String, ProtoHDFS.BlockMeta> blockMetas = new HashMap<>();
+        if(!this.indexFile.exists()){
+            return blockMetas;
+        }
+
+        try(InputStream inputStream = new BufferedInputStream(new FileInputStream(this.indexFile))){
+            while(true){
+                ProtoHDFS.BlockMeta blockMeta;
+                try{
+                    blockMeta = ProtoHDFS.BlockMeta.parseDelimitedFrom(inputStream);
+                }catch(IOException e){
+                    System.out.println("Ignoring truncated entry at the end of " + this.indexFile.getAbsolutePath());
+                    break;
+                }
+                if(blockMeta == null){
+                    break;
+                }
+                blockMetas.put(blockName(blockMeta), blockMeta);
+            }
+        }
+        return blockMetas;
+    }
+
+    // Rewrites the index with exactly one entry per block
+    public synchronized void compactIndex(Collection<ProtoHDFS.BlockMeta> blockMetas) throws IOException {
+        File tmpFile = new File(this.root, INDEX_FILE + ".tmp");
+        try(OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(tmpFile))){
+            for(ProtoHDFS.BlockMeta blockMeta : blockMetas){
+                blockMeta.writeDelimitedTo(outputStream);
+            }
+        }
+
+        Files.move(tmpFile.toPath(), this.indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void close() throws IOException {
+        this.containers.close();
+    }
+}
@@ -0,0 +1,219 @@
+package ds.hdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Writes block files through a FileChannel using pooled direct buffers, and makes them durable according to the
+// durability mode. Every fsync is timed so the cost of each mode can be seen in the fsync latency histogram
+public class BlockWriter {
+    public enum Durability {
+        // Leave the data in the page cache and let the OS write it out whenever it wants
+        NONE,
+        // Force every block file (and the directory entries of new files) to disk before its write returns
+        SYNC_ON_CLOSE,
+        // Writers hand their files to one sync thread that gathers the files arriving within a short window and
+        // forces each distinct file once for all of them. Writers appending to the same container file share one
+        // fsync, while writers of separate block files still get one fsync each
+        GROUP_FSYNC
+    }
+
+    protected final Durability durability;
+    protected final DirectBufferPool bufferPool;
+    protected final LatencyHistogram fsyncLatencies;
+    protected final long groupWindowMicros;
+    protected final LinkedBlockingQueue<PendingSync> pendingSyncs;
+    protected volatile boolean running;
+
+    public BlockWriter(Durability durability, int bufferSize, int maxPooledBuffers, long groupWindowMicros){
+        this.durability = durability;
+        this.bufferPool = new DirectBufferPool(bufferSize, maxPooledBuffers);
+        this.fsyncLatencies = new LatencyHistogram();
+        this.groupWindowMicros = groupWindowMicros;
+        this.pendingSyncs = new LinkedBlockingQueue<>();
+        this.running = true;
+
+        if(durability == Durability.GROUP_FSYNC){
+            Thread syncThread = new Thread(this::syncLoop, "GroupFsync");
+            syncThread.setDaemon(true);
+            syncThread.start();
+        }
+    }
+
+    public Durability getDurability(){
+        return this.durability;
+    }
+
+    public LatencyHistogram getFsyncLatencies(){
+        return this.fsyncLatencies;
+    }
+
+    // Replaces the contents of the file with the given bytes and returns once they are as durable as the mode asks
+    public void write(File file, ByteBuffer contents) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            writeFully(channel, contents);
+            sync(channel);
+        }
+    }
+
+    // Makes what was already written to the channel as durable as the mode asks, for files written elsewhere such as
+    // container files
+    public void sync(FileChannel channel) throws IOException {
+        if(this.durability == Durability.SYNC_ON_CLOSE){
+            force(channel);
+        }else if(this.durability == Durability.GROUP_FSYNC){
+            groupForce(channel);
+        }
+    }
+
+    // Makes the entries of the directory (new, renamed or deleted files) as durable as the mode asks
+    public void syncDirectory(File directory) throws IOException {
+        if(this.durability == Durability.NONE){
+            return;
+        }
+        try(FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)){
+            sync(channel);
+        }
+    }
+
+    // Heap buffers are copied through a pooled direct buffer, otherwise the JDK would allocate a temporary direct
+    // buffer of the full block size for every write
+    protected void writeFully(FileChannel channel, ByteBuffer contents) throws IOException {
+        ByteBuffer source = contents.duplicate();
+        if(source.isDirect()){
+            while(source.hasRemaining()){
+                channel.write(source);
+            }
+            return;
+        }
+
+        ByteBuffer buffer = this.bufferPool.acquire();
+        try{
+            while(source.hasRemaining()){
+                buffer.clear();
+                ByteBuffer slice = source.duplicate();
+                slice.limit(slice.position() + Math.min(buffer.capacity(), slice.remaining()));
+                buffer.put(slice);
+                source.position(slice.position());
+
+                buffer.flip();
+                while(buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+            }
+        }finally{
+            this.bufferPool.release(buffer);
+        }
+    }
+
+    protected void force(FileChannel channel) throws IOException {
+        long start = System.nanoTime();
+        channel.force(true);
+        this.fsyncLatencies.record(System.nanoTime() - start);
+    }
+
+    // Queues the channel for the sync thread and waits until it has been forced
+    protected void groupForce(FileChannel channel) throws IOException {
+        if(!this.running){
+            throw new IOException("Block writer closed");
+        }
+        PendingSync pendingSync = new PendingSync(channel);
+        this.pendingSyncs.add(pendingSync);
+        // The writer may have been closed between the check and the add, after the sync thread's last drain. If the
+        // entry is still queued nobody else will take it, so it is forced here instead of waiting forever. If it is
+        // gone the sync thread took it and completes it
+        if(!this.running && this.pendingSyncs.remove(pendingSync)){
+            force(channel);
+            return;
+        }
+        try{
+            pendingSync.done.get();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for group fsync");
+        }catch(ExecutionException e){
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // Takes the first waiting file, gathers every other file that arrives within the group window and forces them
+    // all before waking up their writers
+    protected void syncLoop(){
+        try{
+            // Files queued before the writer was closed are still forced
+            while(this.running || !this.pendingSyncs.isEmpty()){
+                PendingSync first = this.pendingSyncs.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null){
+                    continue;
+                }
+
+                ArrayList<PendingSync> group = new ArrayList<>();
+                group.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(this.groupWindowMicros);
+                long remaining;
+                while((remaining = deadline - System.nanoTime()) > 0){
+                    PendingSync next = this.pendingSyncs.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(next == null){
+                        break;
+                    }
+                    group.add(next);
+                }
+                this.pendingSyncs.drainTo(group);
+
+                // Every writer queued its channel after writing, so one force of a channel covers all its writers
+                IdentityHashMap<FileChannel, IOException> forced = new IdentityHashMap<>();
+                for(PendingSync pendingSync : group){
+                    if(!forced.containsKey(pendingSync.channel)){
+                        try{
+                            force(pendingSync.channel);
+                            forced.put(pendingSync.channel, null);
+                        }catch(IOException e){
+                            forced.put(pendingSync.channel, e);
+                        }
+                    }
+                    IOException error = forced.get(pendingSync.channel);
+                    if(error == null){
+                        pendingSync.done.complete(null);
+                    }else{
+                        pendingSync.done.completeExceptionally(error);
+                    }
+                }
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+
+        PendingSync pendingSync;
+        while((pendingSync = this.pendingSyncs.poll()) != null){
+            pendingSync.done.completeExceptionally(new IOException("Block writer closed"));
+        }
+    }
+
+    public void close(){
+        this.running = false;
+    }
+
+    // A file waiting to be forced by the sync thread
+    protected static class PendingSync {
+        protected final FileChannel channel;
+        protected final CompletableFuture<Void> done;
+
+        protected PendingSync(FileChannel channel){
+            this.channel = channel;
+            this.done = new CompletableFuture<>();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package ds.hdfs;
+
+// Queue between the readers of an RpcServer and its handler threads. Readers never wait on it: a call that doesn't
+// fit is answered right away with RETRY_LATER, so an overloaded server tells its clients to back off instead of
+// buffering calls without limit
+public interface CallQueue {
+    // Adds the call if there is room for it
+    boolean offer(RpcServer.Call call);
+
+    // Waits for the next call a handler should run
+    RpcServer.Call take() throws InterruptedException;
+
+    int size();
+
+    int getCapacity();
+
+    default void close(){
+    }
+}
@@ -1,21 +1,49 @@
 package ds.hdfs;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import proto.ProtoHDFS;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class Client {
+    // Size of every block of a replicated file but the last one
+    protected static final int BLOCK_SIZE = 64000000;
+
     public DataNodeInterface dataStub;
     public NameNodeInterface nameStub;
+    // Read blocks directly from disk when the data node holding them runs on this host
+    protected boolean shortCircuitReads = true;
+    // Talks to the name node over the RPC transport instead of RMI once set, see useRpcNameNode
+    protected NameNodeInterface rpcNameStub;
+    // File handles this client got from the name node recently, null to always ask the name node
+    protected FileHandleCache fileHandleCache = new FileHandleCache(30000, 10000);
+    // RMI registry where every data node is bound under its data id. Read these from the config file later
+    protected String dataRegistryIp = "192.168.12.1";
+    protected int dataRegistryPort = 1099;
+    // Data nodes that turned down a short-circuit read because they run on another host
+    protected final Set<String> remoteDataNodes = ConcurrentHashMap.newKeySet();
+    // Sent with every block read so the data nodes keep the read-ahead of this client apart from other clients'
+    protected final String clientId = UUID.randomUUID().toString();
 
     public Client(){
         // Put stuff here later
@@ -30,7 +58,75 @@ public class Client {
         }
     }
 
+    // Looks the data node up by its data id in the registry the data nodes bind to
+    public DataNodeInterface getDataStub(String dataId){
+        return getDataStub(dataId, this.dataRegistryIp, this.dataRegistryPort);
+    }
+
+    public void setDataRegistry(String dataRegistryIp, int dataRegistryPort){
+        this.dataRegistryIp = dataRegistryIp;
+        this.dataRegistryPort = dataRegistryPort;
+    }
+
+    // Makes all name node calls of this client go over the RPC transport to the name node at the address
+    public void useRpcNameNode(InetSocketAddress nameNodeAddress) throws IOException {
+        this.rpcNameStub = new NameNodeRpcStub(new RpcClient(2), nameNodeAddress, 30000);
+    }
+
+    // Replaces the file handle cache, or turns caching off if it is null
+    public void setFileHandleCache(FileHandleCache fileHandleCache){
+        this.fileHandleCache = fileHandleCache;
+    }
+
+    public FileHandleCache getFileHandleCache(){
+        return this.fileHandleCache;
+    }
+
+    // The cached file handle of the file, if there is one. Within its time to live it is used without asking the name
+    // node at all. Once it expired it is used again only if the name node says it is still current: the file has the
+    // same generation and nobody is writing or appending to it. That takes one small call instead of opening and
+    // closing the file, and starts a new time to live
+    protected ProtoHDFS.FileHandle cachedFileHandle(String fileName){
+        if(this.fileHandleCache == null){
+            return null;
+        }
+        ProtoHDFS.FileHandle cachedFileHandle = this.fileHandleCache.get(fileName);
+        if(cachedFileHandle != null){
+            return cachedFileHandle;
+        }
+        cachedFileHandle = this.fileHandleCache.getExpired(fileName);
+        if(cachedFileHandle == null){
+            return null;
+        }
+
+        ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+        requestBuilder.setRequestId(UUID.randomUUID().toString());
+        requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.READ);
+        requestBuilder.setFileHandle(ProtoHDFS.FileHandle.newBuilder().setFileName(fileName).setFileSize(0));
+        ProtoHDFS.Request request = requestBuilder.buildPartial();
+        requestBuilder.clear();
+
+        try{
+            // Read these variables from the config file later
+            NameNodeInterface nameStub = getNameStub("namenode", "192.168.12.75", 1099);
+            ProtoHDFS.Response response = ProtoHDFS.Response.parseFrom(nameStub.getFileGeneration(
+                    request.toByteArray()));
+            if(response.getResponseType() == ProtoHDFS.Response.ResponseType.SUCCESS
+                    && response.getFileHandle().getGeneration() == cachedFileHandle.getGeneration()){
+                this.fileHandleCache.put(cachedFileHandle);
+                return cachedFileHandle;
+            }
+        }catch(IOException e){
+            System.out.println("Could not check the cached file handle of " + fileName + ": " + e.getMessage());
+        }
+        this.fileHandleCache.invalidate(fileName);
+        return null;
+    }
+
     public NameNodeInterface getNameStub(String nameId, String nameIp, int port){
+        if(this.rpcNameStub != null){
+            return this.rpcNameStub;
+        }
         while(true){
             try{
                 Registry registry = LocateRegistry.getRegistry(nameId, port);
@@ -41,28 +137,45 @@ public class Client {
 
     // This method stores the file in the HDFS
     public void putFile(String fileName) {
+        putFile(fileName, null);
+    }
+
+    // This method stores the file in the HDFS. If an erasure coding policy is given the file is striped across the
+    // data nodes with parity blocks instead of being replicated
+    public void putFile(String fileName, ProtoHDFS.EcPolicy ecPolicy) {
+        putFile(fileName, ecPolicy, ProtoHDFS.CompressionCodec.NONE, 0);
+    }
+
+    // This method stores the file in the HDFS. The codec and level (a java.util.zip.Deflater level for DEFLATE) decide
+    // how the data nodes compress the blocks of the file on disk
+    public void putFile(String fileName, ProtoHDFS.EcPolicy ecPolicy, ProtoHDFS.CompressionCodec codec,
+                        int codecLevel) {
         System.out.println("Going to put file " + fileName);
+        if(codec != ProtoHDFS.CompressionCodec.NONE && !BlockCompressor.isValidLevel(codecLevel)){
+            System.out.println("Compression level " + codecLevel + " is not between -1 and 9");
+            return;
+        }
         File file = new File(fileName);
+        if(this.fileHandleCache != null){
+            this.fileHandleCache.invalidate(fileName);
+        }
 
+        Tracer.Span putSpan = Tracer.NOOP_SPAN;
         try{
             // Make block size configurable later
-            int blockSize = 64000000;
+            int blockSize = BLOCK_SIZE;
             int numBlocks = (int) (file.length() / blockSize + 1);
-            ArrayList<byte[]> blocks = new ArrayList<>();
-
-            byte[] blockContents = new byte[blockSize];
-            FileInputStream fileInputStream = new FileInputStream(file);
-            while(fileInputStream.read(blockContents) != -1){
-                blocks.add(blockContents);
-            }
-            fileInputStream.close();
-
-            // Just a sanity check
-            assert blocks.size() == numBlocks : "Something went wrong! Did not properly read file into blocks!";
 
             ProtoHDFS.FileHandle.Builder fileHandleBuilder = ProtoHDFS.FileHandle.newBuilder();
             fileHandleBuilder.setFileName(fileName);
             fileHandleBuilder.setFileSize(file.length());
+            if(ecPolicy != null){
+                fileHandleBuilder.setEcPolicy(ecPolicy);
+            }
+            if(codec != ProtoHDFS.CompressionCodec.NONE){
+                fileHandleBuilder.setCodec(codec);
+                fileHandleBuilder.setCodecLevel(codecLevel);
+            }
             ProtoHDFS.FileHandle fileHandle = fileHandleBuilder.buildPartial();
 
             ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
@@ -72,6 +185,8 @@ public class Client {
             requestBuilder.setFileHandle(fileHandle);
             ProtoHDFS.Request openRequest = requestBuilder.buildPartial();
             requestBuilder.clear();
+            // The open request id traces the whole put, every later request carries it as its traceId
+            putSpan = Tracer.start(requestId, "Client.putFile").arg("file", fileName);
 
             // Read these variables from the config file later
             String nameId = "namenode";
@@ -79,56 +194,59 @@ public class Client {
             int port = 1099;
 
             NameNodeInterface nameStub = getNameStub(nameId, nameIp, port);
-            byte[] openResponseBytes = nameStub.openFile(openRequest.toByteArray());
+            byte[] openResponseBytes;
+            Tracer.Span openFileSpan = Tracer.start(requestId, "Client.openFile");
+            try{
+                openResponseBytes = nameStub.openFile(openRequest.toByteArray());
+            }finally{
+                openFileSpan.close();
+            }
 
             ProtoHDFS.Response openResponse = ProtoHDFS.Response.parseFrom(openResponseBytes);
             String responseId = openResponse.getResponseId();
             ProtoHDFS.Response.ResponseType openResponseType = openResponse.getResponseType();
-            if(openResponseType == ProtoHDFS.Response.ResponseType.SUCCESS){
+            boolean opened = openResponseType == ProtoHDFS.Response.ResponseType.SUCCESS;
+            if(opened && openResponse.getFileHandle().hasEcPolicy()){
+                System.out.println("File " + fileName + " successfully opened");
+                writeStriped(file, openResponse.getFileHandle(), blockSize, nameStub, requestId);
+            }else if(opened){
                 // If write file completed successfully send write requests to the data nodes
                 // using the file handle obtained from the response
                 System.out.println("File " + fileName + " successfully opened");
 
+                ArrayList<byte[]> blocks = new ArrayList<>();
+                FileInputStream fileInputStream = new FileInputStream(file);
+                for(int i = 0; i < numBlocks; i++){
+                    blocks.add(readFully(fileInputStream, blockSize));
+                }
+                fileInputStream.close();
+
                 fileHandle = openResponse.getFileHandle();
                 List<ProtoHDFS.Pipeline> pipelineList = fileHandle.getPipelinesList();
                 ArrayList<ProtoHDFS.Pipeline> pipelineArrayList = new ArrayList<>(pipelineList);
-                for(int i = 0; i < numBlocks; i++){
+                for(int i = 0; i < numBlocks && renewLease(nameStub, fileName, requestId); i++){
                     byte[] blockContent = blocks.get(i);
                     ProtoHDFS.Pipeline pipeline = pipelineArrayList.get(i);
                     List<ProtoHDFS.Block> blocksList = pipeline.getBlocksList();
 
-                    ArrayList<ProtoHDFS.Block> requestBlocks = new ArrayList<>();
+                    // Every replica goes to the data node the name node placed it on, so a later append or read
+                    // finds it there
                     for(ProtoHDFS.Block block : blocksList){
-                        ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
-                        blockBuilder.setBlockMeta(block.getBlockMeta());
-                        blockBuilder.setBlockContents(Arrays.toString(blockContent));
-                        ProtoHDFS.Block requestBlock = blockBuilder.build();
-                        blockBuilder.clear();
-                        requestBlocks.add(requestBlock);
-                    }
-
-                    String writeRequestId = UUID.randomUUID().toString();
-                    requestBuilder.setRequestId(writeRequestId);
-                    requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.WRITE);
-                    requestBuilder.addAllBlock(requestBlocks);
-                    ProtoHDFS.Request writeBlockRequest = requestBuilder.buildPartial();
-                    requestBuilder.clear();
-
-                    // Configure these variables later
-                    String dataId = "data1";
-                    String dataIp = "192.168.12.1";
-                    int dataPort = 1099;
-
-                    DataNodeInterface dataStub = getDataStub(dataId, dataIp, dataPort);
-                    byte[] writeResponseBytes = dataStub.writeBlock(writeBlockRequest.toByteArray());
-                    ProtoHDFS.Response writeResponse = ProtoHDFS.Response.parseFrom(writeResponseBytes);
-                    String writeResponseId = writeResponse.getResponseId();
-                    ProtoHDFS.Response.ResponseType writeResponseType = writeResponse.getResponseType();
-
-                    if(writeResponseType == ProtoHDFS.Response.ResponseType.SUCCESS){
-                        System.out.println("File " + fileName + " successfully written");
-                    }else{
-                        System.out.println(writeResponse.getErrorMessage());
+                        String dataId = block.getBlockMeta().getDataId();
+                        boolean written;
+                        Tracer.Span writeBlockSpan = Tracer.start(requestId, "Client.writeBlock").arg("block", i)
+                                .arg("dataId", dataId);
+                        try{
+                            written = writeUnit(block, blockContent);
+                        }finally{
+                            writeBlockSpan.close();
+                        }
+
+                        if(written){
+                            System.out.println("File " + fileName + " successfully written to " + dataId);
+                        }else{
+                            System.out.println("Failed to write block " + i + " of " + fileName + " to " + dataId);
+                        }
                     }
                 }
             }else{
@@ -139,11 +257,20 @@ public class Client {
             // Now send a close request to close (or unlock) the other file handle so other threads can use it
             String closeRequestId = UUID.randomUUID().toString();
             requestBuilder.setRequestId(closeRequestId);
+            requestBuilder.setTraceId(requestId);
             requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.CLOSE);
+            requestBuilder.setFileHandle(fileHandle);
+            requestBuilder.setOpenRequestId(requestId);
             ProtoHDFS.Request closeRequest = requestBuilder.buildPartial();
             requestBuilder.clear();
 
-            byte[] closeResponseBytes = nameStub.closeFile(closeRequest.toByteArray());
+            byte[] closeResponseBytes;
+            Tracer.Span closeFileSpan = Tracer.start(requestId, "Client.closeFile");
+            try{
+                closeResponseBytes = nameStub.closeFile(closeRequest.toByteArray());
+            }finally{
+                closeFileSpan.close();
+            }
             ProtoHDFS.Response closeResponse = ProtoHDFS.Response.parseFrom(closeResponseBytes);
             String closeResponseId = closeResponse.getResponseId();
             ProtoHDFS.Response.ResponseType closeResponseType = closeResponse.getResponseType();
@@ -169,6 +296,8 @@ public class Client {
                 System.out.println("An unspecified error has occurred in put(): " + e.getMessage());
             }
             e.printStackTrace();
+        }finally{
+            putSpan.close();
         }
     }
 
@@ -176,6 +305,20 @@ public class Client {
         System.out.println("Going to get " + fileName);
         File file = new File(fileName);
 
+        // A current cached file handle saves opening and closing the file, unless reading with it fails
+        ProtoHDFS.FileHandle cachedFileHandle = cachedFileHandle(fileName);
+        if(cachedFileHandle != null){
+            try(FileOutputStream fileOutputStream = new FileOutputStream(file)){
+                readFileContents(cachedFileHandle, fileOutputStream);
+                System.out.println("File " + fileName + " read with a cached file handle");
+                return;
+            }catch(IOException e){
+                System.out.println("Cached file handle of " + fileName + " is stale, asking the name node");
+                this.fileHandleCache.invalidate(fileName);
+            }
+        }
+
+        Tracer.Span getSpan = Tracer.NOOP_SPAN;
         try{
             ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
             if(file.exists() || file.createNewFile()){
@@ -193,6 +336,7 @@ public class Client {
                 requestBuilder.setFileHandle(fileHandle);
                 ProtoHDFS.Request openRequest = requestBuilder.buildPartial();
                 requestBuilder.clear();
+                getSpan = Tracer.start(openRequestId, "Client.getFile").arg("file", fileName);
 
                 // Configure these values later
                 String nameId = "namenode";
@@ -200,12 +344,21 @@ public class Client {
                 int port = 1099;
 
                 NameNodeInterface nameStub = getNameStub(nameId, nameIp, port);
-                byte[] openResponseBytes = nameStub.openFile(openRequest.toByteArray());
+                byte[] openResponseBytes;
+                Tracer.Span openFileSpan = Tracer.start(openRequestId, "Client.openFile");
+                try{
+                    openResponseBytes = nameStub.openFile(openRequest.toByteArray());
+                }finally{
+                    openFileSpan.close();
+                }
 
                 ProtoHDFS.Response openResponse = ProtoHDFS.Response.parseFrom(openResponseBytes);
                 String openResponseId = openResponse.getResponseId();
                 ProtoHDFS.Response.ResponseType openResponseType = openResponse.getResponseType();
                 fileHandle = openResponse.getFileHandle();
+                if(openResponseType == ProtoHDFS.Response.ResponseType.SUCCESS && this.fileHandleCache != null){
+                    this.fileHandleCache.put(fileHandle);
+                }
 
                 List<ProtoHDFS.Pipeline> pipelines = fileHandle.getPipelinesList();
                 ArrayList<List<ProtoHDFS.Block>> blocksList = pipelines.stream()
@@ -213,28 +366,39 @@ public class Client {
                         .collect(Collectors.toCollection(ArrayList::new));
                 boolean hasMissingBlock = blocksList.parallelStream().anyMatch(List::isEmpty);
 
-                if(hasMissingBlock){
-                    // If the list of block replicas is empty for any of the blocks, immediately throw an error
-                    // Maybe toss out the file as well since it's corrupted?
-                }else{
-                    ArrayList<ProtoHDFS.Block> readBlocks = blocksList.stream()
-                            .map(p -> p.get(0))
-                            .collect(Collectors.toCollection(ArrayList::new));
-                    // Writes the contents from a copy of each block into the fileOutputStream
-                    for (ProtoHDFS.Block b : readBlocks) {
-                        byte[] bytes = b.getBlockContents().getBytes();
-                        fileOutputStream.write(bytes);
+                Tracer.Span readBlocksSpan = Tracer.start(openRequestId, "Client.readBlocks")
+                        .arg("blocks", blocksList.size());
+                try{
+                    if(fileHandle.hasEcPolicy()){
+                        // Erasure coded files are read unit by unit from the data nodes and missing units are rebuilt
+                        readStriped(fileHandle, fileOutputStream);
+                    }else if(hasMissingBlock){
+                        // If the list of block replicas is empty for any of the blocks, immediately throw an error
+                        // Maybe toss out the file as well since it's corrupted?
+                    }else{
+                        readReplicated(blocksList, fileOutputStream);
                     }
+                }finally{
+                    readBlocksSpan.close();
                 }
 
                 // Now send a close request to close (or unlock) the other file handle so other threads can use it
                 String closeRequestId = UUID.randomUUID().toString();
                 requestBuilder.setRequestId(closeRequestId);
+                requestBuilder.setTraceId(openRequestId);
                 requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.CLOSE);
+                requestBuilder.setFileHandle(fileHandle);
+                requestBuilder.setOpenRequestId(openRequestId);
                 ProtoHDFS.Request closeRequest = requestBuilder.buildPartial();
                 requestBuilder.clear();
 
-                byte[] closeResponseBytes = nameStub.closeFile(closeRequest.toByteArray());
+                byte[] closeResponseBytes;
+                Tracer.Span closeFileSpan = Tracer.start(openRequestId, "Client.closeFile");
+                try{
+                    closeResponseBytes = nameStub.closeFile(closeRequest.toByteArray());
+                }finally{
+                    closeFileSpan.close();
+                }
                 ProtoHDFS.Response closeResponse = ProtoHDFS.Response.parseFrom(closeResponseBytes);
                 String closeResponseId = closeResponse.getResponseId();
                 ProtoHDFS.Response.ResponseType closeResponseType = closeResponse.getResponseType();
@@ -251,6 +415,430 @@ public class Client {
             }
         }catch(Exception e){
             System.out.println("File " + fileName + " not found!");
+        }finally{
+            getSpan.close();
+        }
+    }
+
+    // Writes the contents of a file into the output stream, failing if any block has no replica that can be read
+    protected void readFileContents(ProtoHDFS.FileHandle fileHandle, OutputStream outputStream) throws IOException {
+        if(fileHandle.hasEcPolicy()){
+            readStriped(fileHandle, outputStream);
+            return;
+        }
+        ArrayList<List<ProtoHDFS.Block>> blocksList = fileHandle.getPipelinesList().stream()
+                .map(ProtoHDFS.Pipeline::getBlocksList)
+                .collect(Collectors.toCollection(ArrayList::new));
+        if(blocksList.stream().anyMatch(List::isEmpty)){
+            throw new IOException("File " + fileHandle.getFileName() + " has a block without replicas");
+        }
+        readReplicated(blocksList, outputStream);
+    }
+
+    // Writes the contents from a copy of each block into the output stream, trying the next replica whenever one
+    // can't be read
+    protected void readReplicated(List<List<ProtoHDFS.Block>> blocksList, OutputStream outputStream)
+            throws IOException {
+        for(List<ProtoHDFS.Block> replicas : blocksList){
+            ByteBuffer buffer = null;
+            for(int i = 0; i < replicas.size() && buffer == null; i++){
+                buffer = readUnitBuffer(replicas.get(i), 0, -1);
+            }
+            if(buffer == null){
+                throw new IOException("No replica of block "
+                        + replicas.get(0).getBlockMeta().getBlockNumber() + " could be read");
+            }
+            writeBuffer(buffer, outputStream);
+        }
+    }
+
+    // Writes the buffer without first copying it into a byte array. A file is written through its channel, which
+    // takes a mapped buffer directly
+    protected void writeBuffer(ByteBuffer buffer, OutputStream outputStream) throws IOException {
+        if(buffer.hasArray()){
+            outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        WritableByteChannel channel = outputStream instanceof FileOutputStream
+                ? ((FileOutputStream) outputStream).getChannel() : Channels.newChannel(outputStream);
+        while(buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+    }
+
+    // Appends the bytes to the end of a replicated file, creating the file if it doesn't exist yet. The last block of
+    // the file is extended on each of its replicas and the rest of the bytes go to the new blocks the name node adds
+    public void appendFile(String fileName, byte[] data) {
+        System.out.println("Going to append " + data.length + " bytes to " + fileName);
+        if(this.fileHandleCache != null){
+            this.fileHandleCache.invalidate(fileName);
+        }
+
+        try{
+            ProtoHDFS.FileHandle.Builder fileHandleBuilder = ProtoHDFS.FileHandle.newBuilder();
+            fileHandleBuilder.setFileName(fileName);
+            fileHandleBuilder.setFileSize(data.length);
+            ProtoHDFS.FileHandle fileHandle = fileHandleBuilder.buildPartial();
+            fileHandleBuilder.clear();
+
+            ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+            String openRequestId = UUID.randomUUID().toString();
+            requestBuilder.setRequestId(openRequestId);
+            requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.APPEND);
+            requestBuilder.setFileHandle(fileHandle);
+            ProtoHDFS.Request openRequest = requestBuilder.buildPartial();
+            requestBuilder.clear();
+
+            // Read these variables from the config file later
+            String nameId = "namenode";
+            String nameIp = "192.168.12.75";
+            int port = 1099;
+
+            NameNodeInterface nameStub = getNameStub(nameId, nameIp, port);
+            byte[] openResponseBytes = nameStub.openFile(openRequest.toByteArray());
+            ProtoHDFS.Response openResponse = ProtoHDFS.Response.parseFrom(openResponseBytes);
+            if(openResponse.getResponseType() != ProtoHDFS.Response.ResponseType.SUCCESS){
+                System.out.println(openResponse.getErrorMessage());
+                return;
+            }
+
+            // The file handle already has the new size, so the appended bytes start at the old size
+            fileHandle = openResponse.getFileHandle();
+            long fileSize = fileHandle.getFileSize();
+            long oldFileSize = fileSize - data.length;
+            boolean appended = true;
+            long position = oldFileSize;
+            while(position < fileSize && appended){
+                appended = renewLease(nameStub, fileName, openRequestId);
+                int blockIndex = (int) (position / BLOCK_SIZE);
+                long blockOffset = position % BLOCK_SIZE;
+                int pieceLength = (int) Math.min(fileSize - position, BLOCK_SIZE - blockOffset);
+                int dataOffset = (int) (position - oldFileSize);
+                byte[] piece = Arrays.copyOfRange(data, dataOffset, dataOffset + pieceLength);
+
+                // The append stops at the first replica that fails, the name node then keeps the old file size
+                List<ProtoHDFS.Block> replicas = fileHandle.getPipelines(blockIndex).getBlocksList();
+                for(int i = 0; i < replicas.size() && appended; i++){
+                    appended = appendUnit(replicas.get(i), blockOffset, piece);
+                }
+                position += pieceLength;
+            }
+
+            if(appended){
+                System.out.println("Appended " + data.length + " bytes to " + fileName);
+            }else{
+                System.out.println("Failed to append to every replica of " + fileName);
+            }
+
+            requestBuilder.setRequestId(UUID.randomUUID().toString());
+            requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.CLOSE);
+            requestBuilder.setFileHandle(fileHandle);
+            requestBuilder.setOpenRequestId(openRequestId);
+            requestBuilder.setWriteSucceeded(appended);
+            ProtoHDFS.Request closeRequest = requestBuilder.buildPartial();
+            requestBuilder.clear();
+
+            byte[] closeResponseBytes = nameStub.closeFile(closeRequest.toByteArray());
+            ProtoHDFS.Response closeResponse = ProtoHDFS.Response.parseFrom(closeResponseBytes);
+            System.out.println(closeResponse.getErrorMessage());
+        }catch(Exception e){
+            if(e instanceof RemoteException){
+                System.out.println("Something went wrong when working with name node stub or data node stub!");
+            }else if(e instanceof InvalidProtocolBufferException){
+                System.out.println("Tried to parse object in appendFile() that is not defined in protocol buffer!");
+            }else{
+                // Some general unspecified error
+                System.out.println("An unspecified error has occurred in appendFile(): " + e.getMessage());
+            }
+            e.printStackTrace();
+        }
+    }
+
+    // Renews the lease of the open request on the file before the next block is written, so a long write keeps its
+    // lock. Returns false if the lease ran out already and the write has to stop
+    protected boolean renewLease(NameNodeInterface nameStub, String fileName, String openRequestId){
+        ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+        requestBuilder.setRequestId(UUID.randomUUID().toString());
+        requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.UPDATE);
+        requestBuilder.setFileHandle(ProtoHDFS.FileHandle.newBuilder().setFileName(fileName).setFileSize(0));
+        requestBuilder.setOpenRequestId(openRequestId);
+        ProtoHDFS.Request renewRequest = requestBuilder.buildPartial();
+        requestBuilder.clear();
+
+        try{
+            ProtoHDFS.Response renewResponse = ProtoHDFS.Response.parseFrom(nameStub.renewLease(
+                    renewRequest.toByteArray()));
+            if(renewResponse.getResponseType() == ProtoHDFS.Response.ResponseType.SUCCESS){
+                return true;
+            }
+            System.out.println(renewResponse.getErrorMessage());
+        }catch(IOException e){
+            System.out.println("Could not renew the lease on " + fileName + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    // Reads up to length bytes from the stream, stopping early only at the end of the stream
+    protected byte[] readFully(InputStream inputStream, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        int total = 0;
+        int readBytes;
+        while(total < length && (readBytes = inputStream.read(buffer, total, length - total)) != -1){
+            total += readBytes;
+        }
+        return total == length ? buffer : Arrays.copyOf(buffer, total);
+    }
+
+    // Writes an erasure coded file one block group at a time. The group is cut into cells which are dealt round robin
+    // to the data units, parity units are computed from them and every unit is written to its own data node in parallel
+    protected void writeStriped(File file, ProtoHDFS.FileHandle fileHandle, int blockSize, NameNodeInterface nameStub,
+                                String openRequestId) throws IOException {
+        ProtoHDFS.EcPolicy ecPolicy = fileHandle.getEcPolicy();
+        ReedSolomon codec = new ReedSolomon(ecPolicy);
+        int dataUnits = ecPolicy.getDataUnits();
+        int cellSize = ecPolicy.getCellSize();
+        int groupSize = blockSize * dataUnits;
+
+        FileInputStream fileInputStream = new FileInputStream(file);
+        for(ProtoHDFS.Pipeline pipeline : fileHandle.getPipelinesList()){
+            if(!renewLease(nameStub, fileHandle.getFileName(), openRequestId)){
+                break;
+            }
+            byte[] groupData = readFully(fileInputStream, groupSize);
+
+            int stripeSize = cellSize * dataUnits;
+            int numStripes = (groupData.length + stripeSize - 1) / stripeSize;
+            byte[][] data = new byte[dataUnits][numStripes * cellSize];
+            for(int offset = 0; offset < groupData.length; offset += cellSize){
+                int cell = offset / cellSize;
+                int length = Math.min(cellSize, groupData.length - offset);
+                System.arraycopy(groupData, offset, data[cell % dataUnits], (cell / dataUnits) * cellSize, length);
+            }
+            byte[][] parity = codec.encode(data);
+
+            List<ProtoHDFS.Block> units = new ArrayList<>(pipeline.getBlocksList());
+            units.sort(new RepSorter());
+            long failedUnits = IntStream.range(0, units.size()).parallel()
+                    .filter(i -> !writeUnit(units.get(i), i < dataUnits ? data[i] : parity[i - dataUnits]))
+                    .count();
+
+            if(failedUnits > 0){
+                System.out.println(String.format("Block group %1$d of %2$s has %3$d units that failed to write",
+                        pipeline.getPipelineNumber(), fileHandle.getFileName(), failedUnits));
+            }else{
+                System.out.println(String.format("Block group %1$d of %2$s successfully written",
+                        pipeline.getPipelineNumber(), fileHandle.getFileName()));
+            }
+        }
+        fileInputStream.close();
+    }
+
+    // Reads an erasure coded file. All data units of a group are read in parallel and if any of them can't be read
+    // the parity units are fetched and the missing cells are reconstructed before being written out
+    protected void readStriped(ProtoHDFS.FileHandle fileHandle, OutputStream outputStream) throws IOException {
+        ProtoHDFS.EcPolicy ecPolicy = fileHandle.getEcPolicy();
+        ReedSolomon codec = new ReedSolomon(ecPolicy);
+        int dataUnits = ecPolicy.getDataUnits();
+        int cellSize = ecPolicy.getCellSize();
+        long remaining = fileHandle.getFileSize();
+
+        for(ProtoHDFS.Pipeline pipeline : fileHandle.getPipelinesList()){
+            List<ProtoHDFS.Block> units = new ArrayList<>(pipeline.getBlocksList());
+            units.sort(new RepSorter());
+
+            byte[][] unitData = new byte[units.size()][];
+            IntStream.range(0, dataUnits).parallel().forEach(i -> unitData[i] = readUnit(units.get(i)));
+
+            boolean degraded = IntStream.range(0, dataUnits).anyMatch(i -> unitData[i] == null);
+            if(degraded){
+                System.out.println(String.format("Block group %1$d of %2$s is degraded, reconstructing",
+                        pipeline.getPipelineNumber(), fileHandle.getFileName()));
+                IntStream.range(dataUnits, units.size()).parallel().forEach(i -> unitData[i] = readUnit(units.get(i)));
+                codec.decode(unitData);
+            }
+
+            int unitLength = unitData[0].length;
+            for(int offset = 0; offset < unitLength && remaining > 0; offset += cellSize){
+                for(int d = 0; d < dataUnits && remaining > 0; d++){
+                    int length = (int) Math.min(cellSize, remaining);
+                    outputStream.write(unitData[d], offset, length);
+                    remaining -= length;
+                }
+            }
+        }
+    }
+
+    // Writes a single unit of a block group to the data node given in its block meta
+    protected boolean writeUnit(ProtoHDFS.Block block, byte[] contents) {
+        try{
+            ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
+            blockBuilder.setBlockMeta(block.getBlockMeta());
+            blockBuilder.setBlockContents(ByteString.copyFrom(contents));
+            ProtoHDFS.Block requestBlock = blockBuilder.build();
+            blockBuilder.clear();
+
+            ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+            requestBuilder.setRequestId(UUID.randomUUID().toString());
+            requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.WRITE);
+            requestBuilder.addBlock(requestBlock);
+            ProtoHDFS.Request writeRequest = requestBuilder.buildPartial();
+            requestBuilder.clear();
+
+            DataNodeInterface dataStub = getDataStub(block.getBlockMeta().getDataId());
+            byte[] writeResponseBytes = dataStub.writeBlock(writeRequest.toByteArray());
+            ProtoHDFS.Response writeResponse = ProtoHDFS.Response.parseFrom(writeResponseBytes);
+            return writeResponse.getResponseType() == ProtoHDFS.Response.ResponseType.SUCCESS;
+        }catch(IOException e){
+            System.out.println("Failed to write unit to data node " + block.getBlockMeta().getDataId());
+            return false;
+        }
+    }
+
+    // Appends the contents to one replica of a block, which must currently hold exactly offset bytes
+    protected boolean appendUnit(ProtoHDFS.Block block, long offset, byte[] contents) {
+        try{
+            ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
+            blockBuilder.setBlockMeta(block.getBlockMeta());
+            blockBuilder.setBlockContents(ByteString.copyFrom(contents));
+            ProtoHDFS.Block requestBlock = blockBuilder.build();
+            blockBuilder.clear();
+
+            ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+            requestBuilder.setRequestId(UUID.randomUUID().toString());
+            requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.APPEND);
+            requestBuilder.addBlock(requestBlock);
+            requestBuilder.setOffset(offset);
+            ProtoHDFS.Request appendRequest = requestBuilder.buildPartial();
+            requestBuilder.clear();
+
+            DataNodeInterface dataStub = getDataStub(block.getBlockMeta().getDataId());
+            byte[] appendResponseBytes = dataStub.writeBlock(appendRequest.toByteArray());
+            ProtoHDFS.Response appendResponse = ProtoHDFS.Response.parseFrom(appendResponseBytes);
+            if(appendResponse.getResponseType() != ProtoHDFS.Response.ResponseType.SUCCESS){
+                System.out.println(appendResponse.getErrorMessage());
+                return false;
+            }
+            return true;
+        }catch(IOException e){
+            System.out.println("Failed to append to data node " + block.getBlockMeta().getDataId());
+            return false;
+        }
+    }
+
+    // Reads a single block (or unit of a block group), returning null if the data node doesn't have it or can't be
+    // reached. When the data node runs on this host the block file is read directly instead of going through RMI
+    protected byte[] readUnit(ProtoHDFS.Block block) {
+        return readUnit(block, 0, -1);
+    }
+
+    protected byte[] readUnit(ProtoHDFS.Block block, long offset, long length) {
+        ByteBuffer buffer = readUnitBuffer(block, offset, length);
+        if(buffer == null){
+            return null;
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    // Reads length bytes of a block starting at offset, or the whole block if length is negative. Returns null if the
+    // data node can't serve it. The buffer is the mapped block file for a short-circuit read and the response bytes
+    // otherwise, so nothing is copied
+    protected ByteBuffer readUnitBuffer(ProtoHDFS.Block block, long offset, long length) {
+        String dataId = block.getBlockMeta().getDataId();
+        try{
+            ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+            requestBuilder.setRequestId(UUID.randomUUID().toString());
+            requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.READ);
+            requestBuilder.addBlock(block);
+            requestBuilder.setReaderId(this.clientId);
+            if(length >= 0){
+                requestBuilder.setOffset(offset);
+                requestBuilder.setLength(length);
+            }
+            ProtoHDFS.Request readRequest = requestBuilder.buildPartial();
+            requestBuilder.clear();
+
+            // Only the data node knows if it shares this host, so it is asked until it says no once
+            DataNodeInterface dataStub = getDataStub(dataId);
+            if(this.shortCircuitReads && !this.remoteDataNodes.contains(dataId)){
+                ByteBuffer localBuffer = readLocal(dataId, dataStub, readRequest);
+                if(localBuffer != null){
+                    return localBuffer;
+                }
+            }
+
+            byte[] readResponseBytes = dataStub.readBlock(readRequest.toByteArray());
+            ProtoHDFS.Response readResponse = ProtoHDFS.Response.parseFrom(readResponseBytes);
+            if(readResponse.getResponseType() == ProtoHDFS.Response.ResponseType.SUCCESS){
+                return readResponse.getBlock().getBlockContents().asReadOnlyByteBuffer();
+            }
+            System.out.println(readResponse.getErrorMessage());
+        }catch(IOException e){
+            System.out.println("Failed to read unit from data node " + dataId);
+        }
+        return null;
+    }
+
+    // Asks the data node for the local path of a block and maps the requested range straight from disk, checking only
+    // the checksum chunks covering it. Returns null so the caller falls back to a normal read if anything fails
+    protected ByteBuffer readLocal(String dataId, DataNodeInterface dataStub, ProtoHDFS.Request readRequest) {
+        try{
+            byte[] shortCircuitResponseBytes = dataStub.requestShortCircuitRead(readRequest.toByteArray());
+            ProtoHDFS.Response shortCircuitResponse = ProtoHDFS.Response.parseFrom(shortCircuitResponseBytes);
+            if(shortCircuitResponse.getResponseType() != ProtoHDFS.Response.ResponseType.SUCCESS){
+                if(shortCircuitResponse.getRemoteClient()){
+                    this.remoteDataNodes.add(dataId);
+                }
+                return null;
+            }
+
+            ProtoHDFS.BlockMeta blockMeta = shortCircuitResponse.getBlock().getBlockMeta();
+            String localPath = shortCircuitResponse.getLocalPath();
+            try(FileChannel fileChannel = FileChannel.open(Paths.get(localPath), StandardOpenOption.READ)){
+                long blockLength = blockMeta.hasBlockLength() ? blockMeta.getBlockLength() : fileChannel.size();
+                long offset = readRequest.getOffset();
+                long length = Math.min(readRequest.hasLength() ? readRequest.getLength() : blockLength,
+                        blockLength - offset);
+                if(offset < 0 || length < 0){
+                    return null;
+                }else if(length == 0){
+                    return ByteBuffer.allocate(0);
+                }
+
+                long alignedStart = BlockChecksum.alignStart(blockMeta, offset);
+                long alignedEnd = BlockChecksum.alignEnd(blockMeta, offset + length);
+                ByteBuffer blockBuffer;
+                if(blockMeta.getCodec() == ProtoHDFS.CompressionCodec.NONE){
+                    blockBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, alignedStart,
+                            alignedEnd - alignedStart);
+                }else{
+                    BlockCompressor blockCompressor = new BlockCompressor(blockMeta);
+                    int chunkSize = blockCompressor.getChunkSize();
+                    int firstChunk = (int) (alignedStart / chunkSize);
+                    byte[] decompressed = blockCompressor.decompress(fileChannel, 0, blockMeta, firstChunk,
+                            (int) ((alignedEnd - 1) / chunkSize));
+                    blockBuffer = ByteBuffer.wrap(decompressed, (int) (alignedStart - (long) firstChunk * chunkSize),
+                            (int) (alignedEnd - alignedStart)).slice();
+                }
+
+                int corruptChunk = BlockChecksum.verify(blockMeta, blockBuffer,
+                        BlockChecksum.chunkOf(blockMeta, alignedStart));
+                if(corruptChunk != -1){
+                    System.out.println(String.format("Checksum mismatch in chunk %1$d of local block %2$s",
+                            corruptChunk, localPath));
+                    return null;
+                }
+
+                // The mapping stays valid after the channel is closed
+                ByteBuffer view = blockBuffer.duplicate();
+                view.position((int) (offset - alignedStart));
+                view.limit((int) (offset - alignedStart + length));
+                return view.slice();
+            }
+        }catch(IOException e){
+            System.out.println("Short-circuit read failed, falling back to reading through the data node");
+            return null;
         }
     }
 
@@ -295,6 +883,108 @@ public class Client {
         }
     }
 
+    // Reads length bytes of a replicated file starting at offset, fetching only the ranges of the blocks that hold
+    // them instead of whole blocks. The result is shorter than length if the file ends first
+    public byte[] readRange(String fileName, long offset, int length) throws IOException {
+        ProtoHDFS.FileHandle cachedFileHandle = cachedFileHandle(fileName);
+        if(cachedFileHandle != null){
+            try{
+                return readRange(cachedFileHandle, offset, length);
+            }catch(IOException e){
+                // The file may have moved or grown since the handle was cached
+                this.fileHandleCache.invalidate(fileName);
+            }
+        }
+
+        List<ProtoHDFS.FileHandle> fileHandles = getFileHandles(Collections.singletonList(fileName), null);
+        if(fileHandles.isEmpty()){
+            throw new FileNotFoundException("File " + fileName + " not found!");
+        }
+        return readRange(fileHandles.get(0), offset, length);
+    }
+
+    protected byte[] readRange(ProtoHDFS.FileHandle fileHandle, long offset, int length) throws IOException {
+        String fileName = fileHandle.getFileName();
+        if(fileHandle.hasEcPolicy()){
+            throw new IOException("Ranged reads of erasure coded file " + fileName + " are not supported");
+        }
+
+        long end = Math.min(fileHandle.getFileSize(), offset + length);
+        if(offset < 0 || offset > end){
+            throw new IOException(String.format("Offset %1$d is outside %2$s", offset, fileName));
+        }
+        byte[] range = new byte[(int) (end - offset)];
+        long position = offset;
+        while(position < end){
+            int blockIndex = (int) (position / BLOCK_SIZE);
+            long blockOffset = position % BLOCK_SIZE;
+            int pieceLength = (int) Math.min(end - position, BLOCK_SIZE - blockOffset);
+
+            List<ProtoHDFS.Block> replicas = fileHandle.getPipelines(blockIndex).getBlocksList();
+            ByteBuffer piece = null;
+            for(int i = 0; i < replicas.size() && piece == null; i++){
+                piece = readUnitBuffer(replicas.get(i), blockOffset, pieceLength);
+            }
+            if(piece == null || piece.remaining() != pieceLength){
+                throw new IOException("No replica of block " + blockIndex + " could be read");
+            }
+            piece.get(range, (int) (position - offset), pieceLength);
+            position += pieceLength;
+        }
+        return range;
+    }
+
+    // Gets the file handles of many files with a single call to the name node. Either a list of file names, a prefix
+    // that the file names start with, or both can be given. Files that don't exist are printed out and skipped
+    public List<ProtoHDFS.FileHandle> getFileHandles(List<String> fileNames, String prefix) {
+        try{
+            ProtoHDFS.BatchRequest.Builder batchRequestBuilder = ProtoHDFS.BatchRequest.newBuilder();
+            String batchRequestId = UUID.randomUUID().toString();
+            batchRequestBuilder.setRequestId(batchRequestId);
+            batchRequestBuilder.addAllFileNames(fileNames);
+            if(prefix != null){
+                batchRequestBuilder.setPrefix(prefix);
+            }
+            ProtoHDFS.BatchRequest batchRequest = batchRequestBuilder.build();
+            batchRequestBuilder.clear();
+
+            // Read these variables from the config file later
+            String nameId = "namenode";
+            String nameIp = "192.168.12.75";
+            int port = 1099;
+
+            NameNodeInterface nameStub = getNameStub(nameId, nameIp, port);
+            byte[] batchResponseBytes = nameStub.getBatchBlockLocations(batchRequest.toByteArray());
+            ProtoHDFS.BatchResponse batchResponse = ProtoHDFS.BatchResponse.parseFrom(batchResponseBytes);
+            ProtoHDFS.BatchResponse.ResponseType batchResponseType = batchResponse.getResponseType();
+
+            if(batchResponseType == ProtoHDFS.BatchResponse.ResponseType.SUCCESS){
+                for(String missingFileName : batchResponse.getMissingFileNamesList()){
+                    System.out.println("File " + missingFileName + " not found!");
+                }
+                if(this.fileHandleCache != null){
+                    batchResponse.getFileHandlesList().forEach(this.fileHandleCache::put);
+                }
+                return batchResponse.getFileHandlesList();
+            }else{
+                System.out.println(batchResponse.getErrorMessage());
+            }
+        }catch(Exception e){
+            if(e instanceof RemoteException){
+                System.out.println("Something went wrong in getFileHandles() when communicating with the name node!");
+            }else if(e instanceof InvalidProtocolBufferException){
+                System.out.println("Tried to parse something in getFileHandles() that is not defined in the protocol "
+                        + "buffer!");
+            }else{
+                // general unspecified error
+                System.out.println("An unspecified error has occurred in getFileHandles(): " + e.getMessage());
+            }
+            e.printStackTrace();
+        }
+
+        return new ArrayList<>();
+    }
+
     public static void main(String[] args){
 
     }
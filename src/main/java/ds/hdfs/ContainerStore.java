@@ -0,0 +1,638 @@
+package ds.hdfs;
+
+import proto.ProtoHDFS;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+// Packs small blocks into large append only container files so a small block costs one append instead of its own
+// file (and inode). Every record in a container is [magic, sequence, meta length, data length, checksum, meta, data]
+// so the containers can be rebuilt by reading them front to back. A deleted block gets a tombstone record (data
+// length -1). When most of a container is dead records, its live records are copied to the active container and it
+// is deleted. A tombstone is only copied along while some other container still holds a dead record it hides
+public class ContainerStore {
+    public static final int DEFAULT_SMALL_BLOCK_SIZE = 1024 * 1024;
+    public static final long DEFAULT_CONTAINER_SIZE = 256L * 1024 * 1024;
+    public static final String CONTAINER_PREFIX = "container_";
+    public static final String CONTAINER_SUFFIX = ".dat";
+    public static final String STATE_FILE = "containers.state";
+
+    protected static final int RECORD_MAGIC = 0x48424C4B;
+    protected static final int HEADER_SIZE = 4 + 8 + 4 + 4 + 4;
+    protected static final int SEARCH_WINDOW = 64 * 1024;
+    protected static final int TOMBSTONE = -1;
+
+    // Reads a block's bytes, which start at offset in the channel
+    public interface BlockReader<T> {
+        T read(FileChannel channel, long offset, ProtoHDFS.BlockMeta blockMeta) throws IOException;
+    }
+
+    protected final File directory;
+    protected final long maxContainerSize;
+    // A container is compacted once this fraction of it is dead records
+    protected final double compactionThreshold;
+    protected final ConcurrentHashMap<Integer, FileChannel> channels;
+    // Where the current record of every live block and every tombstone is
+    protected final ConcurrentHashMap<String, ProtoHDFS.BlockMeta> liveBlocks;
+    protected final ConcurrentHashMap<String, ProtoHDFS.BlockMeta> tombstones;
+    protected final ConcurrentHashMap<Integer, AtomicLong> liveBytes;
+    // The containers still holding dead records of a block, which a tombstone of the block has to outlive. The sets
+    // are replaced instead of changed so they can be read without locking
+    protected final ConcurrentHashMap<String, Set<Integer>> deadRecords;
+    // Reads hold the read lock so a compacted container is never deleted under them
+    protected final ReentrantReadWriteLock containerLock;
+    protected final AtomicLong nextSequence;
+    protected final ExecutorService compactor;
+    protected final Set<Integer> compacting;
+    // The container appends go to and its size, guarded by activeLock. Rolling over to a new container opens a file,
+    // and a virtual thread handler doing that while holding a monitor would pin its carrier thread
+    protected final ReentrantLock activeLock;
+    protected int activeId;
+    protected long activeSize;
+
+    public ContainerStore(File directory, long maxContainerSize, double compactionThreshold) throws IOException {
+        this.directory = directory;
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Could not create container directory " + directory.getAbsolutePath());
+        }
+        this.maxContainerSize = maxContainerSize;
+        this.compactionThreshold = compactionThreshold;
+        this.channels = new ConcurrentHashMap<>();
+        this.liveBlocks = new ConcurrentHashMap<>();
+        this.tombstones = new ConcurrentHashMap<>();
+        this.liveBytes = new ConcurrentHashMap<>();
+        this.deadRecords = new ConcurrentHashMap<>();
+        this.containerLock = new ReentrantReadWriteLock();
+        this.nextSequence = new AtomicLong();
+        this.compacting = ConcurrentHashMap.newKeySet();
+        this.activeLock = new ReentrantLock();
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "ContainerCompactor-" + directory.getParentFile().getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(CONTAINER_PREFIX)
+                && name.endsWith(CONTAINER_SUFFIX));
+        this.activeId = 0;
+        if(files != null){
+            for(File file : files){
+                int containerId = containerId(file.getName());
+                this.channels.put(containerId, FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE));
+                this.liveBytes.put(containerId, new AtomicLong());
+                this.activeId = Math.max(this.activeId, containerId);
+            }
+        }
+        if(!this.channels.containsKey(this.activeId)){
+            openContainer(this.activeId);
+        }
+        this.activeSize = this.channels.get(this.activeId).size();
+    }
+
+    // Number of bytes a block takes in its container, which is the compressed size for compressed blocks
+    public static long storedLength(ProtoHDFS.BlockMeta blockMeta){
+        if(blockMeta.getCodec() == ProtoHDFS.CompressionCodec.NONE){
+            return blockMeta.getBlockLength();
+        }
+        long storedLength = 0;
+        for(int chunkLength : blockMeta.getChunkLengthsList()){
+            storedLength += chunkLength;
+        }
+        return storedLength;
+    }
+
+    public File containerFile(int containerId){
+        return new File(this.directory, CONTAINER_PREFIX + containerId + CONTAINER_SUFFIX);
+    }
+
+    public boolean contains(String blockName){
+        return this.liveBlocks.containsKey(blockName);
+    }
+
+    // Appends a block to the active container and returns its meta with the container location filled in
+    public ProtoHDFS.BlockMeta append(ProtoHDFS.BlockMeta blockMeta, ByteBuffer data, BlockWriter blockWriter)
+            throws IOException {
+        long sequence = this.nextSequence.getAndIncrement();
+        ProtoHDFS.BlockMeta storedBlockMeta = appendRecord(blockMeta, data, sequence, blockWriter);
+
+        String blockName = BlockStorage.blockName(blockMeta);
+        ProtoHDFS.BlockMeta tombstone = this.tombstones.remove(blockName);
+        if(tombstone != null){
+            markDead(tombstone, TOMBSTONE);
+        }
+        // A concurrent append of the same block with a later sequence may have won already, then this record is dead
+        ProtoHDFS.BlockMeta[] dead = new ProtoHDFS.BlockMeta[1];
+        this.liveBlocks.compute(blockName, (name, current) -> {
+            if(current == null || current.getContainerSequence() < sequence){
+                dead[0] = current;
+                return storedBlockMeta;
+            }
+            dead[0] = storedBlockMeta;
+            return current;
+        });
+        this.liveBytes.get(storedBlockMeta.getContainerId()).addAndGet(recordLength(storedBlockMeta,
+                (int) storedLength(storedBlockMeta)));
+        if(dead[0] != null){
+            addDeadRecord(blockName, dead[0].getContainerId());
+            markDead(dead[0], (int) storedLength(dead[0]));
+        }
+        return this.liveBlocks.get(blockName);
+    }
+
+    // Writes a tombstone for the block so it stays deleted if the containers are ever scanned again
+    public void delete(String blockName) throws IOException {
+        ProtoHDFS.BlockMeta current = this.liveBlocks.remove(blockName);
+        if(current == null){
+            return;
+        }
+
+        long sequence = this.nextSequence.getAndIncrement();
+        ProtoHDFS.BlockMeta tombstone = appendRecord(current, null, sequence, null);
+        this.tombstones.put(blockName, tombstone);
+        this.liveBytes.get(tombstone.getContainerId()).addAndGet(recordLength(tombstone, 0));
+        addDeadRecord(blockName, current.getContainerId());
+        markDead(current, (int) storedLength(current));
+    }
+
+    // Runs the reader on the current location of the block. The block may have been moved by a compaction since its
+    // meta was handed out, so the location is always looked up again here. The reader runs under the read lock, so
+    // it must not wait on anything (a compaction waiting for the write lock would stall every other read behind it)
+    public <T> T read(String blockName, BlockReader<T> reader) throws IOException {
+        this.containerLock.readLock().lock();
+        try{
+            ProtoHDFS.BlockMeta blockMeta = this.liveBlocks.get(blockName);
+            if(blockMeta == null){
+                throw new FileNotFoundException("Block " + blockName + " is not in any container");
+            }
+            FileChannel channel = this.channels.get(blockMeta.getContainerId());
+            return reader.read(channel, blockMeta.getContainerOffset(), blockMeta);
+        }finally{
+            this.containerLock.readLock().unlock();
+        }
+    }
+
+    // Gets the current meta of a contained block, with its up to date container location
+    public ProtoHDFS.BlockMeta currentMeta(String blockName){
+        return this.liveBlocks.get(blockName);
+    }
+
+    // Rebuilds the container state by reading every record of every container. For every block the record with the
+    // highest sequence wins. Appends write side by side, so a crash can leave a torn record in front of records that
+    // were acked; a record whose checksum doesn't match is skipped and the scan goes on at the next record magic
+    public Map<String, ProtoHDFS.BlockMeta> scan() throws IOException {
+        HashMap<String, ProtoHDFS.BlockMeta> latest = new HashMap<>();
+        HashMap<String, Boolean> latestIsTombstone = new HashMap<>();
+        HashMap<String, Set<Integer>> dead = new HashMap<>();
+        long maxSequence = -1;
+
+        ArrayList<Integer> containerIds = new ArrayList<>(this.channels.keySet());
+        Collections.sort(containerIds);
+        for(int containerId : containerIds){
+            FileChannel channel = this.channels.get(containerId);
+            long position = 0;
+            long validEnd = 0;
+            long size = channel.size();
+            while(position + HEADER_SIZE <= size){
+                Record record = readRecord(channel, position, size);
+                if(record == null){
+                    position = findMagic(channel, position + 1, size);
+                    continue;
+                }
+
+                ProtoHDFS.BlockMeta blockMeta = ProtoHDFS.BlockMeta.parseFrom(record.metaBytes).toBuilder()
+                        .setContainerId(containerId)
+                        .setContainerOffset(position + HEADER_SIZE + record.metaBytes.length)
+                        .setContainerSequence(record.sequence)
+                        .build();
+                boolean tombstone = record.dataLength == TOMBSTONE;
+
+                String blockName = BlockStorage.blockName(blockMeta);
+                ProtoHDFS.BlockMeta previous = latest.get(blockName);
+                ProtoHDFS.BlockMeta loser = blockMeta;
+                boolean loserIsTombstone = tombstone;
+                if(previous == null || previous.getContainerSequence() < record.sequence){
+                    loser = previous;
+                    loserIsTombstone = previous != null && latestIsTombstone.get(blockName);
+                    latest.put(blockName, blockMeta);
+                    latestIsTombstone.put(blockName, tombstone);
+                }
+                if(loser != null && !loserIsTombstone){
+                    dead.computeIfAbsent(blockName, name -> new HashSet<>()).add(loser.getContainerId());
+                }
+                maxSequence = Math.max(maxSequence, record.sequence);
+                position = record.end;
+                validEnd = record.end;
+            }
+
+            if(containerId == this.activeId){
+                this.activeLock.lock();
+                try{
+                    this.activeSize = validEnd;
+                }finally{
+                    this.activeLock.unlock();
+                }
+            }
+        }
+
+        this.liveBlocks.clear();
+        this.tombstones.clear();
+        this.deadRecords.clear();
+        this.deadRecords.putAll(dead);
+        for(AtomicLong bytes : this.liveBytes.values()){
+            bytes.set(0);
+        }
+        for(Map.Entry<String, ProtoHDFS.BlockMeta> entry : latest.entrySet()){
+            ProtoHDFS.BlockMeta blockMeta = entry.getValue();
+            boolean tombstone = latestIsTombstone.get(entry.getKey());
+            if(tombstone){
+                this.tombstones.put(entry.getKey(), blockMeta);
+            }else{
+                this.liveBlocks.put(entry.getKey(), blockMeta);
+            }
+            this.liveBytes.get(blockMeta.getContainerId()).addAndGet(recordLength(blockMeta,
+                    tombstone ? 0 : (int) storedLength(blockMeta)));
+        }
+        this.nextSequence.set(maxSequence + 1);
+
+        for(int containerId : containerIds){
+            maybeCompact(containerId);
+        }
+        return new HashMap<>(this.liveBlocks);
+    }
+
+    // Restores the container state from the block metas of an index snapshot and the saved state file, which holds
+    // the next sequence number, the containers with dead records and the tombstones. Falls back to a scan if the
+    // state file is missing
+    public Map<String, ProtoHDFS.BlockMeta> load(Collection<ProtoHDFS.BlockMeta> snapshotBlockMetas)
+            throws IOException {
+        File stateFile = new File(this.directory, STATE_FILE);
+        if(!stateFile.exists()){
+            return scan();
+        }
+
+        this.liveBlocks.clear();
+        this.tombstones.clear();
+        this.deadRecords.clear();
+        try(DataInputStream inputStream = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(stateFile)))){
+            this.nextSequence.set(inputStream.readLong());
+            int deadCount = inputStream.readInt();
+            for(int i = 0; i < deadCount; i++){
+                String blockName = inputStream.readUTF();
+                HashSet<Integer> containerIds = new HashSet<>();
+                int containerCount = inputStream.readInt();
+                for(int j = 0; j < containerCount; j++){
+                    int containerId = inputStream.readInt();
+                    if(this.channels.containsKey(containerId)){
+                        containerIds.add(containerId);
+                    }
+                }
+                if(!containerIds.isEmpty()){
+                    this.deadRecords.put(blockName, containerIds);
+                }
+            }
+            ProtoHDFS.BlockMeta tombstone;
+            while((tombstone = ProtoHDFS.BlockMeta.parseDelimitedFrom(inputStream)) != null){
+                this.tombstones.put(BlockStorage.blockName(tombstone), tombstone);
+                this.liveBytes.get(tombstone.getContainerId()).addAndGet(recordLength(tombstone, 0));
+            }
+        }
+        Files.delete(stateFile.toPath());
+
+        for(ProtoHDFS.BlockMeta blockMeta : snapshotBlockMetas){
+            if(blockMeta.hasContainerId() && this.channels.containsKey(blockMeta.getContainerId())){
+                this.liveBlocks.put(BlockStorage.blockName(blockMeta), blockMeta);
+                this.liveBytes.get(blockMeta.getContainerId()).addAndGet(recordLength(blockMeta,
+                        (int) storedLength(blockMeta)));
+            }
+        }
+        return new HashMap<>(this.liveBlocks);
+    }
+
+    // Saves the next sequence number, the containers with dead records and the tombstones for load() after a clean
+    // shutdown
+    public void saveState() throws IOException {
+        File stateFile = new File(this.directory, STATE_FILE);
+        File tmpFile = new File(this.directory, STATE_FILE + ".tmp");
+        try(DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)))){
+            outputStream.writeLong(this.nextSequence.get());
+            outputStream.writeInt(this.deadRecords.size());
+            for(Map.Entry<String, Set<Integer>> entry : this.deadRecords.entrySet()){
+                outputStream.writeUTF(entry.getKey());
+                outputStream.writeInt(entry.getValue().size());
+                for(int containerId : entry.getValue()){
+                    outputStream.writeInt(containerId);
+                }
+            }
+            for(ProtoHDFS.BlockMeta tombstone : this.tombstones.values()){
+                tombstone.writeDelimitedTo(outputStream);
+            }
+        }
+        Files.move(tmpFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void close() throws IOException {
+        this.compactor.shutdown();
+        this.containerLock.writeLock().lock();
+        try{
+            for(FileChannel channel : this.channels.values()){
+                channel.close();
+            }
+        }finally{
+            this.containerLock.writeLock().unlock();
+        }
+    }
+
+    // Appends one record (a tombstone if data is null) and returns the meta pointing at the record's data. The block
+    // writer, if given, makes the append as durable as its mode asks
+    protected ProtoHDFS.BlockMeta appendRecord(ProtoHDFS.BlockMeta blockMeta, ByteBuffer data, long sequence,
+                                               BlockWriter blockWriter) throws IOException {
+        byte[] metaBytes = blockMeta.toBuilder().clearContainerId().clearContainerOffset().clearContainerSequence()
+                .build().toByteArray();
+        int dataLength = data == null ? TOMBSTONE : data.remaining();
+        long recordLength = HEADER_SIZE + metaBytes.length + Math.max(0, dataLength);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(RECORD_MAGIC);
+        header.putLong(sequence);
+        header.putInt(metaBytes.length);
+        header.putInt(dataLength);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, HEADER_SIZE - 4);
+        crc.update(metaBytes);
+        if(data != null){
+            crc.update(data.duplicate());
+        }
+        header.putInt((int) crc.getValue());
+        header.flip();
+
+        int containerId;
+        long position;
+        FileChannel channel;
+        this.activeLock.lock();
+        try{
+            if(this.activeSize > 0 && this.activeSize + recordLength > this.maxContainerSize){
+                openContainer(this.activeId + 1);
+                this.activeId++;
+                this.activeSize = 0;
+            }
+            containerId = this.activeId;
+            position = this.activeSize;
+            channel = this.channels.get(containerId);
+            this.activeSize += recordLength;
+        }finally{
+            this.activeLock.unlock();
+        }
+
+        // The space was reserved above so concurrent appends write their records side by side
+        ByteBuffer[] parts = data == null
+                ? new ByteBuffer[]{header, ByteBuffer.wrap(metaBytes)}
+                : new ByteBuffer[]{header, ByteBuffer.wrap(metaBytes), data.duplicate()};
+        long writePosition = position;
+        for(ByteBuffer part : parts){
+            while(part.hasRemaining()){
+                writePosition += channel.write(part, writePosition);
+            }
+        }
+        if(blockWriter != null){
+            blockWriter.sync(channel);
+        }
+
+        return blockMeta.toBuilder()
+                .setContainerId(containerId)
+                .setContainerOffset(position + HEADER_SIZE + metaBytes.length)
+                .setContainerSequence(sequence)
+                .build();
+    }
+
+    protected void openContainer(int containerId) throws IOException {
+        this.channels.put(containerId, FileChannel.open(containerFile(containerId).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        this.liveBytes.putIfAbsent(containerId, new AtomicLong());
+    }
+
+    // Takes a dead record off its container's live bytes and compacts the container if it is now mostly dead
+    protected void markDead(ProtoHDFS.BlockMeta blockMeta, int dataLength){
+        int containerId = blockMeta.getContainerId();
+        AtomicLong bytes = this.liveBytes.get(containerId);
+        if(bytes != null){
+            bytes.addAndGet(-recordLength(blockMeta, dataLength));
+            maybeCompact(containerId);
+        }
+    }
+
+    protected void maybeCompact(int containerId){
+        FileChannel channel = this.channels.get(containerId);
+        AtomicLong bytes = this.liveBytes.get(containerId);
+        this.activeLock.lock();
+        try{
+            if(containerId == this.activeId){
+                return;
+            }
+        }finally{
+            this.activeLock.unlock();
+        }
+        try{
+            long size = channel == null ? 0 : channel.size();
+            if(bytes == null || size == 0 || 1.0 - (double) bytes.get() / size < this.compactionThreshold){
+                return;
+            }
+        }catch(IOException e){
+            return;
+        }
+        if(this.compacting.add(containerId)){
+            this.compactor.submit(() -> compact(containerId));
+        }
+    }
+
+    // Copies the live records and tombstones of a container to the active container, keeping their sequence numbers
+    // so anything written to the same blocks in the meantime still wins, then deletes the container. A tombstone
+    // that hides no dead record in any other container is dropped instead
+    protected void compact(int containerId){
+        try{
+            FileChannel channel = this.channels.get(containerId);
+            Set<Integer> written = new HashSet<>();
+            for(ProtoHDFS.BlockMeta blockMeta : new ArrayList<>(this.liveBlocks.values())){
+                if(blockMeta.getContainerId() != containerId){
+                    continue;
+                }
+                ByteBuffer data = ByteBuffer.allocate((int) storedLength(blockMeta));
+                BlockCompressor.readFully(channel, data, blockMeta.getContainerOffset());
+                data.flip();
+                ProtoHDFS.BlockMeta moved = appendRecord(blockMeta, data, blockMeta.getContainerSequence(), null);
+                written.add(moved.getContainerId());
+                String blockName = BlockStorage.blockName(blockMeta);
+                ProtoHDFS.BlockMeta result = this.liveBlocks.computeIfPresent(blockName,
+                        (name, current) -> current.getContainerSequence() == blockMeta.getContainerSequence()
+                                && current.getContainerId() == containerId ? moved : current);
+                if(result == moved){
+                    this.liveBytes.get(moved.getContainerId()).addAndGet(recordLength(moved, data.capacity()));
+                }else{
+                    // The block was written or deleted while it was copied, so the copy is a dead record too
+                    addDeadRecord(blockName, moved.getContainerId());
+                }
+            }
+            for(ProtoHDFS.BlockMeta tombstone : new ArrayList<>(this.tombstones.values())){
+                if(tombstone.getContainerId() != containerId){
+                    continue;
+                }
+                String blockName = BlockStorage.blockName(tombstone);
+                if(!hidesDeadRecords(blockName, containerId)){
+                    if(this.tombstones.remove(blockName, tombstone)){
+                        this.deadRecords.remove(blockName);
+                    }
+                    continue;
+                }
+                ProtoHDFS.BlockMeta moved = appendRecord(tombstone, null, tombstone.getContainerSequence(), null);
+                written.add(moved.getContainerId());
+                if(this.tombstones.replace(blockName, tombstone, moved)){
+                    this.liveBytes.get(moved.getContainerId()).addAndGet(recordLength(moved, 0));
+                }
+            }
+
+            // The copies have to be on disk, and the containers they went to in the directory, before the only other
+            // copy is deleted
+            for(int writtenId : written){
+                this.channels.get(writtenId).force(true);
+            }
+            syncDirectory();
+
+            this.containerLock.writeLock().lock();
+            try{
+                this.channels.remove(containerId).close();
+                this.liveBytes.remove(containerId);
+                Files.deleteIfExists(containerFile(containerId).toPath());
+            }finally{
+                this.containerLock.writeLock().unlock();
+            }
+            for(String blockName : this.deadRecords.keySet()){
+                this.deadRecords.computeIfPresent(blockName, (name, containerIds) -> {
+                    if(!containerIds.contains(containerId)){
+                        return containerIds;
+                    }
+                    HashSet<Integer> remaining = new HashSet<>(containerIds);
+                    remaining.remove(containerId);
+                    return remaining.isEmpty() ? null : remaining;
+                });
+            }
+            System.out.println("Compacted container " + containerFile(containerId).getAbsolutePath());
+        }catch(IOException e){
+            System.out.println("Failed to compact container " + containerId + ": " + e.getMessage());
+        }finally{
+            this.compacting.remove(containerId);
+        }
+    }
+
+    protected void addDeadRecord(String blockName, int containerId){
+        this.deadRecords.compute(blockName, (name, containerIds) -> {
+            if(containerIds != null && containerIds.contains(containerId)){
+                return containerIds;
+            }
+            HashSet<Integer> updated = containerIds == null ? new HashSet<>() : new HashSet<>(containerIds);
+            updated.add(containerId);
+            return updated;
+        });
+    }
+
+    // Whether a container other than the one given still holds a dead record of the block
+    protected boolean hidesDeadRecords(String blockName, int excludedContainerId){
+        Set<Integer> containerIds = this.deadRecords.get(blockName);
+        if(containerIds == null){
+            return false;
+        }
+        for(int containerId : containerIds){
+            if(containerId != excludedContainerId && this.channels.containsKey(containerId)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected void syncDirectory() throws IOException {
+        try(FileChannel channel = FileChannel.open(this.directory.toPath(), StandardOpenOption.READ)){
+            channel.force(true);
+        }
+    }
+
+    // Reads the record at position, or returns null if it is torn (bad magic, lengths or checksum)
+    protected static Record readRecord(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        BlockCompressor.readFully(channel, header, position);
+        header.flip();
+        int magic = header.getInt();
+        long sequence = header.getLong();
+        int metaLength = header.getInt();
+        int dataLength = header.getInt();
+        int checksum = header.getInt();
+        long end = position + HEADER_SIZE + (long) metaLength + Math.max(0, dataLength);
+        if(magic != RECORD_MAGIC || metaLength < 0 || dataLength < TOMBSTONE || end > size){
+            return null;
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(metaLength + Math.max(0, dataLength));
+        BlockCompressor.readFully(channel, body, position + HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, HEADER_SIZE - 4);
+        crc.update(body.array());
+        if((int) crc.getValue() != checksum){
+            return null;
+        }
+        return new Record(sequence, dataLength, Arrays.copyOf(body.array(), metaLength), end);
+    }
+
+    // Finds the next place from position on that starts with the record magic, or returns size if there is none
+    protected static long findMagic(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(SEARCH_WINDOW);
+        for(long start = position; start + 4 <= size; start += SEARCH_WINDOW - 3){
+            window.clear();
+            window.limit((int) Math.min(SEARCH_WINDOW, size - start));
+            BlockCompressor.readFully(channel, window, start);
+            for(int i = 0; i + 4 <= window.limit(); i++){
+                if(window.getInt(i) == RECORD_MAGIC){
+                    return start + i;
+                }
+            }
+        }
+        return size;
+    }
+
+    protected static class Record {
+        protected final long sequence;
+        protected final int dataLength;
+        protected final byte[] metaBytes;
+        protected final long end;
+
+        protected Record(long sequence, int dataLength, byte[] metaBytes, long end){
+            this.sequence = sequence;
+            this.dataLength = dataLength;
+            this.metaBytes = metaBytes;
+            this.end = end;
+        }
+    }
+
+    protected static long recordLength(ProtoHDFS.BlockMeta blockMeta, int dataLength){
+        int metaLength = blockMeta.toBuilder().clearContainerId().clearContainerOffset().clearContainerSequence()
+                .build().getSerializedSize();
+        return HEADER_SIZE + metaLength + dataLength;
+    }
+
+    protected static int containerId(String fileName){
+        return Integer.parseInt(fileName.substring(CONTAINER_PREFIX.length(),
+                fileName.length() - CONTAINER_SUFFIX.length()));
+    }
+}
@@ -1,128 +1,819 @@
 package ds.hdfs;
 
+import com.google.protobuf.ByteString;
 import proto.ProtoHDFS;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
 
 public class DataNode implements DataNodeInterface {
+    // Highest replication or EC unit number (exclusive) looked for when searching for a block of a file
+    protected static final int MAX_REP_NUMBER = 32;
+
     // This data structure allows thread safe access to the blocks of this specific data node
     protected ConcurrentHashMap<String, Boolean> requestsFulfilled;
     protected ConcurrentHashMap<String, ProtoHDFS.BlockMeta> blockMetas;
+    // Writes and appends to the same block are applied one at a time under the write lock of the block. Reads hold
+    // its read lock, since an append to a compressed block rewrites bytes the old meta points at. The block scanner
+    // takes the write lock before it quarantines a block so it never takes one whose bytes are changing under it
+    protected ConcurrentHashMap<String, ReentrantReadWriteLock> blockLocks;
+    // Blocks with a write or append in flight, which the block scanner skips
+    protected Set<String> writingBlocks;
     protected String dataId;
     protected String dataIp;
     protected int port;
+    // The data directories of this data node and the volume each block is stored on
+    protected VolumeManager volumeManager;
+    // Writes block files and makes them durable according to its durability mode
+    protected BlockWriter blockWriter;
+    // Blocks that take up at most this many bytes on disk are packed into container files instead of their own file
+    protected int smallBlockSize;
+    // Off heap cache of recently read block chunks
+    protected BlockCache blockCache;
+    // Reads the next chunks of sequentially read files into the block cache
+    protected ReadAhead readAhead;
+    // Number of reads and writes being served right now, used by the block scanner to stay out of their way
+    protected AtomicInteger activeRequests;
+    protected BlockScanner blockScanner;
+    // Serves the same methods as the RMI interface to asynchronous clients, null unless started
+    protected RpcServer rpcServer;
+    // Latencies and sizes of the calls served, block cache and queue figures
+    protected MetricsRegistry metrics;
+    // This data node wrapped so every call made to it over RMI or RPC is recorded in the metrics
+    protected DataNodeInterface instrumented;
+    // Talks to the name node over the RPC transport instead of RMI once set, see useRpcNameNode
+    protected NameNodeInterface rpcNameStub;
+    // Sends the heartbeats and block reports, null unless started
+    protected ScheduledExecutorService heartbeatExecutor;
+
+    public DataNode(String dataId, String dataIp, int port) throws IOException {
+        this(dataId, dataIp, port, new File("hdfs", dataId));
+    }
+
+    // The storage root is the directory this data node keeps its blocks and block index in
+    public DataNode(String dataId, String dataIp, int port, File storageRoot) throws IOException {
+        this(dataId, dataIp, port, Collections.singletonList(storageRoot), VolumeManager.Policy.ROUND_ROBIN, 4);
+    }
+
+    // Each storage root is a separate volume (normally one per disk) with threadsPerVolume I/O threads, and the
+    // policy decides which volume a new block is written to
+    public DataNode(String dataId, String dataIp, int port, List<File> storageRoots, VolumeManager.Policy policy,
+                    int threadsPerVolume) throws IOException {
+        this.requestsFulfilled = new ConcurrentHashMap<>();
+        this.blockMetas = new ConcurrentHashMap<>();
+        this.blockLocks = new ConcurrentHashMap<>();
+        this.writingBlocks = ConcurrentHashMap.newKeySet();
+        this.dataId = dataId;
+        this.dataIp = dataIp;
+        this.port = port;
+        this.activeRequests = new AtomicInteger();
+        this.volumeManager = new VolumeManager(storageRoots, policy, threadsPerVolume);
+        this.blockWriter = new BlockWriter(BlockWriter.Durability.NONE, 1024 * 1024, 64, 2000);
+        this.smallBlockSize = ContainerStore.DEFAULT_SMALL_BLOCK_SIZE;
+        this.blockCache = new BlockCache(BlockCache.DEFAULT_CHUNK_SIZE, 256L * 1024 * 1024);
+        this.readAhead = new ReadAhead(this, BlockCache.DEFAULT_CHUNK_SIZE, 16 * BlockCache.DEFAULT_CHUNK_SIZE,
+                ReadAhead.DEFAULT_MAX_IN_FLIGHT);
+        this.blockMetas.putAll(this.volumeManager.loadBlockMetas());
+
+        this.metrics = new MetricsRegistry();
+        this.instrumented = this.metrics.instrument(DataNodeInterface.class, this);
+        this.metrics.gauge("activeRequests", this.activeRequests::get);
+        this.metrics.gauge("blocks", this.blockMetas::size);
+        this.metrics.gauge("blockCache.hits", this.blockCache::getHits);
+        this.metrics.gauge("blockCache.misses", this.blockCache::getMisses);
+        this.metrics.gauge("blockCache.evictions", this.blockCache::getEvictions);
+        this.metrics.gauge("blockCache.hitRatio", this.blockCache::getHitRatio);
+        this.metrics.gauge("readAhead.prefetchedChunks", this.readAhead::getPrefetchedChunks);
+        this.metrics.registerMBean("ds.hdfs:type=DataNode,name=" + dataId);
+    }
 
     @Override
     public byte[] readBlock(byte[] inp) throws IOException {
-        ProtoHDFS.Request request = ProtoHDFS.Request.parseFrom(inp);
-        String requestId = request.getRequestId();
+        this.activeRequests.incrementAndGet();
+        Tracer.Span span = Tracer.NOOP_SPAN;
+        try{
+            ProtoHDFS.Request request = ProtoHDFS.Request.parseFrom(inp);
+            String requestId = request.getRequestId();
+            span = Tracer.start(request, "DataNode.readBlock").arg("dataId", this.dataId);
 
-        // A request sent to readBlocks should only contain a block list consisting of a single block
-        List<ProtoHDFS.Block> requestBlockList = request.getBlockList();
-        LinkedList<ProtoHDFS.Block> blockList = new LinkedList<>(requestBlockList);
+            // A request sent to readBlocks should only contain a block list consisting of a single block
+            List<ProtoHDFS.Block> requestBlockList = request.getBlockList();
+            LinkedList<ProtoHDFS.Block> blockList = new LinkedList<>(requestBlockList);
 
-        ProtoHDFS.Block block = blockList.pop();
-        ProtoHDFS.BlockMeta blockMeta = block.getBlockMeta();
+            ProtoHDFS.Block block = blockList.pop();
+            ProtoHDFS.BlockMeta blockMeta = block.getBlockMeta();
 
-        String fileName = blockMeta.getFileName();
-        int blockNumber = blockMeta.getBlockNumber();
-        int repNumber = blockMeta.getRepNumber();
-        String blockName = fileName + "_" + blockNumber + "_" + repNumber;
+            String fileName = blockMeta.getFileName();
+            int blockNumber = blockMeta.getBlockNumber();
+            int repNumber = blockMeta.getRepNumber();
+            String blockName = BlockStorage.blockName(blockMeta);
+            span.arg("block", blockName);
+
+            // The meta and the bytes it points at are read under the read lock of the block, so an append can't
+            // replace them halfway through
+            Lock readLock = blockLock(blockName).readLock();
+            readLock.lock();
+            try{
+                BlockStorage volume = this.volumeManager.getVolume(blockName);
+                if(this.blockMetas.containsKey(blockName) && volume != null){
+                    ProtoHDFS.BlockMeta storedBlockMeta = this.blockMetas.get(blockName);
+                    ByteString blockContents;
+                    if(request.hasOffset() || request.hasLength()){
+                        // Ranged reads need the block length, which blocks written before it was recorded don't have
+                        long blockLength = storedBlockMeta.getBlockLength();
+                        long offset = request.getOffset();
+                        long length = Math.min(request.hasLength() ? request.getLength() : blockLength,
+                                blockLength - offset);
+                        if(!storedBlockMeta.hasBlockLength() || offset < 0 || length < 0){
+                            return failureResponse(requestId, String.format("Range %1$d+%2$d is not readable from "
+                                    + "block %3$d replication %4$d for %5$s", offset, request.getLength(), blockNumber,
+                                    repNumber, fileName));
+                        }
 
-        if(this.blockMetas.containsKey(blockName)){
-            byte[] blockBytes = Files.readAllBytes(Paths.get(blockName));
-            String blockContents = new String(blockBytes);
+                        byte[] range = this.volumeManager.execute(volume,
+                                () -> readVerifiedRange(volume, storedBlockMeta, offset, (int) length));
+                        if(range == null){
+                            return failureResponse(requestId, String.format("Checksum mismatch in block %1$d "
+                                    + "replication %2$d for %3$s", blockNumber, repNumber, fileName));
+                        }
+                        blockContents = ByteString.copyFrom(range);
+                        this.readAhead.onRead(reader(request), storedBlockMeta, offset, range.length);
+                    }else{
+                        blockContents = this.volumeManager.execute(volume,
+                                () -> readBlockContents(volume, storedBlockMeta));
+                        if(blockContents == null){
+                            return failureResponse(requestId, String.format("Checksum mismatch in block %1$d "
+                                    + "replication %2$d for %3$s", blockNumber, repNumber, fileName));
+                        }
+                        if(storedBlockMeta.hasBlockLength()){
+                            this.readAhead.onRead(reader(request), storedBlockMeta, 0, blockContents.size());
+                        }
+                    }
 
-            ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
-            blockBuilder.setBlockMeta(this.blockMetas.get(blockName));
-            blockBuilder.setBlockContents(blockContents);
-            ProtoHDFS.Block responseBlock = blockBuilder.build();
-            blockBuilder.clear();
+                    ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
+                    blockBuilder.setBlockMeta(storedBlockMeta);
+                    blockBuilder.setBlockContents(blockContents);
+                    ProtoHDFS.Block responseBlock = blockBuilder.build();
+                    blockBuilder.clear();
+
+                    ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
+                    responseBuilder.setResponseId(requestId);
+                    responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.SUCCESS);
+                    responseBuilder.setBlock(responseBlock);
+                    responseBuilder.setErrorMessage(String.format("Block %1$d replication %2$d for %3$s read success",
+                            blockNumber, repNumber, fileName));
+                    ProtoHDFS.Response response = responseBuilder.buildPartial();
+                    responseBuilder.clear();
+
+                    return response.toByteArray();
+                }else{
+                    ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
+                    responseBuilder.setResponseId(requestId);
+                    responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.FAILURE);
+                    responseBuilder.setErrorMessage(String.format("Block %1$d replication %2$d for %3$s does not exist",
+                            blockNumber, repNumber, fileName));
+                    ProtoHDFS.Response response = responseBuilder.buildPartial();
+                    responseBuilder.clear();
+
+                    return response.toByteArray();
+                }
+            }finally{
+                readLock.unlock();
+            }
+        }finally{
+            span.close();
+            this.activeRequests.decrementAndGet();
+        }
+    }
+
+    @Override
+    public byte[] writeBlock(byte[] inp) throws IOException {
+        this.activeRequests.incrementAndGet();
+        // Ends when the response (the ack of the write) is returned
+        Tracer.Span span = Tracer.NOOP_SPAN;
+        try{
+            ProtoHDFS.Request request = ProtoHDFS.Request.parseFrom(inp);
+            String requestId = request.getRequestId();
+            span = Tracer.start(request, "DataNode.writeBlock").arg("dataId", this.dataId);
+
+            // Make the replication factor configurable later
+            int repFactor = 3;
+            List<ProtoHDFS.Block> requestBlockList = request.getBlockList();
+            LinkedList<ProtoHDFS.Block> blockList = new LinkedList<>(requestBlockList);
+
+            ProtoHDFS.Block block = blockList.pop();
+            ProtoHDFS.BlockMeta blockMeta = block.getBlockMeta();
+            ByteString blockContents = block.getBlockContents();
+
+            String fileName = blockMeta.getFileName();
+            int blockNumber = blockMeta.getBlockNumber();
+            int repNumber = blockMeta.getRepNumber();
+
+            if(repNumber < repFactor){
+                // Send a 'request' object to the next data node to replicate block on another data node
+                // Still need to figure out how to access other data nodes from a data node
+            }
+
+            if(request.getRequestType() == ProtoHDFS.Request.RequestType.APPEND){
+                return appendBlock(requestId, blockMeta, request.getOffset(), blockContents);
+            }
+
+            String blockName = BlockStorage.blockName(blockMeta);
+            span.arg("block", blockName).arg("bytes", blockContents.size());
+            Lock blockLock = blockLock(blockName).writeLock();
+            blockLock.lock();
+            this.writingBlocks.add(blockName);
+            try{
+                boolean newBlock = !this.blockMetas.containsKey(blockName);
+                BlockStorage volume = this.volumeManager.chooseVolume(blockName, blockContents.size());
+                ProtoHDFS.BlockMeta storedBlockMeta;
+                Tracer.Span diskWriteSpan = Tracer.start(request, "DataNode.diskWrite").arg("dataId", this.dataId);
+                try{
+                    storedBlockMeta = this.volumeManager.execute(volume,
+                            () -> writeBlockContents(volume, blockMeta, blockContents));
+                }catch(IOException e){
+                    if(newBlock){
+                        this.volumeManager.discardFailedWrite(blockName, volume);
+                    }
+                    throw e;
+                }finally{
+                    diskWriteSpan.close();
+                }
+                this.blockMetas.put(blockName, storedBlockMeta);
+                // The old chunks could never be served again anyway, this just frees their buffers right away
+                this.blockCache.invalidate(blockName);
+            }finally{
+                this.writingBlocks.remove(blockName);
+                blockLock.unlock();
+            }
 
             ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
             responseBuilder.setResponseId(requestId);
             responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.SUCCESS);
-            responseBuilder.setBlock(responseBlock);
-            responseBuilder.setErrorMessage(String.format("Block %1$d replication %2$d for %3$s read success",
+            responseBuilder.setErrorMessage(String.format("Block %1$d replication %2$d for %3$s write success",
                     blockNumber, repNumber, fileName));
             ProtoHDFS.Response response = responseBuilder.buildPartial();
             responseBuilder.clear();
-
             return response.toByteArray();
+        }finally{
+            span.close();
+            this.activeRequests.decrementAndGet();
+        }
+    }
+
+    // Reads the contents of a stored block from its volume, either from its own file or from its container.
+    // Compressed blocks are decompressed chunk by chunk back into the original block contents. Returns null if the
+    // contents don't match the checksums in the meta, so the client moves on to another replica
+    protected ByteString readBlockContents(BlockStorage volume, ProtoHDFS.BlockMeta storedBlockMeta)
+            throws IOException {
+        if(!storedBlockMeta.hasBlockLength()){
+            // Blocks written before block lengths were recorded can't be split into cache chunks
+            return volume.readBlock(storedBlockMeta, (channel, offset, currentBlockMeta) -> {
+                ByteBuffer contents = ByteBuffer.allocate((int) channel.size());
+                BlockCompressor.readFully(channel, contents, offset);
+                contents.flip();
+                return ByteString.copyFrom(contents);
+            });
+        }
+        byte[] contents = readVerifiedRange(volume, storedBlockMeta, 0, (int) storedBlockMeta.getBlockLength());
+        return contents != null ? ByteString.copyFrom(contents) : null;
+    }
+
+    // Reads a range of a block and checks it against the checksums of only the checksum chunks covering it. Returns
+    // null if they don't match, after dropping the block from the cache in case the bad data came from there
+    protected byte[] readVerifiedRange(BlockStorage volume, ProtoHDFS.BlockMeta storedBlockMeta, long offset,
+                                       int length) throws IOException {
+        long alignedStart = BlockChecksum.alignStart(storedBlockMeta, offset);
+        long alignedEnd = BlockChecksum.alignEnd(storedBlockMeta, offset + length);
+        byte[] covering;
+        try{
+            covering = readRange(volume, storedBlockMeta, alignedStart, (int) (alignedEnd - alignedStart));
+        }catch(IOException e){
+            // A compressed chunk that can't be inflated is corrupt just like one that fails its checksum
+            if(!(e.getCause() instanceof DataFormatException)){
+                throw e;
+            }
+            System.out.println(e.getMessage());
+            return null;
+        }
+        int corruptChunk = BlockChecksum.verify(storedBlockMeta, ByteBuffer.wrap(covering),
+                BlockChecksum.chunkOf(storedBlockMeta, alignedStart));
+        if(corruptChunk != -1){
+            System.out.println(String.format("Checksum mismatch in chunk %1$d of block %2$s", corruptChunk,
+                    BlockStorage.blockName(storedBlockMeta)));
+            this.blockCache.invalidate(BlockStorage.blockName(storedBlockMeta));
+            return null;
+        }
+        if(alignedStart == offset && covering.length == length){
+            return covering;
+        }
+        byte[] range = new byte[length];
+        System.arraycopy(covering, (int) (offset - alignedStart), range, 0, length);
+        return range;
+    }
+
+    // Reads length bytes of a block starting at offset. Whole cache chunks are served from the block cache and the
+    // missing ones are read from disk and cached. Chunks only partly in the range are read into a scratch array first
+    // since the cache only holds whole chunks
+    protected byte[] readRange(BlockStorage volume, ProtoHDFS.BlockMeta storedBlockMeta, long offset, int length)
+            throws IOException {
+        String blockName = BlockStorage.blockName(storedBlockMeta);
+        int chunkSize = this.blockCache.getChunkSize();
+        long blockLength = storedBlockMeta.getBlockLength();
+        long end = offset + length;
+        byte[] range = new byte[length];
+
+        for(int chunk = (int) (offset / chunkSize); (long) chunk * chunkSize < end; chunk++){
+            long chunkStart = (long) chunk * chunkSize;
+            int chunkLength = (int) Math.min(chunkSize, blockLength - chunkStart);
+            long copyStart = Math.max(offset, chunkStart);
+            long copyEnd = Math.min(end, chunkStart + chunkLength);
+            boolean wholeChunk = copyStart == chunkStart && copyEnd == chunkStart + chunkLength;
+
+            byte[] target = wholeChunk ? range : new byte[chunkLength];
+            int targetOffset = wholeChunk ? (int) (chunkStart - offset) : 0;
+            if(!this.blockCache.read(blockName, storedBlockMeta, chunk, target, targetOffset)){
+                readChunk(volume, storedBlockMeta, chunkStart, chunkLength, target, targetOffset);
+                this.blockCache.put(blockName, storedBlockMeta, chunk, target, targetOffset, chunkLength);
+            }
+            if(!wholeChunk){
+                System.arraycopy(target, (int) (copyStart - chunkStart), range, (int) (copyStart - offset),
+                        (int) (copyEnd - copyStart));
+            }
+        }
+        return range;
+    }
+
+    // Reads length bytes of the block contents starting at start from disk, decompressing only the compressed
+    // chunks that cover them
+    protected void readChunk(BlockStorage volume, ProtoHDFS.BlockMeta storedBlockMeta, long start, int length,
+                             byte[] target, int targetOffset) throws IOException {
+        volume.readBlock(storedBlockMeta, (channel, offset, currentBlockMeta) -> {
+            if(currentBlockMeta.getCodec() == ProtoHDFS.CompressionCodec.NONE){
+                BlockCompressor.readFully(channel, ByteBuffer.wrap(target, targetOffset, length), offset + start);
+                return null;
+            }
+
+            BlockCompressor blockCompressor = new BlockCompressor(currentBlockMeta);
+            int compressedChunkSize = blockCompressor.getChunkSize();
+            int firstChunk = (int) (start / compressedChunkSize);
+            int lastChunk = (int) ((start + length - 1) / compressedChunkSize);
+            byte[] decompressed = blockCompressor.decompress(channel, offset, currentBlockMeta, firstChunk,
+                    lastChunk);
+            System.arraycopy(decompressed, (int) (start - (long) firstChunk * compressedChunkSize), target,
+                    targetOffset, length);
+            return null;
+        });
+    }
+
+    protected byte[] failureResponse(String requestId, String errorMessage){
+        ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
+        responseBuilder.setResponseId(requestId);
+        responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.FAILURE);
+        responseBuilder.setErrorMessage(errorMessage);
+        ProtoHDFS.Response response = responseBuilder.buildPartial();
+        responseBuilder.clear();
+
+        return response.toByteArray();
+    }
+
+    // Finds a block of the file stored on this data node, whichever replication or EC unit it is, or null
+    protected ProtoHDFS.BlockMeta findLocalBlock(String fileName, int blockNumber){
+        for(int repNumber = 0; repNumber < MAX_REP_NUMBER; repNumber++){
+            ProtoHDFS.BlockMeta blockMeta = this.blockMetas.get(fileName + "_" + blockNumber + "_" + repNumber);
+            if(blockMeta != null){
+                return blockMeta;
+            }
+        }
+        return null;
+    }
+
+    // Whoever makes a read, for the read-ahead to tell readers apart: the client id the request carries, or for
+    // clients that don't send one the host calling through RMI
+    protected static String reader(ProtoHDFS.Request request){
+        return request.hasReaderId() ? request.getReaderId() : clientHost();
+    }
+
+    // Host of the client calling through RMI, or "local" for calls from inside this process
+    protected static String clientHost(){
+        try{
+            return RemoteServer.getClientHost();
+        }catch(ServerNotActiveException e){
+            return "local";
+        }
+    }
+
+    // Writes a block and its meta to the volume and returns the meta as stored, with its length and checksums (and
+    // compressed chunk lengths if the block is compressed) filled in. Small blocks are appended to a container file
+    // and their meta goes in the container record, so they cost no files of their own
+    protected ProtoHDFS.BlockMeta writeBlockContents(BlockStorage volume, ProtoHDFS.BlockMeta blockMeta,
+                                                     ByteString blockContents) throws IOException {
+        String blockName = BlockStorage.blockName(blockMeta);
+        ProtoHDFS.BlockMeta.Builder storedBlockMetaBuilder = blockMeta.toBuilder();
+        storedBlockMetaBuilder.clearContainerId().clearContainerOffset().clearContainerSequence();
+        storedBlockMetaBuilder.setBlockLength(blockContents.size());
+        storedBlockMetaBuilder.setBytesPerChecksum(BlockChecksum.DEFAULT_BYTES_PER_CHECKSUM);
+        List<Integer> checksums = BlockChecksum.compute(blockContents.asReadOnlyByteBuffer(),
+                BlockChecksum.DEFAULT_BYTES_PER_CHECKSUM);
+        storedBlockMetaBuilder.clearChecksums().addAllChecksums(checksums);
+        ByteBuffer storedContents;
+        if(blockMeta.getCodec() == ProtoHDFS.CompressionCodec.NONE){
+            storedContents = blockContents.asReadOnlyByteBuffer();
         }else{
-            ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
-            responseBuilder.setResponseId(requestId);
-            responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.FAILURE);
-            responseBuilder.setErrorMessage(String.format("Block %1$d replication %2$d for %3$s does not exist",
-                    blockNumber, repNumber, fileName));
-            ProtoHDFS.Response response = responseBuilder.buildPartial();
-            responseBuilder.clear();
+            // The block is compressed in independent chunks and the compressed chunk lengths are kept in the
+            // block meta so a reader can find and decompress any single chunk
+            BlockCompressor blockCompressor = new BlockCompressor(blockMeta);
+            ByteArrayOutputStream compressedContents = new ByteArrayOutputStream();
+            List<Integer> chunkLengths = blockCompressor.compress(blockContents.toByteArray(), compressedContents);
+            storedBlockMetaBuilder.setChunkSize(blockCompressor.getChunkSize());
+            storedBlockMetaBuilder.clearChunkLengths().addAllChunkLengths(chunkLengths);
+            storedContents = ByteBuffer.wrap(compressedContents.toByteArray());
+        }
+        ProtoHDFS.BlockMeta storedBlockMeta = storedBlockMetaBuilder.build();
+        storedBlockMetaBuilder.clear();
 
-            return response.toByteArray();
+        // A block that is written again may move between a container and its own file if its size changed
+        if(storedContents.remaining() <= this.smallBlockSize){
+            storedBlockMeta = volume.getContainers().append(storedBlockMeta, storedContents, this.blockWriter);
+            volume.removeBlockFile(blockName);
+        }else{
+            volume.getContainers().delete(blockName);
+            this.blockWriter.write(volume.createBlockFile(blockName), storedContents);
+            volume.writeBlockMeta(storedBlockMeta, this.blockWriter);
         }
+        return storedBlockMeta;
+    }
+
+    // Appends the contents to a block at offset, which has to be the current length of the block so a retried or
+    // reordered append can never write the same bytes twice. An append at 0 to a block that doesn't exist yet creates
+    // it, which is how the blocks added to a file by an append are written
+    protected byte[] appendBlock(String requestId, ProtoHDFS.BlockMeta blockMeta, long offset, ByteString contents)
+            throws IOException {
+        String fileName = blockMeta.getFileName();
+        int blockNumber = blockMeta.getBlockNumber();
+        int repNumber = blockMeta.getRepNumber();
+        String blockName = BlockStorage.blockName(blockMeta);
+
+        Lock blockLock = blockLock(blockName).writeLock();
+        blockLock.lock();
+        this.writingBlocks.add(blockName);
+        try{
+            ProtoHDFS.BlockMeta storedBlockMeta = this.blockMetas.get(blockName);
+            BlockStorage volume = this.volumeManager.getVolume(blockName);
+            boolean appendable = storedBlockMeta == null || (volume != null && storedBlockMeta.hasBlockLength()
+                    && storedBlockMeta.hasBytesPerChecksum());
+            long blockLength = storedBlockMeta == null ? 0 : storedBlockMeta.getBlockLength();
+            if(!appendable || offset != blockLength){
+                return failureResponse(requestId, String.format("Block %1$d replication %2$d for %3$s has "
+                        + "%4$d bytes, can't append at %5$d", blockNumber, repNumber, fileName, blockLength,
+                        offset));
+            }
+
+            ProtoHDFS.BlockMeta appendedBlockMeta;
+            if(storedBlockMeta == null){
+                BlockStorage newVolume = this.volumeManager.chooseVolume(blockName, contents.size());
+                try{
+                    appendedBlockMeta = this.volumeManager.execute(newVolume,
+                            () -> writeBlockContents(newVolume, blockMeta, contents));
+                }catch(IOException e){
+                    this.volumeManager.discardFailedWrite(blockName, newVolume);
+                    throw e;
+                }
+            }else{
+                appendedBlockMeta = this.volumeManager.execute(volume,
+                        () -> appendBlockContents(volume, storedBlockMeta, contents));
+            }
+            this.blockMetas.put(blockName, appendedBlockMeta);
+            this.blockCache.invalidate(blockName);
+        }finally{
+            this.writingBlocks.remove(blockName);
+            blockLock.unlock();
+        }
+
+        ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
+        responseBuilder.setResponseId(requestId);
+        responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.SUCCESS);
+        responseBuilder.setErrorMessage(String.format("Block %1$d replication %2$d for %3$s append success",
+                blockNumber, repNumber, fileName));
+        ProtoHDFS.Response response = responseBuilder.buildPartial();
+        responseBuilder.clear();
+        return response.toByteArray();
+    }
+
+    // A ReentrantReadWriteLock rather than a monitor since it is held across disk I/O, which would pin the carrier
+    // thread of a virtual thread handler
+    protected ReentrantReadWriteLock blockLock(String blockName){
+        return this.blockLocks.computeIfAbsent(blockName, name -> new ReentrantReadWriteLock());
+    }
+
+    // Extends a stored block in place. Only the bytes that change are written: an uncompressed block gets the new
+    // bytes at its end, a compressed block has its last partial chunk compressed again together with the new bytes.
+    // Checksums are computed again from the last partial checksum chunk on. Packed blocks are written again whole
+    // since container records can't grow. Runs under the write lock of the block, so no reader sees it halfway
+    protected ProtoHDFS.BlockMeta appendBlockContents(BlockStorage volume, ProtoHDFS.BlockMeta storedBlockMeta,
+                                                      ByteString contents) throws IOException {
+        String blockName = BlockStorage.blockName(storedBlockMeta);
+        long blockLength = storedBlockMeta.getBlockLength();
+        if(volume.getContainers().contains(blockName)){
+            byte[] current = readRange(volume, storedBlockMeta, 0, (int) blockLength);
+            return writeBlockContents(volume, storedBlockMeta, ByteString.copyFrom(current).concat(contents));
+        }
+
+        boolean compressed = storedBlockMeta.getCodec() != ProtoHDFS.CompressionCodec.NONE;
+        BlockCompressor blockCompressor = compressed ? new BlockCompressor(storedBlockMeta) : null;
+        int keptChunks = compressed ? (int) (blockLength / blockCompressor.getChunkSize()) : 0;
+        long compressedStart = compressed ? (long) keptChunks * blockCompressor.getChunkSize() : blockLength;
+        long checksumStart = BlockChecksum.alignStart(storedBlockMeta, blockLength);
+
+        // The end of the block that has to be read back is the last partial checksum chunk (and compressed chunk)
+        long tailStart = Math.min(checksumStart, compressedStart);
+        byte[] tail = readRange(volume, storedBlockMeta, tailStart, (int) (blockLength - tailStart));
+        byte[] newTail = new byte[tail.length + contents.size()];
+        System.arraycopy(tail, 0, newTail, 0, tail.length);
+        contents.copyTo(newTail, tail.length);
+
+        ProtoHDFS.BlockMeta.Builder appendedBlockMetaBuilder = storedBlockMeta.toBuilder();
+        appendedBlockMetaBuilder.setBlockLength(blockLength + contents.size());
+        List<Integer> checksums = new ArrayList<>(storedBlockMeta.getChecksumsList()
+                .subList(0, BlockChecksum.chunkOf(storedBlockMeta, checksumStart)));
+        int checksumOffset = (int) (checksumStart - tailStart);
+        checksums.addAll(BlockChecksum.compute(ByteBuffer.wrap(newTail, checksumOffset,
+                newTail.length - checksumOffset), storedBlockMeta.getBytesPerChecksum()));
+        appendedBlockMetaBuilder.clearChecksums().addAllChecksums(checksums);
+
+        if(compressed){
+            // The compressed bytes of the last chunk are replaced, so they go through the append journal of the
+            // volume to survive a crash between the block file and its meta
+            long position = 0;
+            List<Integer> keptChunkLengths = storedBlockMeta.getChunkLengthsList().subList(0, keptChunks);
+            for(int chunkLength : keptChunkLengths){
+                position += chunkLength;
+            }
+            int compressOffset = (int) (compressedStart - tailStart);
+            ByteArrayOutputStream compressedContents = new ByteArrayOutputStream();
+            List<Integer> chunkLengths = blockCompressor.compress(Arrays.copyOfRange(newTail, compressOffset,
+                    newTail.length), compressedContents);
+            appendedBlockMetaBuilder.clearChunkLengths().addAllChunkLengths(keptChunkLengths)
+                    .addAllChunkLengths(chunkLengths);
+            ByteBuffer compressedTail = ByteBuffer.wrap(compressedContents.toByteArray());
+            ProtoHDFS.BlockMeta appendedBlockMeta = appendedBlockMetaBuilder.build();
+            appendedBlockMetaBuilder.clear();
+
+            volume.writeTail(blockName, position, appendedBlockMeta.getBlockLength(), compressedTail,
+                    this.blockWriter);
+            volume.writeBlockMeta(appendedBlockMeta, this.blockWriter);
+            volume.applyTail(blockName, position, compressedTail, this.blockWriter);
+            return appendedBlockMeta;
+        }
+
+        // The new bytes only go past the end of the block the current meta knows about
+        try(FileChannel channel = FileChannel.open(volume.blockFile(blockName).toPath(), StandardOpenOption.WRITE)){
+            ByteBuffer buffer = contents.asReadOnlyByteBuffer();
+            long position = blockLength;
+            while(buffer.hasRemaining()){
+                position += channel.write(buffer, position);
+            }
+            channel.truncate(position);
+            this.blockWriter.sync(channel);
+        }
+
+        ProtoHDFS.BlockMeta appendedBlockMeta = appendedBlockMetaBuilder.build();
+        appendedBlockMetaBuilder.clear();
+        volume.writeBlockMeta(appendedBlockMeta, this.blockWriter);
+        return appendedBlockMeta;
     }
 
     @Override
-    public byte[] writeBlock(byte[] inp) throws IOException {
+    public byte[] requestShortCircuitRead(byte[] inp) throws IOException {
         ProtoHDFS.Request request = ProtoHDFS.Request.parseFrom(inp);
         String requestId = request.getRequestId();
 
-        // Make the replication factor configurable later
-        int repFactor = 3;
         List<ProtoHDFS.Block> requestBlockList = request.getBlockList();
         LinkedList<ProtoHDFS.Block> blockList = new LinkedList<>(requestBlockList);
 
         ProtoHDFS.Block block = blockList.pop();
         ProtoHDFS.BlockMeta blockMeta = block.getBlockMeta();
-        String blockContents = block.getBlockContents();
 
         String fileName = blockMeta.getFileName();
         int blockNumber = blockMeta.getBlockNumber();
         int repNumber = blockMeta.getRepNumber();
+        String blockName = BlockStorage.blockName(blockMeta);
 
-        if(repNumber < repFactor){
-            // Send a 'request' object to the next data node to replicate block on another data node
-            // Still need to figure out how to access other data nodes from a data node
-        }
+        BlockStorage volume = this.volumeManager.getVolume(blockName);
 
-        String blockName = fileName + "_" + blockNumber + "_" + repNumber;
-        File file = new File(blockName);
-        FileOutputStream fileOutputStream;
-        if(file.exists() || file.createNewFile()){
-            fileOutputStream = new FileOutputStream(file);
-            fileOutputStream.write(blockContents.getBytes());
-            fileOutputStream.flush();
-            fileOutputStream.close();
+        // The block file path is only handed out to clients running on this same host since it is useless anywhere
+        // else and we don't want to leak the layout of the data node's disk
+        boolean localClient;
+        try{
+            InetAddress clientAddress = InetAddress.getByName(RemoteServer.getClientHost());
+            localClient = clientAddress.isLoopbackAddress() || NetworkInterface.getByInetAddress(clientAddress) != null;
+        }catch(ServerNotActiveException e){
+            // Not called through RMI so the caller is in this same process
+            localClient = true;
         }
 
         ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
         responseBuilder.setResponseId(requestId);
-        responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.SUCCESS);
-        responseBuilder.setErrorMessage(String.format("Block %1$d replication %2$d for %3$s write success",
-                blockNumber, repNumber, fileName));
+        if(!localClient){
+            responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.FAILURE);
+            responseBuilder.setErrorMessage("Short-circuit reads are only allowed for clients on the same host");
+            responseBuilder.setRemoteClient(true);
+        }else if(!this.blockMetas.containsKey(blockName) || volume == null){
+            responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.FAILURE);
+            responseBuilder.setErrorMessage(String.format("Block %1$d replication %2$d for %3$s does not exist",
+                    blockNumber, repNumber, fileName));
+        }else if(volume.getContainers().contains(blockName)){
+            // Containers are compacted in the background so the location of a packed block can't be handed out
+            responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.FAILURE);
+            responseBuilder.setErrorMessage(String.format("Block %1$d replication %2$d for %3$s is packed in a "
+                    + "container and must be read through the data node", blockNumber, repNumber, fileName));
+        }else{
+            // The stored block meta carries the checksums (and compression chunk lengths) the client needs to read
+            // and verify the file on its own
+            ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
+            blockBuilder.setBlockMeta(this.blockMetas.get(blockName));
+            ProtoHDFS.Block responseBlock = blockBuilder.build();
+            blockBuilder.clear();
+
+            responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.SUCCESS);
+            responseBuilder.setBlock(responseBlock);
+            responseBuilder.setLocalPath(volume.blockFile(blockName).getAbsolutePath());
+            responseBuilder.setErrorMessage(String.format("Block %1$d replication %2$d for %3$s can be read locally",
+                    blockNumber, repNumber, fileName));
+        }
         ProtoHDFS.Response response = responseBuilder.buildPartial();
         responseBuilder.clear();
+
         return response.toByteArray();
     }
 
+    // Changes how block writes are made durable. The fsync latencies of the old writer are not carried over
+    public void setDurability(BlockWriter.Durability durability){
+        BlockWriter oldBlockWriter = this.blockWriter;
+        this.blockWriter = new BlockWriter(durability, 1024 * 1024, 64, 2000);
+        oldBlockWriter.close();
+    }
+
+    public LatencyHistogram getFsyncLatencies(){
+        return this.blockWriter.getFsyncLatencies();
+    }
+
+    public BlockCache getBlockCache(){
+        return this.blockCache;
+    }
+
+    public MetricsRegistry getMetrics(){
+        return this.metrics;
+    }
+
+    // Serves the metrics of this data node as text at http://<address>/metrics
+    public InetSocketAddress startMetricsEndpoint(InetSocketAddress bindAddress) throws IOException {
+        return this.metrics.startHttpEndpoint(bindAddress);
+    }
+
+    // Starts the background thread that re-verifies the checksums of all blocks every scanPeriodMillis, reading at
+    // most bytesPerSecond and pausing while more than maxForegroundRequests reads and writes are in progress
+    public void startBlockScanner(NameNodeInterface nameNodeStub, long bytesPerSecond, long scanPeriodMillis,
+                                  int maxForegroundRequests){
+        this.blockScanner = new BlockScanner(this, nameNodeStub, bytesPerSecond, scanPeriodMillis,
+                maxForegroundRequests);
+        Thread scannerThread = new Thread(this.blockScanner, "BlockScanner-" + this.dataId);
+        scannerThread.setDaemon(true);
+        scannerThread.start();
+    }
+
+    // Starts telling the name node that this data node is alive every heartbeatMillis, and which blocks it holds
+    // every blockReportMillis. The two run on threads of their own so a large block report never delays a heartbeat
+    public void startHeartbeats(NameNodeInterface nameNodeStub, long heartbeatMillis, long blockReportMillis){
+        this.heartbeatExecutor = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, "Heartbeat-" + this.dataId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.heartbeatExecutor.scheduleWithFixedDelay(() -> sendHeartbeat(nameNodeStub), 0, heartbeatMillis,
+                TimeUnit.MILLISECONDS);
+        this.heartbeatExecutor.scheduleWithFixedDelay(() -> sendBlockReport(nameNodeStub), 0, blockReportMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    protected void sendHeartbeat(NameNodeInterface nameNodeStub){
+        ProtoHDFS.Heartbeat.Builder heartbeatBuilder = ProtoHDFS.Heartbeat.newBuilder();
+        heartbeatBuilder.setDataId(this.dataId);
+        heartbeatBuilder.setDataIp(this.dataIp);
+        heartbeatBuilder.setDataPort(String.valueOf(this.port));
+        ProtoHDFS.Heartbeat heartbeat = heartbeatBuilder.buildPartial();
+        heartbeatBuilder.clear();
+        try{
+            nameNodeStub.heartBeat(heartbeat.toByteArray());
+        }catch(RemoteException e){
+            System.out.println("Heartbeat of " + this.dataId + " failed: " + e.getMessage());
+        }
+    }
+
+    // Reports the metas of all blocks this data node serves, without their contents
+    protected void sendBlockReport(NameNodeInterface nameNodeStub){
+        ProtoHDFS.BlockReport.Builder blockReportBuilder = ProtoHDFS.BlockReport.newBuilder();
+        for(ProtoHDFS.BlockMeta blockMeta : this.blockMetas.values()){
+            blockReportBuilder.addDataNodeBlocks(ProtoHDFS.Block.newBuilder().setBlockMeta(blockMeta));
+        }
+        ProtoHDFS.BlockReport blockReport = blockReportBuilder.buildPartial();
+        blockReportBuilder.clear();
+        try{
+            nameNodeStub.blockReport(blockReport.toByteArray());
+        }catch(RemoteException e){
+            System.out.println("Block report of " + this.dataId + " failed: " + e.getMessage());
+        }
+    }
+
+    // Starts serving readBlock and writeBlock over the non-blocking RPC transport next to RMI, see AsyncClient
+    public InetSocketAddress startRpcServer(InetSocketAddress bindAddress, int handlerThreads) throws IOException {
+        return startRpcServer(bindAddress, 1, handlerThreads, false);
+    }
+
+    // With virtualHandlers every block transfer can have a handler of its own (say 10000 of them) without a platform
+    // thread stack for each, see RpcServer. The handlers then do their disk I/O themselves instead of queueing it for
+    // the I/O threads of the volumes
+    public InetSocketAddress startRpcServer(InetSocketAddress bindAddress, int readerThreads, int handlerThreads,
+                                            boolean virtualHandlers) throws IOException {
+        this.volumeManager.setCallerRuns(virtualHandlers);
+        this.rpcServer = new RpcServer(this.dataId, bindAddress, readerThreads, handlerThreads,
+                new FifoCallQueue(100 * handlerThreads), virtualHandlers);
+        this.rpcServer.register("readBlock", this.instrumented::readBlock);
+        this.rpcServer.register("writeBlock", this.instrumented::writeBlock);
+        this.rpcServer.registerMetrics(this.metrics, "rpc");
+        this.rpcServer.start();
+        return this.rpcServer.getAddress();
+    }
+
+    // Stops serving requests and saves a snapshot of the block index so the next start doesn't need to scan the disk
+    public void shutdown(){
+        if(this.heartbeatExecutor != null){
+            this.heartbeatExecutor.shutdownNow();
+        }
+        if(this.blockScanner != null){
+            this.blockScanner.stop();
+        }
+        if(this.rpcServer != null){
+            this.rpcServer.stop();
+        }
+        this.blockWriter.close();
+        System.out.println("Block cache of " + this.dataId + ": " + this.blockCache);
+        this.readAhead.close();
+        this.blockCache.clear();
+        this.metrics.close();
+
+        try{
+            UnicastRemoteObject.unexportObject(this.instrumented, true);
+        }catch(NoSuchObjectException ignored){
+            // Was never bound to a registry
+        }
+
+        try{
+            this.volumeManager.saveSnapshot(this.blockMetas.values());
+            this.volumeManager.close();
+            System.out.println("\n Data Node " + this.dataId + " shut down cleanly \n");
+        }catch(IOException e){
+            System.err.println("Failed to save block index snapshot: " + e.toString());
+        }
+    }
+
     // This method binds the Data Node to the server so the client can access it and use its services (methods)
     public void bindServer(String dataId, String dataIp, int dataPort){
         try{
             // This is the stub which will be used to remotely invoke methods on another Data Node
             // Initial value of the port is set to 0
-            DataNodeInterface dataNodeStub = (DataNodeInterface) UnicastRemoteObject.exportObject(this, 0);
+            DataNodeInterface dataNodeStub = (DataNodeInterface) UnicastRemoteObject.exportObject(this.instrumented, 0);
 
             // This sets the IP address of this particular Data Node instance
             System.setProperty("java.rmi.server.hostname", dataIp);
@@ -141,6 +832,14 @@ public class DataNode implements DataNodeInterface {
         }
     }
 
+    // Binds this data node to a registry in the same JVM under its data id, exported on a server socket from the
+    // factory, like a loopback only one
+    public void bindServer(Registry registry, RMIServerSocketFactory serverSocketFactory) throws RemoteException {
+        DataNodeInterface dataNodeStub = (DataNodeInterface) UnicastRemoteObject.exportObject(this.instrumented, 0,
+                null, serverSocketFactory);
+        registry.rebind(this.dataId, dataNodeStub);
+    }
+
     public DataNodeInterface getDNStub(String dataId, String dataIp, int dataPort) {
         while(true){
             try{
@@ -157,9 +856,19 @@ public class DataNode implements DataNodeInterface {
         }
     }
 
+    // Makes the calls of this data node to the name node go over the RPC transport to the address, normally the one
+    // of the name node's service RPC server
+    public void useRpcNameNode(InetSocketAddress nameNodeServiceAddress) throws IOException {
+        this.rpcNameStub = new NameNodeRpcStub(new RpcClient(this.dataId, 1, ForkJoinPool.commonPool()),
+                nameNodeServiceAddress, 30000);
+    }
+
     // This method finds the Name Node and returns a stub (Remote to the Name Node) with which the Data Node
     // could use to invoke functions on the Name Node
     public NameNodeInterface getNNStub(String id, String ip, int port){
+        if(this.rpcNameStub != null){
+            return this.rpcNameStub;
+        }
         while(true){
             try{
                 // This gets the remote object registry at the specified port
@@ -13,4 +13,7 @@ public interface DataNodeInterface extends Remote {
 
     /* Method to write data to a specific block */
     byte[] writeBlock(byte[] inp) throws IOException;
+
+    /* Method that gives a client on the same host the local path and checksums of a block to read it directly */
+    byte[] requestShortCircuitRead(byte[] inp) throws IOException;
 }
@@ -0,0 +1,35 @@
+package ds.hdfs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Pool of direct byte buffers of one size. Direct buffers are expensive to allocate and are only freed by the GC, so
+// they are handed back to the pool after each use instead of being allocated per write
+public class DirectBufferPool {
+    protected final int bufferSize;
+    protected final ArrayBlockingQueue<ByteBuffer> buffers;
+
+    public DirectBufferPool(int bufferSize, int maxPooledBuffers){
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(maxPooledBuffers);
+    }
+
+    public int getBufferSize(){
+        return this.bufferSize;
+    }
+
+    // Takes a cleared buffer out of the pool, allocating a new one if the pool is empty
+    public ByteBuffer acquire(){
+        ByteBuffer buffer = this.buffers.poll();
+        if(buffer == null){
+            buffer = ByteBuffer.allocateDirect(this.bufferSize);
+        }
+        return buffer;
+    }
+
+    // Gives a buffer back to the pool. If the pool is already full the buffer is left for the GC
+    public void release(ByteBuffer buffer){
+        buffer.clear();
+        this.buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,175 @@
+package ds.hdfs;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Call queue that shares the handlers fairly between clients. Every client gets a priority level from its share of
+// the recent calls: a client making at least half of them goes to the lowest level, at least a quarter to the next
+// one and so on, while light clients stay at level 0. The call counts decay over time so a client that calms down
+// moves back up. Handlers take calls from the levels by weighted round robin (8, 4, 2, 1 calls for four levels), so
+// one heavy client can slow itself down but never starve the others
+public class FairCallQueue implements CallQueue {
+    protected final int capacity;
+    protected final ArrayList<ArrayBlockingQueue<RpcServer.Call>> queues;
+    protected final int[] weights;
+    // Share of the recent calls from which a client is put at level i + 1
+    protected final double[] thresholds;
+    // One permit per queued call, so take() only looks at the levels once there is something to find
+    protected final Semaphore available;
+    // Level the round robin is at and how many more calls it takes from it, guarded by this
+    protected int currentLevel;
+    protected int remainingWeight;
+
+    protected final ConcurrentHashMap<String, AtomicLong> callCounts;
+    protected final AtomicLong totalCalls;
+    protected final double decayFactor;
+    protected final ScheduledExecutorService decayExecutor;
+
+    protected final LongAdder[] callsPerLevel;
+    protected final LongAdder callsRejected;
+
+    public FairCallQueue(int capacity){
+        this(4, capacity, 5000, 0.5);
+    }
+
+    // Every decayPeriodMillis the call counts of all clients are multiplied by decayFactor
+    public FairCallQueue(int levels, int capacity, long decayPeriodMillis, double decayFactor){
+        this.capacity = capacity;
+        this.queues = new ArrayList<>();
+        this.weights = new int[levels];
+        this.thresholds = new double[levels - 1];
+        this.callsPerLevel = new LongAdder[levels];
+        for(int i = 0; i < levels; i++){
+            this.queues.add(new ArrayBlockingQueue<>(Math.max(1, capacity / levels)));
+            this.weights[i] = 1 << (levels - 1 - i);
+            this.callsPerLevel[i] = new LongAdder();
+        }
+        for(int i = 0; i < levels - 1; i++){
+            this.thresholds[i] = Math.pow(2, i - (levels - 1));
+        }
+        this.available = new Semaphore(0);
+        this.currentLevel = 0;
+        this.remainingWeight = this.weights[0];
+
+        this.callCounts = new ConcurrentHashMap<>();
+        this.totalCalls = new AtomicLong();
+        this.decayFactor = decayFactor;
+        this.decayExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "FairCallQueue-Decay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.decayExecutor.scheduleAtFixedRate(this::decay, decayPeriodMillis, decayPeriodMillis,
+                TimeUnit.MILLISECONDS);
+        this.callsRejected = new LongAdder();
+    }
+
+    // A call that doesn't fit in the queue of its level may still go to a lower one, but never to a higher one
+    @Override
+    public boolean offer(RpcServer.Call call){
+        for(int level = priorityOf(call.getClientId()); level < this.queues.size(); level++){
+            if(this.queues.get(level).offer(call)){
+                this.callsPerLevel[level].increment();
+                this.available.release();
+                return true;
+            }
+        }
+        this.callsRejected.increment();
+        return false;
+    }
+
+    @Override
+    public RpcServer.Call take() throws InterruptedException {
+        this.available.acquire();
+        return next();
+    }
+
+    // Takes a call by weighted round robin. There is always one to take since the caller got a permit for it
+    protected synchronized RpcServer.Call next(){
+        while(true){
+            RpcServer.Call call = this.queues.get(this.currentLevel).poll();
+            if(call != null){
+                this.remainingWeight--;
+            }
+            if(call == null || this.remainingWeight <= 0){
+                this.currentLevel = (this.currentLevel + 1) % this.queues.size();
+                this.remainingWeight = this.weights[this.currentLevel];
+            }
+            if(call != null){
+                return call;
+            }
+        }
+    }
+
+    // Counts the call and gives the level of its client
+    protected int priorityOf(String clientId){
+        long clientCalls = this.callCounts.computeIfAbsent(clientId, c -> new AtomicLong()).incrementAndGet();
+        return levelOf(clientCalls, this.totalCalls.incrementAndGet());
+    }
+
+    protected int levelOf(long clientCalls, long totalCalls){
+        double share = (double) clientCalls / Math.max(clientCalls, totalCalls);
+        int level = 0;
+        while(level < this.thresholds.length && share >= this.thresholds[level]){
+            level++;
+        }
+        return level;
+    }
+
+    protected void decay(){
+        long total = 0;
+        for(Map.Entry<String, AtomicLong> entry : this.callCounts.entrySet()){
+            long decayed = (long) (entry.getValue().get() * this.decayFactor);
+            if(decayed == 0){
+                this.callCounts.remove(entry.getKey());
+            }else{
+                entry.getValue().set(decayed);
+                total += decayed;
+            }
+        }
+        this.totalCalls.set(total);
+    }
+
+    @Override
+    public int size(){
+        return this.available.availablePermits();
+    }
+
+    @Override
+    public int getCapacity(){
+        return this.capacity;
+    }
+
+    public long getCallsRejected(){
+        return this.callsRejected.sum();
+    }
+
+    // Level the next call of the client would go to, without counting it
+    public int getPriority(String clientId){
+        AtomicLong clientCalls = this.callCounts.get(clientId);
+        return clientCalls == null ? 0 : levelOf(clientCalls.get(), this.totalCalls.get());
+    }
+
+    @Override
+    public void close(){
+        this.decayExecutor.shutdownNow();
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder levels = new StringBuilder();
+        for(int i = 0; i < this.queues.size(); i++){
+            levels.append(String.format(" level%1$d=%2$d/%3$d", i, this.queues.get(i).size(),
+                    this.callsPerLevel[i].sum()));
+        }
+        return String.format("clients=%1$d rejected=%2$d%3$s", this.callCounts.size(), getCallsRejected(), levels);
+    }
+}
@@ -0,0 +1,34 @@
+package ds.hdfs;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Call queue that runs calls in the order they arrived, whoever made them
+public class FifoCallQueue implements CallQueue {
+    protected final int capacity;
+    protected final ArrayBlockingQueue<RpcServer.Call> calls;
+
+    public FifoCallQueue(int capacity){
+        this.capacity = capacity;
+        this.calls = new ArrayBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public boolean offer(RpcServer.Call call){
+        return this.calls.offer(call);
+    }
+
+    @Override
+    public RpcServer.Call take() throws InterruptedException {
+        return this.calls.take();
+    }
+
+    @Override
+    public int size(){
+        return this.calls.size();
+    }
+
+    @Override
+    public int getCapacity(){
+        return this.capacity;
+    }
+}
@@ -0,0 +1,103 @@
+package ds.hdfs;
+
+import proto.ProtoHDFS;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Client side cache of file handles (file sizes and block locations), so reading the same file again doesn't need
+// to ask the name node every time. An entry is used as is for its time to live. After that it stays around so the
+// caller can check its generation with the name node and put it back for another time to live (see getExpired),
+// which is cheaper than fetching the block locations again. A handle older (by generation) than the one already
+// cached never replaces it, and callers invalidate an entry as soon as a read with it fails or they change the file
+// themselves
+public class FileHandleCache {
+    protected static class Entry {
+        protected final ProtoHDFS.FileHandle fileHandle;
+        protected final long expiresAtNanos;
+
+        protected Entry(ProtoHDFS.FileHandle fileHandle, long expiresAtNanos){
+            this.fileHandle = fileHandle;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    protected final long ttlNanos;
+    protected final int maxEntries;
+    protected final ConcurrentHashMap<String, Entry> entries;
+    protected final LongAdder hits;
+    protected final LongAdder misses;
+    protected final LongAdder invalidations;
+
+    public FileHandleCache(long ttlMillis, int maxEntries){
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.maxEntries = maxEntries;
+        this.entries = new ConcurrentHashMap<>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.invalidations = new LongAdder();
+    }
+
+    // The cached file handle, or null if there is none or it expired
+    public ProtoHDFS.FileHandle get(String fileName){
+        Entry entry = this.entries.get(fileName);
+        if(entry != null && entry.expiresAtNanos - System.nanoTime() > 0){
+            this.hits.increment();
+            return entry.fileHandle;
+        }
+        this.misses.increment();
+        return null;
+    }
+
+    // The cached file handle if it expired, or null if there is none or it is still live. Putting it back once the
+    // name node confirmed its generation starts a new time to live
+    public ProtoHDFS.FileHandle getExpired(String fileName){
+        Entry entry = this.entries.get(fileName);
+        if(entry == null || entry.expiresAtNanos - System.nanoTime() > 0){
+            return null;
+        }
+        return entry.fileHandle;
+    }
+
+    public void put(ProtoHDFS.FileHandle fileHandle){
+        if(this.entries.size() >= this.maxEntries){
+            removeExpired();
+            // Still full of live entries, so just start over rather than keep track of which one is the oldest
+            if(this.entries.size() >= this.maxEntries){
+                this.entries.clear();
+            }
+        }
+        Entry newEntry = new Entry(fileHandle, System.nanoTime() + this.ttlNanos);
+        this.entries.merge(fileHandle.getFileName(), newEntry, (oldEntry, entry) ->
+                oldEntry.fileHandle.getGeneration() > entry.fileHandle.getGeneration() ? oldEntry : entry);
+    }
+
+    public void invalidate(String fileName){
+        if(this.entries.remove(fileName) != null){
+            this.invalidations.increment();
+        }
+    }
+
+    public void clear(){
+        this.entries.clear();
+    }
+
+    protected void removeExpired(){
+        long now = System.nanoTime();
+        this.entries.values().removeIf(entry -> entry.expiresAtNanos - now <= 0);
+    }
+
+    public long getHits(){
+        return this.hits.sum();
+    }
+
+    public long getMisses(){
+        return this.misses.sum();
+    }
+
+    @Override
+    public String toString(){
+        return String.format("entries=%1$d hits=%2$d misses=%3$d invalidations=%4$d", this.entries.size(), getHits(),
+                getMisses(), this.invalidations.sum());
+    }
+}
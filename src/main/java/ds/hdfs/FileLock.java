@@ -0,0 +1,102 @@
+package ds.hdfs;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Read/write lock of one file on the name node. A client opens a file in one call and closes it in another, and the
+// two calls usually run on different threads, so the lock is held by the id of the open request instead of by a
+// thread. Closing releases only what that open request acquired
+// The lock never waits: RPC handlers come from a fixed pool, and a handler parked behind a writer could leave no
+// handler free to serve the close that would let it go. A client that is turned away opens the file again later
+// Every hold is a lease, so a client that dies without closing loses the file once its lease runs out. A client that
+// is still working on the file renews its lease before then, see renew
+public class FileLock {
+    public static final long LEASE_MILLIS = 10 * 60 * 1000;
+
+    protected final long leaseMillis;
+    protected String writer;
+    protected long writerSince;
+    protected final HashMap<String, Long> readers;
+
+    public FileLock(){
+        this(LEASE_MILLIS);
+    }
+
+    public FileLock(long leaseMillis){
+        this.leaseMillis = leaseMillis;
+        this.readers = new HashMap<>();
+    }
+
+    // Returns false right away if someone writes the file
+    public synchronized boolean tryLockRead(String holder){
+        expireLeases();
+        if(this.writer != null){
+            return false;
+        }
+        this.readers.put(holder, System.currentTimeMillis());
+        return true;
+    }
+
+    // Returns false right away if someone reads or writes the file
+    public synchronized boolean tryLockWrite(String holder){
+        expireLeases();
+        if(this.writer != null || !this.readers.isEmpty()){
+            return false;
+        }
+        this.writer = holder;
+        this.writerSince = System.currentTimeMillis();
+        return true;
+    }
+
+    // Releases what the holder acquired. Returns false if it holds nothing
+    public synchronized boolean unlock(String holder){
+        if(holder.equals(this.writer)){
+            this.writer = null;
+            return true;
+        }
+        return this.readers.remove(holder) != null;
+    }
+
+    // Starts the lease of the holder over. Returns false if it holds nothing anymore, because it closed the file or its
+    // lease already ran out, in which case someone else may have the file by now
+    public synchronized boolean renew(String holder){
+        expireLeases();
+        long now = System.currentTimeMillis();
+        if(holder.equals(this.writer)){
+            this.writerSince = now;
+            return true;
+        }
+        if(this.readers.containsKey(holder)){
+            this.readers.put(holder, now);
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean isWriter(String holder){
+        expireLeases();
+        return holder.equals(this.writer);
+    }
+
+    public synchronized boolean isWriteLocked(){
+        expireLeases();
+        return this.writer != null;
+    }
+
+    protected void expireLeases(){
+        long oldest = System.currentTimeMillis() - this.leaseMillis;
+        if(this.writer != null && this.writerSince < oldest){
+            System.out.println("Lease of " + this.writer + " expired");
+            this.writer = null;
+        }
+        Iterator<Map.Entry<String, Long>> iterator = this.readers.entrySet().iterator();
+        while(iterator.hasNext()){
+            Map.Entry<String, Long> reader = iterator.next();
+            if(reader.getValue() < oldest){
+                System.out.println("Lease of " + reader.getKey() + " expired");
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ds.hdfs;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import proto.ProtoHDFS;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// Compares pooled and virtual thread handlers of a data node's RPC server on real block transfers.
+// Usage: HandlerModeBenchmark [concurrentCalls] [blockSize] [seconds] [pooledHandlers] [blocks]
+// For each mode a data node is started on a temporary directory. The client keeps concurrentCalls writeBlock calls in
+// flight for seconds, overwriting blocks of blockSize bytes picked at random out of blocks, then does the same with
+// readBlock. The pooled server gets pooledHandlers platform threads and the volume I/O pools, while the virtual one
+// gets a handler per call in flight that does its own disk I/O
+public class HandlerModeBenchmark {
+    public static void main(String[] args) throws Exception {
+        int concurrentCalls = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 64 * 1024;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int pooledHandlers = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        int blocks = args.length > 4 ? Integer.parseInt(args[4]) : 256;
+
+        System.out.println(String.format("%1$d calls in flight on %2$d blocks of %3$d bytes, virtual threads %4$s",
+                concurrentCalls, blocks, blockSize, VirtualThreads.isSupported() ? "available" : "not available"));
+        run("pooled", false, pooledHandlers, concurrentCalls, blockSize, seconds, blocks);
+        run("virtual", true, concurrentCalls, concurrentCalls, blockSize, seconds, blocks);
+    }
+
+    protected static void run(String mode, boolean virtualHandlers, int handlers, int concurrentCalls, int blockSize,
+                              int seconds, int blocks) throws Exception {
+        File directory = Files.createTempDirectory("handlerbenchmark").toFile();
+        String dataId = "benchmark-" + mode;
+        String loopbackIp = InetAddress.getLoopbackAddress().getHostAddress();
+        DataNode dataNode = new DataNode(dataId, loopbackIp, 0, directory);
+        InetSocketAddress address = dataNode.startRpcServer(new InetSocketAddress(loopbackIp, 0), 2, handlers,
+                virtualHandlers);
+        RpcClient client = new RpcClient(4);
+
+        byte[] contents = new byte[blockSize];
+        new Random(blockSize).nextBytes(contents);
+        byte[][] writeRequests = new byte[blocks][];
+        byte[][] readRequests = new byte[blocks][];
+        for(int i = 0; i < blocks; i++){
+            ProtoHDFS.BlockMeta blockMeta = ProtoHDFS.BlockMeta.newBuilder().setFileName("benchmark").setBlockNumber(i)
+                    .setRepNumber(0).setDataId(dataId).build();
+            writeRequests[i] = request(ProtoHDFS.Request.RequestType.WRITE, ProtoHDFS.Block.newBuilder()
+                    .setBlockMeta(blockMeta).setBlockContents(ByteString.copyFrom(contents)).build());
+            readRequests[i] = request(ProtoHDFS.Request.RequestType.READ, ProtoHDFS.Block.newBuilder()
+                    .setBlockMeta(blockMeta).build());
+            client.call(address, "writeBlock", writeRequests[i]).get();
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        transfer(mode, "writeBlock", client, address, writeRequests, concurrentCalls, seconds, handlers);
+        threads.resetPeakThreadCount();
+        transfer(mode, "readBlock", client, address, readRequests, concurrentCalls, seconds, handlers);
+
+        client.close();
+        dataNode.shutdown();
+        MiniCluster.deleteAll(directory);
+    }
+
+    // Keeps concurrentCalls calls of the method in flight for seconds, each with one of the requests at random
+    protected static void transfer(String mode, String method, RpcClient client, InetSocketAddress address,
+                                   byte[][] requests, int concurrentCalls, int seconds, int handlers)
+            throws Exception {
+        LatencyHistogram latencies = new LatencyHistogram();
+        LongAdder failures = new LongAdder();
+        Semaphore inFlight = new Semaphore(concurrentCalls);
+        long endNanos = System.nanoTime() + seconds * 1_000_000_000L;
+        while(System.nanoTime() < endNanos){
+            inFlight.acquire();
+            long startNanos = System.nanoTime();
+            byte[] request = requests[ThreadLocalRandom.current().nextInt(requests.length)];
+            CompletableFuture<byte[]> call = client.call(address, method, request);
+            call.whenComplete((response, error) -> {
+                if(error == null && succeeded(response)){
+                    latencies.record(System.nanoTime() - startNanos);
+                }else{
+                    failures.increment();
+                }
+                inFlight.release();
+            });
+        }
+        inFlight.acquire(concurrentCalls);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.println(String.format("%1$s %2$s: %3$d handlers, %4$d calls/s, %5$d failed, peak platform threads "
+                        + "%6$d, latency [%7$s]", mode, method, handlers, latencies.getCount() / seconds,
+                failures.sum(), threads.getPeakThreadCount(), latencies));
+    }
+
+    protected static byte[] request(ProtoHDFS.Request.RequestType requestType, ProtoHDFS.Block block){
+        ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+        requestBuilder.setRequestId(requestType + "-" + block.getBlockMeta().getBlockNumber());
+        requestBuilder.setRequestType(requestType);
+        requestBuilder.addBlock(block);
+        ProtoHDFS.Request request = requestBuilder.buildPartial();
+        requestBuilder.clear();
+        return request.toByteArray();
+    }
+
+    protected static boolean succeeded(byte[] response){
+        try{
+            return ProtoHDFS.Response.parseFrom(response).getResponseType() == ProtoHDFS.Response.ResponseType.SUCCESS;
+        }catch(InvalidProtocolBufferException e){
+            return false;
+        }
+    }
+}
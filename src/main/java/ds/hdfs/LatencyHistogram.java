@@ -0,0 +1,70 @@
+package ds.hdfs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock free histogram of latencies. Bucket i counts the latencies between 2^(i-1) and 2^i microseconds, which is
+// precise enough to see where the time goes while costing only a couple of atomic adds per recorded value
+public class LatencyHistogram {
+    protected static final int BUCKETS = 40;
+
+    protected final AtomicLongArray buckets;
+    protected final LongAdder count;
+    protected final LongAdder totalMicros;
+    protected final LongAccumulator maxMicros;
+
+    public LatencyHistogram(){
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.count = new LongAdder();
+        this.totalMicros = new LongAdder();
+        this.maxMicros = new LongAccumulator(Math::max, 0);
+    }
+
+    public void record(long nanos){
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        this.buckets.incrementAndGet(bucket);
+        this.count.increment();
+        this.totalMicros.add(micros);
+        this.maxMicros.accumulate(micros);
+    }
+
+    public long getCount(){
+        return this.count.sum();
+    }
+
+    public long getMeanMicros(){
+        long count = getCount();
+        return count == 0 ? 0 : this.totalMicros.sum() / count;
+    }
+
+    public long getMaxMicros(){
+        return this.maxMicros.get();
+    }
+
+    // Gets the upper bound in microseconds of the bucket the given percentile (0 to 100) falls in
+    public long getPercentileMicros(double percentile){
+        long count = getCount();
+        if(count == 0){
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += this.buckets.get(i);
+            if(seen >= rank){
+                return i == 0 ? 0 : 1L << i;
+            }
+        }
+        return getMaxMicros();
+    }
+
+    @Override
+    public String toString(){
+        return String.format("count=%1$d mean=%2$dus p50=%3$dus p99=%4$dus p999=%5$dus max=%6$dus", getCount(),
+                getMeanMicros(), getPercentileMicros(50), getPercentileMicros(99), getPercentileMicros(99.9),
+                getMaxMicros());
+    }
+}
@@ -0,0 +1,217 @@
+package ds.hdfs;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Metrics of one name node or data node: a latency histogram per RPC method, counters (ops, bytes) and gauges (queue
+// depths, cache ratios). Recording a value costs a few atomic adds and takes no lock. Everything can be read over JMX
+// and as plain text lines of "name value" from a local HTTP endpoint
+public class MetricsRegistry {
+    protected final ConcurrentHashMap<String, LatencyHistogram> histograms;
+    protected final ConcurrentHashMap<String, LongAdder> counters;
+    protected final ConcurrentHashMap<String, Supplier<Number>> gauges;
+    protected ObjectName objectName;
+    protected HttpServer httpServer;
+
+    public MetricsRegistry(){
+        this.histograms = new ConcurrentHashMap<>();
+        this.counters = new ConcurrentHashMap<>();
+        this.gauges = new ConcurrentHashMap<>();
+    }
+
+    public LatencyHistogram histogram(String name){
+        return this.histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    public LongAdder counter(String name){
+        return this.counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    // Adds a histogram that something else records into, like the queue latencies of an RPC server
+    public void histogram(String name, LatencyHistogram histogram){
+        this.histograms.put(name, histogram);
+    }
+
+    // The supplier is asked for the value every time the metrics are read
+    public void gauge(String name, Supplier<Number> value){
+        this.gauges.put(name, value);
+    }
+
+    // Wraps an RPC interface (like DataNodeInterface) so every call of one of its methods is timed in the histogram
+    // named after the method. Failed calls are counted in <method>.errors and the sizes of byte[] requests and
+    // responses in <method>.bytesIn and <method>.bytesOut
+    @SuppressWarnings("unchecked")
+    public <T> T instrument(Class<T> rpcInterface, T target){
+        return (T) Proxy.newProxyInstance(rpcInterface.getClassLoader(), new Class<?>[]{rpcInterface},
+                (proxy, method, args) -> {
+                    String name = method.getName();
+                    if(method.getDeclaringClass() == Object.class){
+                        return method.invoke(target, args);
+                    }
+                    if(args != null && args.length == 1 && args[0] instanceof byte[]){
+                        counter(name + ".bytesIn").add(((byte[]) args[0]).length);
+                    }
+
+                    long startNanos = System.nanoTime();
+                    try{
+                        Object result = method.invoke(target, args);
+                        if(result instanceof byte[]){
+                            counter(name + ".bytesOut").add(((byte[]) result).length);
+                        }
+                        return result;
+                    }catch(InvocationTargetException e){
+                        counter(name + ".errors").increment();
+                        throw e.getCause();
+                    }finally{
+                        histogram(name).record(System.nanoTime() - startNanos);
+                    }
+                });
+    }
+
+    // All metrics by name, with each histogram flattened into its count, mean, percentiles and max
+    public TreeMap<String, Number> snapshot(){
+        TreeMap<String, Number> values = new TreeMap<>();
+        for(Map.Entry<String, LatencyHistogram> entry : this.histograms.entrySet()){
+            LatencyHistogram histogram = entry.getValue();
+            values.put(entry.getKey() + ".count", histogram.getCount());
+            values.put(entry.getKey() + ".meanMicros", histogram.getMeanMicros());
+            values.put(entry.getKey() + ".p50Micros", histogram.getPercentileMicros(50));
+            values.put(entry.getKey() + ".p99Micros", histogram.getPercentileMicros(99));
+            values.put(entry.getKey() + ".p999Micros", histogram.getPercentileMicros(99.9));
+            values.put(entry.getKey() + ".maxMicros", histogram.getMaxMicros());
+        }
+        for(Map.Entry<String, LongAdder> entry : this.counters.entrySet()){
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        for(Map.Entry<String, Supplier<Number>> entry : this.gauges.entrySet()){
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        return values;
+    }
+
+    public String toText(){
+        StringBuilder text = new StringBuilder();
+        for(Map.Entry<String, Number> entry : snapshot().entrySet()){
+            text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    // Makes the metrics readable over JMX under the object name, for example "ds.hdfs:type=DataNode,name=dn1". A
+    // bean left behind under the same name (by a node that wasn't shut down) is replaced
+    public void registerMBean(String name){
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try{
+            this.objectName = new ObjectName(name);
+            try{
+                mBeanServer.registerMBean(new MetricsMBean(), this.objectName);
+            }catch(InstanceAlreadyExistsException e){
+                mBeanServer.unregisterMBean(this.objectName);
+                mBeanServer.registerMBean(new MetricsMBean(), this.objectName);
+            }
+        }catch(JMException e){
+            System.out.println("Failed to register metrics " + name + " with JMX: " + e.getMessage());
+        }
+    }
+
+    // Serves the metrics as text at /metrics on the address. Returns the address actually bound, so port 0 works
+    public InetSocketAddress startHttpEndpoint(InetSocketAddress bindAddress) throws IOException {
+        this.httpServer = HttpServer.create(bindAddress, 0);
+        this.httpServer.createContext("/metrics", exchange -> {
+            byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try(OutputStream outputStream = exchange.getResponseBody()){
+                outputStream.write(body);
+            }
+        });
+        this.httpServer.start();
+        return this.httpServer.getAddress();
+    }
+
+    public void close(){
+        if(this.httpServer != null){
+            this.httpServer.stop(0);
+        }
+        if(this.objectName != null){
+            try{
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+            }catch(JMException ignored){
+                // Was already unregistered
+            }
+        }
+    }
+
+    // Every metric is a read only attribute, and new metrics show up as they are created
+    protected class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if(value == null){
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute){
+            throw new UnsupportedOperationException("Metrics are read only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes){
+            TreeMap<String, Number> values = snapshot();
+            AttributeList attributeList = new AttributeList();
+            for(String attribute : attributes){
+                if(values.containsKey(attribute)){
+                    attributeList.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return attributeList;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes){
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature){
+            throw new UnsupportedOperationException("Metrics have no operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo(){
+            TreeMap<String, Number> values = snapshot();
+            MBeanAttributeInfo[] attributeInfos = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for(Map.Entry<String, Number> entry : values.entrySet()){
+                attributeInfos[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false);
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Metrics", attributeInfos, null, null, null);
+        }
+    }
+}
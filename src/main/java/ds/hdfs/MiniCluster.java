@@ -0,0 +1,233 @@
+package ds.hdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One name node and any number of data nodes in a single JVM, for benchmarks and integration tests on one machine.
+// Everything listens on loopback on ephemeral ports and the data nodes store their blocks in a temporary directory
+// that is deleted on close. Clients talk to the nodes over the RPC transport (see newClient), the data nodes send
+// their calls to the name node's service RPC server, and the name node finds the data nodes in an RMI registry of
+// this JVM that is never exposed on a fixed port. Data nodes can be stopped and restarted on their old storage to
+// script failures
+public class MiniCluster implements AutoCloseable {
+    protected static final int NAME_NODE_HANDLERS = 8;
+    protected static final int NAME_NODE_QUEUE_CAPACITY = 1000;
+    protected static final int DATA_NODE_HANDLERS = 4;
+    protected static final long HEARTBEAT_MILLIS = 3000;
+    protected static final long BLOCK_REPORT_MILLIS = 60 * 1000;
+
+    // RMI objects of the cluster accept connections on loopback only
+    protected static final RMIServerSocketFactory LOOPBACK_SOCKET_FACTORY =
+            port -> new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+
+    protected final File baseDirectory;
+    protected final Registry registry;
+    protected final NameNode nameNode;
+    protected final InetSocketAddress nameNodeAddress;
+    protected final InetSocketAddress nameNodeServiceAddress;
+    // Indexed by data node number, null while the data node is stopped
+    protected final ArrayList<DataNode> dataNodes;
+    // RPC address of every data node by data id. A stopped data node keeps its last address so calls to it fail
+    protected final ConcurrentHashMap<String, InetSocketAddress> dataNodeAddresses;
+    protected final ArrayList<AsyncClient> clients;
+
+    public MiniCluster(int numDataNodes) throws IOException {
+        this.baseDirectory = Files.createTempDirectory("minicluster").toFile();
+        // The stubs of the data nodes have to point at loopback too
+        System.setProperty("java.rmi.server.hostname", InetAddress.getLoopbackAddress().getHostAddress());
+        this.registry = LocateRegistry.createRegistry(0, null, LOOPBACK_SOCKET_FACTORY);
+
+        this.nameNode = new NameNode(this.registry);
+        this.nameNodeAddress = this.nameNode.startRpcServer(loopbackAddress(), 1, NAME_NODE_HANDLERS,
+                NAME_NODE_QUEUE_CAPACITY);
+        this.nameNodeServiceAddress = this.nameNode.startServiceRpcServer(loopbackAddress(), 2);
+
+        this.dataNodes = new ArrayList<>();
+        this.dataNodeAddresses = new ConcurrentHashMap<>();
+        this.clients = new ArrayList<>();
+        for(int i = 0; i < numDataNodes; i++){
+            this.dataNodes.add(null);
+            startDataNode(i);
+        }
+        System.out.println(String.format("Mini cluster with %1$d data nodes started, name node at %2$s, storage in "
+                + "%3$s", numDataNodes, this.nameNodeAddress, this.baseDirectory));
+    }
+
+    protected static InetSocketAddress loopbackAddress(){
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    public static String dataId(int dataNodeNumber){
+        return "dn" + dataNodeNumber;
+    }
+
+    // Starts the data node on its storage directory, which still holds its blocks if it ran before
+    protected void startDataNode(int dataNodeNumber) throws IOException {
+        String dataId = dataId(dataNodeNumber);
+        String loopbackIp = InetAddress.getLoopbackAddress().getHostAddress();
+        DataNode dataNode = new DataNode(dataId, loopbackIp, 0, new File(this.baseDirectory, dataId));
+        InetSocketAddress dataNodeAddress = dataNode.startRpcServer(loopbackAddress(), DATA_NODE_HANDLERS);
+        dataNode.useRpcNameNode(this.nameNodeServiceAddress);
+        dataNode.startHeartbeats(dataNode.rpcNameStub, HEARTBEAT_MILLIS, BLOCK_REPORT_MILLIS);
+        dataNode.bindServer(this.registry, LOOPBACK_SOCKET_FACTORY);
+        this.dataNodeAddresses.put(dataId, dataNodeAddress);
+        this.dataNodes.set(dataNodeNumber, dataNode);
+    }
+
+    // Shuts the data node down as if it failed. The name node stops assigning blocks to it but still lists the
+    // replicas it held, so reads have to fall back to other replicas
+    public synchronized void stopDataNode(int dataNodeNumber){
+        DataNode dataNode = this.dataNodes.get(dataNodeNumber);
+        if(dataNode == null){
+            return;
+        }
+        try{
+            this.registry.unbind(dataId(dataNodeNumber));
+        }catch(NotBoundException | IOException e){
+            System.out.println("Data node " + dataId(dataNodeNumber) + " was not bound: " + e.getMessage());
+        }
+        dataNode.shutdown();
+        this.dataNodes.set(dataNodeNumber, null);
+    }
+
+    // Starts a stopped data node again on a new port with the blocks it had
+    public synchronized void restartDataNode(int dataNodeNumber) throws IOException {
+        stopDataNode(dataNodeNumber);
+        startDataNode(dataNodeNumber);
+    }
+
+    // A new client of the cluster, closed with it
+    public synchronized AsyncClient newClient() throws IOException {
+        AsyncClient client = new AsyncClient(this.nameNodeAddress, this.dataNodeAddresses::get);
+        this.clients.add(client);
+        return client;
+    }
+
+    public NameNode getNameNode(){
+        return this.nameNode;
+    }
+
+    public InetSocketAddress getNameNodeAddress(){
+        return this.nameNodeAddress;
+    }
+
+    public InetSocketAddress getNameNodeServiceAddress(){
+        return this.nameNodeServiceAddress;
+    }
+
+    // The running data node with the number, or null if it is stopped
+    public synchronized DataNode getDataNode(int dataNodeNumber){
+        return this.dataNodes.get(dataNodeNumber);
+    }
+
+    public InetSocketAddress getDataNodeAddress(String dataId){
+        return this.dataNodeAddresses.get(dataId);
+    }
+
+    public int getNumDataNodes(){
+        return this.dataNodes.size();
+    }
+
+    public File getBaseDirectory(){
+        return this.baseDirectory;
+    }
+
+    @Override
+    public synchronized void close(){
+        for(AsyncClient client : this.clients){
+            client.close();
+        }
+        for(int i = 0; i < this.dataNodes.size(); i++){
+            stopDataNode(i);
+        }
+        this.nameNode.shutdown();
+        try{
+            UnicastRemoteObject.unexportObject(this.registry, true);
+        }catch(NoSuchObjectException ignored){
+            // Already unexported
+        }
+        deleteAll(this.baseDirectory);
+    }
+
+    protected static void deleteAll(File file){
+        File[] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                deleteAll(child);
+            }
+        }
+        if(!file.delete()){
+            System.out.println("Failed to delete " + file);
+        }
+    }
+
+    // Puts and gets files with many operations in flight, stops a data node and reads everything again.
+    // Usage: MiniCluster [dataNodes] [files] [fileSize] [concurrentOperations]
+    public static void main(String[] args) throws Exception {
+        int numDataNodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int fileSize = args.length > 2 ? Integer.parseInt(args[2]) : 64 * 1024;
+        int concurrentOperations = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        try(MiniCluster cluster = new MiniCluster(numDataNodes)){
+            AsyncClient client = cluster.newClient();
+            byte[] data = new byte[fileSize];
+            new Random(1).nextBytes(data);
+
+            run("put", files, concurrentOperations, i -> client.putFile("/minicluster/file" + i, data)
+                    .thenApply(done -> data));
+            run("get", files, concurrentOperations, i -> client.getFile("/minicluster/file" + i));
+
+            cluster.stopDataNode(0);
+            System.out.println("Stopped " + dataId(0));
+            run("get with " + dataId(0) + " down", files, concurrentOperations, i -> client
+                    .getFile("/minicluster/file" + i));
+
+            System.out.print(cluster.getNameNode().getRpcMetrics());
+        }
+    }
+
+    protected interface Operation {
+        CompletableFuture<byte[]> start(int fileNumber);
+    }
+
+    // Runs the operation on every file with at most concurrentOperations in flight and prints the throughput
+    protected static void run(String name, int files, int concurrentOperations, Operation operation){
+        LatencyHistogram latencies = new LatencyHistogram();
+        List<CompletableFuture<?>> inFlight = new ArrayList<>();
+        int failed = 0;
+        long startNanos = System.nanoTime();
+        for(int i = 0; i < files; i++){
+            long operationStartNanos = System.nanoTime();
+            inFlight.add(operation.start(i).thenRun(() -> latencies.record(System.nanoTime() - operationStartNanos)));
+            if(inFlight.size() == concurrentOperations || i == files - 1){
+                for(CompletableFuture<?> future : inFlight){
+                    try{
+                        future.join();
+                    }catch(RuntimeException e){
+                        failed++;
+                    }
+                }
+                inFlight.clear();
+            }
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.println(String.format("%1$s: %2$d files in %3$.2f s, %4$.0f ops/s, %5$d failed, latency [%6$s]",
+                name, files, seconds, files / seconds, failed, latencies));
+    }
+}
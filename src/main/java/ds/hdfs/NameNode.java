@@ -1,30 +1,67 @@
 package ds.hdfs;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import proto.ProtoHDFS;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 public class NameNode implements NameNodeInterface {
     protected Registry serverRegistry;
     protected ConcurrentHashMap<String, Boolean> requestsFulfilled;
     protected ConcurrentHashMap<String, ProtoHDFS.FileHandle> fileHandles;
-    protected ConcurrentHashMap<String, ReentrantReadWriteLock> fileLocks;
+    // Held from openFile until closeFile by the id of the open request, see FileLock
+    protected ConcurrentHashMap<String, FileLock> fileLocks;
+    // The grown file handle of every file open for an append, kept aside until the close says whether every replica
+    // took the appended bytes, see appendFile
+    protected ConcurrentHashMap<String, ProtoHDFS.FileHandle> pendingAppends;
+    // Source of the generations of file handles, incremented whenever a file handle is created or changed
+    protected AtomicLong generations;
     protected String nameId;
     protected String nameIp;
     protected int port;
+    // Runs the re-replication of corrupt replicas in the background so reporting them returns right away
+    protected ExecutorService replicationExecutor;
+    // Serves the same methods as the RMI interface to asynchronous clients, null unless started
+    protected RpcServer rpcServer;
+    // Serves only the data node methods on a port and handler pool of its own, null unless started
+    protected RpcServer serviceRpcServer;
+    // Latencies and sizes of the calls served and the call queue figures of the RPC servers
+    protected MetricsRegistry metrics;
+    // This name node wrapped so every call made to it is recorded in the metrics
+    protected NameNodeInterface instrumented;
     
     
     //Hashmap
-    private HashMap<String, Boolean> map_heartbeat;
+    private ConcurrentHashMap<String, Boolean> map_heartbeat;
     
-    private Namenode() {
-         map_heartbeat = new HashMap<>();
+    private NameNode() {
+        this.requestsFulfilled = new ConcurrentHashMap<>();
+        this.fileHandles = new ConcurrentHashMap<>();
+        this.fileLocks = new ConcurrentHashMap<>();
+        this.pendingAppends = new ConcurrentHashMap<>();
+        this.generations = new AtomicLong();
+        this.metrics = new MetricsRegistry();
+        this.instrumented = this.metrics.instrument(NameNodeInterface.class, this);
+        this.metrics.gauge("files", this.fileHandles::size);
+        this.metrics.registerMBean("ds.hdfs:type=NameNode");
+        this.replicationExecutor = Executors.newFixedThreadPool(4);
+        map_heartbeat = new ConcurrentHashMap<>();
+    }
+
+    // The data nodes are the names bound in the registry, where each data node binds itself (see MiniCluster)
+    public NameNode(Registry serverRegistry){
+        this();
+        this.serverRegistry = serverRegistry;
     }
 
     @Override
@@ -40,7 +77,20 @@ public class NameNode implements NameNodeInterface {
             // If read request, return a file handle
             // If write request, return an error response
             if(operation == ProtoHDFS.Request.RequestType.READ){
-                return getBlockLocations(inp);
+                Tracer.Span getBlockLocationsSpan = Tracer.start(request, "NameNode.getBlockLocations")
+                        .arg("file", fileName);
+                try{
+                    return getBlockLocations(inp);
+                }finally{
+                    getBlockLocationsSpan.close();
+                }
+            }else if(operation == ProtoHDFS.Request.RequestType.APPEND){
+                Tracer.Span appendFileSpan = Tracer.start(request, "NameNode.appendFile").arg("file", fileName);
+                try{
+                    return appendFile(inp);
+                }finally{
+                    appendFileSpan.close();
+                }
             }else if(operation == ProtoHDFS.Request.RequestType.WRITE){
                 ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
                 responseBuilder.setResponseId(requestId);
@@ -51,8 +101,14 @@ public class NameNode implements NameNodeInterface {
                 return response.toByteArray();
             }
         }else{
-            // If file does not exist, assign the blocks of the file to different data nodes
-            return assignBlock(inp);
+            // If file does not exist, assign the blocks of the file to different data nodes. Appending to a file
+            // that doesn't exist yet creates it
+            Tracer.Span assignBlockSpan = Tracer.start(request, "NameNode.assignBlock").arg("file", fileName);
+            try{
+                return assignBlock(inp);
+            }finally{
+                assignBlockSpan.close();
+            }
         }
 
         ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
@@ -72,19 +128,58 @@ public class NameNode implements NameNodeInterface {
         ProtoHDFS.FileHandle requestFileHandle = request.getFileHandle();
         String fileName = requestFileHandle.getFileName();
 
-        ReentrantReadWriteLock lock = this.fileLocks.get(fileName);
-        if(lock.isWriteLockedByCurrentThread()){
-            ReentrantReadWriteLock.WriteLock writeLock = lock.writeLock();
-            writeLock.unlock();
-        }else{
-            ReentrantReadWriteLock.ReadLock readLock = lock.readLock();
-            readLock.unlock();
+        // Only the lock the open request took is released, never one some other client holds
+        String closeMessage = "File handle for " + fileName + " successfully closed";
+        Tracer.Span closeFileSpan = Tracer.start(request, "NameNode.closeFile").arg("file", fileName);
+        try{
+            FileLock lock = this.fileLocks.get(fileName);
+            String openRequestId = request.getOpenRequestId();
+            if(lock != null && request.hasOpenRequestId() && lock.isWriter(openRequestId)){
+                // An append only shows up in the file handle once the client says every replica has the bytes.
+                // It is taken in before the lock goes so no reader ever sees the file without it
+                ProtoHDFS.FileHandle appendedFileHandle = this.pendingAppends.remove(fileName);
+                if(appendedFileHandle != null && request.getWriteSucceeded()){
+                    this.fileHandles.put(fileName, appendedFileHandle);
+                }else if(appendedFileHandle != null){
+                    closeMessage = "Append to " + fileName + " failed, the file keeps its old size";
+                }
+            }
+            if(lock == null || !request.hasOpenRequestId() || !lock.unlock(openRequestId)){
+                return failureResponse(requestId, String.format("File %1$s is not open for request %2$s", fileName,
+                        openRequestId));
+            }
+        }finally{
+            closeFileSpan.close();
         }
 
         ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
         responseBuilder.setResponseId(requestId);
         responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.SUCCESS);
-        responseBuilder.setErrorMessage("File handle for " + fileName + " successfully closed");
+        responseBuilder.setErrorMessage(closeMessage);
+        ProtoHDFS.Response response = responseBuilder.buildPartial();
+        responseBuilder.clear();
+        return response.toByteArray();
+    }
+
+    // Keeps the file lock of a client that is still reading or writing the file, see FileLock. Fails if the lease of
+    // the open request already ran out, and then the client must not go on since the file may be someone else's
+    @Override
+    public byte[] renewLease(byte[] inp) throws RemoteException, InvalidProtocolBufferException {
+        ProtoHDFS.Request request = ProtoHDFS.Request.parseFrom(inp);
+        String requestId = request.getRequestId();
+        String fileName = request.getFileHandle().getFileName();
+        String openRequestId = request.getOpenRequestId();
+
+        FileLock lock = this.fileLocks.get(fileName);
+        if(lock == null || !request.hasOpenRequestId() || !lock.renew(openRequestId)){
+            return failureResponse(requestId, String.format("File %1$s is not open for request %2$s", fileName,
+                    openRequestId));
+        }
+
+        ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
+        responseBuilder.setResponseId(requestId);
+        responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.SUCCESS);
+        responseBuilder.setErrorMessage("Lease on " + fileName + " renewed");
         ProtoHDFS.Response response = responseBuilder.buildPartial();
         responseBuilder.clear();
         return response.toByteArray();
@@ -100,16 +195,15 @@ public class NameNode implements NameNodeInterface {
         ProtoHDFS.FileHandle requestFileHandle = request.getFileHandle();
         String fileName = requestFileHandle.getFileName();
 
-        ReentrantReadWriteLock lock = this.fileLocks.get(fileName);
-        ReentrantReadWriteLock.ReadLock readLock = lock.readLock();
-        readLock.lock();
-
-        ProtoHDFS.FileHandle responseFileHandle = this.fileHandles.get(fileName);
-        List<ProtoHDFS.Pipeline> pipelines = responseFileHandle.getPipelinesList();
-        for(ProtoHDFS.Pipeline p : pipelines){
-            p.getBlocksList().sort(new RepSorter());
+        FileLock lock = this.fileLocks.get(fileName);
+        if(lock == null){
+            return failureResponse(requestId, "File " + fileName + " does not exist");
         }
-        pipelines.sort(new PipelineSorter());
+        if(!lock.tryLockRead(requestId)){
+            return failureResponse(requestId, "File " + fileName + " is being written, try again later");
+        }
+
+        ProtoHDFS.FileHandle responseFileHandle = sortFileHandle(this.fileHandles.get(fileName));
 
         ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
         responseBuilder.setResponseId(requestId);
@@ -122,6 +216,133 @@ public class NameNode implements NameNodeInterface {
         return response.toByteArray();
     }
 
+    // Lets a client check its cached file handle without the block locations or a lock: the response holds only the
+    // size and generation of the file, and it fails while someone writes or appends to the file
+    @Override
+    public byte[] getFileGeneration(byte[] inp) throws RemoteException, InvalidProtocolBufferException {
+        ProtoHDFS.Request request = ProtoHDFS.Request.parseFrom(inp);
+        String requestId = request.getRequestId();
+        String fileName = request.getFileHandle().getFileName();
+
+        FileLock lock = this.fileLocks.get(fileName);
+        ProtoHDFS.FileHandle fileHandle = this.fileHandles.get(fileName);
+        if(lock == null || fileHandle == null){
+            return failureResponse(requestId, "File " + fileName + " does not exist");
+        }
+        if(lock.isWriteLocked()){
+            return failureResponse(requestId, "File " + fileName + " is being written, try again later");
+        }
+
+        ProtoHDFS.FileHandle.Builder fileHandleBuilder = ProtoHDFS.FileHandle.newBuilder();
+        fileHandleBuilder.setFileName(fileName);
+        fileHandleBuilder.setFileSize(fileHandle.getFileSize());
+        fileHandleBuilder.setGeneration(fileHandle.getGeneration());
+        ProtoHDFS.FileHandle responseFileHandle = fileHandleBuilder.buildPartial();
+        fileHandleBuilder.clear();
+
+        ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
+        responseBuilder.setResponseId(requestId);
+        responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.SUCCESS);
+        responseBuilder.setFileHandle(responseFileHandle);
+        ProtoHDFS.Response response = responseBuilder.buildPartial();
+        responseBuilder.clear();
+
+        return response.toByteArray();
+    }
+
+    @Override
+    public byte[] getBatchBlockLocations(byte[] inp) throws RemoteException, InvalidProtocolBufferException {
+        // Gets the file handles for many files in one call, either by explicitly listing the file names or by
+        // giving a prefix (such as a directory) that all the wanted file names start with
+        ProtoHDFS.BatchRequest request = ProtoHDFS.BatchRequest.parseFrom(inp);
+        String requestId = request.getRequestId();
+
+        TreeSet<String> requestedFiles = new TreeSet<>(request.getFileNamesList());
+        if(request.hasPrefix()){
+            String prefix = request.getPrefix();
+            Collections.list(this.fileHandles.keys()).stream()
+                    .filter(f -> f.startsWith(prefix))
+                    .forEach(requestedFiles::add);
+        }
+
+        // All read locks are held until every handle has been copied so the response is one consistent view of the
+        // files. If any file is being written the whole batch fails rather than waiting for it
+        ArrayList<FileLock> heldLocks = new ArrayList<>();
+        ArrayList<ProtoHDFS.FileHandle> responseFileHandles = new ArrayList<>();
+        ArrayList<String> missingFileNames = new ArrayList<>();
+        ArrayList<String> busyFileNames = new ArrayList<>();
+        try{
+            for(String fileName : requestedFiles){
+                FileLock lock = this.fileLocks.get(fileName);
+                if(lock == null){
+                    missingFileNames.add(fileName);
+                }else if(lock.tryLockRead(requestId)){
+                    heldLocks.add(lock);
+                }else{
+                    busyFileNames.add(fileName);
+                }
+            }
+            if(!busyFileNames.isEmpty()){
+                ProtoHDFS.BatchResponse.Builder batchResponseBuilder = ProtoHDFS.BatchResponse.newBuilder();
+                batchResponseBuilder.setResponseId(requestId);
+                batchResponseBuilder.setResponseType(ProtoHDFS.BatchResponse.ResponseType.FAILURE);
+                batchResponseBuilder.setErrorMessage("Files " + busyFileNames + " are being written, try again later");
+                ProtoHDFS.BatchResponse batchResponse = batchResponseBuilder.buildPartial();
+                batchResponseBuilder.clear();
+                return batchResponse.toByteArray();
+            }
+
+            for(String fileName : requestedFiles){
+                ProtoHDFS.FileHandle fileHandle = this.fileHandles.get(fileName);
+                if(fileHandle != null){
+                    responseFileHandles.add(sortFileHandle(fileHandle));
+                }else if(!missingFileNames.contains(fileName)){
+                    missingFileNames.add(fileName);
+                }
+            }
+        }finally{
+            for(FileLock lock : heldLocks){
+                lock.unlock(requestId);
+            }
+        }
+
+        ProtoHDFS.BatchResponse.Builder batchResponseBuilder = ProtoHDFS.BatchResponse.newBuilder();
+        batchResponseBuilder.setResponseId(requestId);
+        batchResponseBuilder.setResponseType(ProtoHDFS.BatchResponse.ResponseType.SUCCESS);
+        batchResponseBuilder.addAllFileHandles(responseFileHandles);
+        batchResponseBuilder.addAllMissingFileNames(missingFileNames);
+        batchResponseBuilder.setErrorMessage(String.format("%1$d file handles obtained, %2$d files not found",
+                responseFileHandles.size(), missingFileNames.size()));
+        ProtoHDFS.BatchResponse batchResponse = batchResponseBuilder.build();
+        batchResponseBuilder.clear();
+
+        return batchResponse.toByteArray();
+    }
+
+    protected byte[] failureResponse(String requestId, String errorMessage){
+        ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
+        responseBuilder.setResponseId(requestId);
+        responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.FAILURE);
+        responseBuilder.setErrorMessage(errorMessage);
+        ProtoHDFS.Response response = responseBuilder.buildPartial();
+        responseBuilder.clear();
+        return response.toByteArray();
+    }
+
+    // Returns a copy of the file handle with the pipelines sorted by block number and the blocks in each pipeline
+    // sorted by replication number. The lists inside a protobuf message can't be sorted in place
+    protected ProtoHDFS.FileHandle sortFileHandle(ProtoHDFS.FileHandle fileHandle){
+        ArrayList<ProtoHDFS.Pipeline> pipelines = new ArrayList<>();
+        for(ProtoHDFS.Pipeline p : fileHandle.getPipelinesList()){
+            ArrayList<ProtoHDFS.Block> blocks = new ArrayList<>(p.getBlocksList());
+            blocks.sort(new RepSorter());
+            pipelines.add(p.toBuilder().clearBlocks().addAllBlocks(blocks).build());
+        }
+        pipelines.sort(new PipelineSorter());
+
+        return fileHandle.toBuilder().clearPipelines().addAllPipelines(pipelines).build();
+    }
+
     @Override
     public byte[] assignBlock(byte[] inp) throws RemoteException, InvalidProtocolBufferException {
         // To assign blocks, we first get the number of blocks that will be needed
@@ -135,12 +356,20 @@ public class NameNode implements NameNodeInterface {
         ProtoHDFS.FileHandle fileHandle = request.getFileHandle();
         String fileName = fileHandle.getFileName();
         long fileSize = fileHandle.getFileSize();
+        if(fileHandle.getCodec() != ProtoHDFS.CompressionCodec.NONE
+                && !BlockCompressor.isValidLevel(fileHandle.getCodecLevel())){
+            return failureResponse(requestId, String.format("Compression level %1$d of %2$s is not between -1 and 9",
+                    fileHandle.getCodecLevel(), fileName));
+        }
 
         synchronized (this){
             // This part locks the file handle once it has been created
             if(!this.fileLocks.containsKey(fileName)){
-                // File has not yet been initialized by another thread so create file handle
-                this.fileLocks.putIfAbsent(fileName, new ReentrantReadWriteLock());
+                // File has not yet been initialized by another thread so create file handle. The new lock is write
+                // locked by this request before anyone else can see it
+                FileLock lock = new FileLock();
+                lock.tryLockWrite(requestId);
+                this.fileLocks.put(fileName, lock);
             }else{
                 // Another thread has already initialized the file so return error
                 ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
@@ -153,56 +382,55 @@ public class NameNode implements NameNodeInterface {
             }
         }
 
-        ReentrantReadWriteLock lock = this.fileLocks.get(fileName);
-        ReentrantReadWriteLock.WriteLock writeLock = lock.writeLock();
-        writeLock.lock();
-
         // Make block size and replication factor to be configurable later
         int blockSize = 64000000;
         int repFactor = 3;
         int numBlocks = (int) (fileSize / blockSize + 1);
 
+        // An erasure coded file stores one block group per pipeline. Each group holds blockSize bytes on every one
+        // of its data units and a group's units are always placed on distinct data nodes
+        boolean erasureCoded = fileHandle.hasEcPolicy();
+        if(erasureCoded){
+            ProtoHDFS.EcPolicy ecPolicy = fileHandle.getEcPolicy();
+            long groupSize = (long) blockSize * ecPolicy.getDataUnits();
+            repFactor = ecPolicy.getDataUnits() + ecPolicy.getParityUnits();
+            numBlocks = (int) (fileSize / groupSize + 1);
+        }
+
+        String[] dataNodes = this.serverRegistry.list();
+        if(dataNodes.length < repFactor){
+            this.fileLocks.remove(fileName);
+
+            ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
+            responseBuilder.setResponseId(requestId);
+            responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.FAILURE);
+            responseBuilder.setErrorMessage(String.format("File %1$s needs %2$d data nodes but only %3$d are available",
+                    fileName, repFactor, dataNodes.length));
+            ProtoHDFS.Response response = responseBuilder.buildPartial();
+            responseBuilder.clear();
+            return response.toByteArray();
+        }
+
         ProtoHDFS.FileHandle.Builder fileHandleBuilder = ProtoHDFS.FileHandle.newBuilder();
         ArrayList<ProtoHDFS.Pipeline> pipelines = new ArrayList<>();
         for(int i = 0; i < numBlocks; i++){
-            ProtoHDFS.Pipeline.Builder pipelineBuilder = ProtoHDFS.Pipeline.newBuilder();
-            ArrayList<ProtoHDFS.Block> blocks = new ArrayList<>();
-
-            // This part picks three random data nodes using the Data Node Ids
-            String[] dataNodes = this.serverRegistry.list();
-            List<String> dataNodesList = Arrays.asList(dataNodes);
-            Collections.shuffle(dataNodesList);
-            List<String> selectedDataNodes = dataNodesList.subList(0, repFactor);
-
-            for(int j = 0; j < repFactor; j++){
-                ProtoHDFS.BlockMeta.Builder blockMetaBuilder = ProtoHDFS.BlockMeta.newBuilder();
-                blockMetaBuilder.setFileName(fileName);
-                blockMetaBuilder.setBlockNumber(i);
-                blockMetaBuilder.setRepNumber(j);
-                blockMetaBuilder.setDataId(selectedDataNodes.get(j));
-                ProtoHDFS.BlockMeta blockMeta = blockMetaBuilder.build();
-                blockMetaBuilder.clear();
-
-                ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
-                blockBuilder.setBlockMeta(blockMeta);
-                ProtoHDFS.Block block = blockBuilder.buildPartial();
-                blockBuilder.clear();
-
-                blocks.add(block);
-            }
-
-            pipelineBuilder.setPipelineNumber(i);
-            pipelineBuilder.addAllBlocks(blocks);
-            ProtoHDFS.Pipeline pipeline = pipelineBuilder.build();
-            pipelineBuilder.clear();
-            pipelines.add(pipeline);
+            pipelines.add(newPipeline(fileHandle, i, repFactor, dataNodes));
         }
 
         fileHandleBuilder.setFileName(fileName);
         fileHandleBuilder.setFileSize(fileSize);
         fileHandleBuilder.addAllPipelines(pipelines);
+        fileHandleBuilder.setGeneration(this.generations.incrementAndGet());
+        if(erasureCoded){
+            fileHandleBuilder.setEcPolicy(fileHandle.getEcPolicy());
+        }
+        if(fileHandle.getCodec() != ProtoHDFS.CompressionCodec.NONE){
+            fileHandleBuilder.setCodec(fileHandle.getCodec());
+            fileHandleBuilder.setCodecLevel(fileHandle.getCodecLevel());
+        }
         ProtoHDFS.FileHandle newFileHandle = fileHandleBuilder.build();
         fileHandleBuilder.clear();
+        this.fileHandles.put(fileName, newFileHandle);
 
         ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
         responseBuilder.setResponseId(requestId);
@@ -215,6 +443,119 @@ public class NameNode implements NameNodeInterface {
         return response.toByteArray();
     }
 
+    // Creates the pipeline of one block of a file, placing its repFactor replicas (or units) on random data nodes
+    protected ProtoHDFS.Pipeline newPipeline(ProtoHDFS.FileHandle fileHandle, int blockNumber, int repFactor,
+                                             String[] dataNodes){
+        ProtoHDFS.Pipeline.Builder pipelineBuilder = ProtoHDFS.Pipeline.newBuilder();
+        ArrayList<ProtoHDFS.Block> blocks = new ArrayList<>();
+
+        // This part picks repFactor random data nodes using the Data Node Ids
+        List<String> dataNodesList = Arrays.asList(dataNodes.clone());
+        Collections.shuffle(dataNodesList);
+        List<String> selectedDataNodes = dataNodesList.subList(0, repFactor);
+
+        for(int j = 0; j < repFactor; j++){
+            ProtoHDFS.BlockMeta.Builder blockMetaBuilder = ProtoHDFS.BlockMeta.newBuilder();
+            blockMetaBuilder.setFileName(fileHandle.getFileName());
+            blockMetaBuilder.setBlockNumber(blockNumber);
+            blockMetaBuilder.setRepNumber(j);
+            blockMetaBuilder.setDataId(selectedDataNodes.get(j));
+            if(fileHandle.getCodec() != ProtoHDFS.CompressionCodec.NONE){
+                // The data nodes compress the block on disk with the codec chosen for the file
+                blockMetaBuilder.setCodec(fileHandle.getCodec());
+                blockMetaBuilder.setCodecLevel(fileHandle.getCodecLevel());
+            }
+            ProtoHDFS.BlockMeta blockMeta = blockMetaBuilder.build();
+            blockMetaBuilder.clear();
+
+            ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
+            blockBuilder.setBlockMeta(blockMeta);
+            ProtoHDFS.Block block = blockBuilder.buildPartial();
+            blockBuilder.clear();
+
+            blocks.add(block);
+        }
+
+        pipelineBuilder.setPipelineNumber(blockNumber);
+        pipelineBuilder.addAllBlocks(blocks);
+        ProtoHDFS.Pipeline pipeline = pipelineBuilder.build();
+        pipelineBuilder.clear();
+        return pipeline;
+    }
+
+    // Grows an existing file by the number of bytes in the request's file size. The last block is extended in place
+    // by the client on every replica, and pipelines are added for the blocks the rest of the appended bytes need.
+    // The file stays write locked until the client closes it, like a newly created file, and the grown file handle
+    // only replaces the old one if the close reports that every replica was appended to
+    protected byte[] appendFile(byte[] inp) throws RemoteException, InvalidProtocolBufferException {
+        ProtoHDFS.Request request = ProtoHDFS.Request.parseFrom(inp);
+        String requestId = request.getRequestId();
+
+        ProtoHDFS.FileHandle requestFileHandle = request.getFileHandle();
+        String fileName = requestFileHandle.getFileName();
+        long appendSize = requestFileHandle.getFileSize();
+
+        FileLock lock = this.fileLocks.get(fileName);
+        if(lock == null){
+            return failureResponse(requestId, "File " + fileName + " does not exist");
+        }
+        if(!lock.tryLockWrite(requestId)){
+            return failureResponse(requestId, "File " + fileName + " is open by another client, try again later");
+        }
+
+        ProtoHDFS.FileHandle fileHandle = this.fileHandles.get(fileName);
+        String errorMessage = null;
+        if(fileHandle.hasEcPolicy()){
+            errorMessage = "Erasure coded file " + fileName + " can't be appended to";
+        }else if(appendSize < 0){
+            errorMessage = "Can't append a negative number of bytes to " + fileName;
+        }
+
+        // Make block size and replication factor to be configurable later
+        int blockSize = 64000000;
+        int repFactor = 3;
+        String[] dataNodes = this.serverRegistry.list();
+        long newFileSize = fileHandle.getFileSize() + appendSize;
+        int numBlocks = (int) (newFileSize / blockSize + 1);
+        if(errorMessage == null && numBlocks > fileHandle.getPipelinesCount() && dataNodes.length < repFactor){
+            errorMessage = String.format("File %1$s needs %2$d data nodes but only %3$d are available", fileName,
+                    repFactor, dataNodes.length);
+        }
+        if(errorMessage != null){
+            lock.unlock(requestId);
+
+            ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
+            responseBuilder.setResponseId(requestId);
+            responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.FAILURE);
+            responseBuilder.setErrorMessage(errorMessage);
+            ProtoHDFS.Response response = responseBuilder.buildPartial();
+            responseBuilder.clear();
+            return response.toByteArray();
+        }
+
+        ProtoHDFS.FileHandle.Builder fileHandleBuilder = fileHandle.toBuilder();
+        fileHandleBuilder.setFileSize(newFileSize);
+        fileHandleBuilder.setGeneration(this.generations.incrementAndGet());
+        for(int i = fileHandle.getPipelinesCount(); i < numBlocks; i++){
+            fileHandleBuilder.addPipelines(newPipeline(fileHandle, i, repFactor, dataNodes));
+        }
+        ProtoHDFS.FileHandle newFileHandle = fileHandleBuilder.build();
+        fileHandleBuilder.clear();
+        // Replaces whatever an earlier append left behind when its lease ran out before it closed the file
+        this.pendingAppends.put(fileName, newFileHandle);
+
+        ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
+        responseBuilder.setResponseId(requestId);
+        responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.SUCCESS);
+        responseBuilder.setFileHandle(sortFileHandle(newFileHandle));
+        responseBuilder.setErrorMessage(String.format("File handle for %1$s opened to append %2$d bytes", fileName,
+                appendSize));
+        ProtoHDFS.Response response = responseBuilder.buildPartial();
+        responseBuilder.clear();
+
+        return response.toByteArray();
+    }
+
     @Override
     public byte[] list(byte[] inp) throws RemoteException, InvalidProtocolBufferException {
         ProtoHDFS.Request request = ProtoHDFS.Request.parseFrom(inp);
@@ -237,52 +578,285 @@ public class NameNode implements NameNodeInterface {
 
     @Override
     public byte[] blockReport(byte[] inp) throws RemoteException {
-    while(true)
-    {
-    try{
-
-        ProtoHDFS.Blockreport blockreport = ProtoHDFS.Blockreport.parseFrom(inp);
-     }catch (InvalidProtocolBufferException e) {
-    
-    e.printStackTrace();
-  
-    //time interval for 5 seconds
-    Thread.sleep(5000);
-  
-    //send heartbeat
-    datastub.blockReport();
+        try{
+            ProtoHDFS.BlockReport blockReport = ProtoHDFS.BlockReport.parseFrom(inp);
+        }catch(InvalidProtocolBufferException e){
+            e.printStackTrace();
+        }
 
-  }
+        return null;
+    }
 
-  return null;
+    @Override
+    public byte[] heartBeat(byte[] inp) throws RemoteException {
+        try{
+            ProtoHDFS.Heartbeat heartbeat = ProtoHDFS.Heartbeat.parseFrom(inp);
+            map_heartbeat.put(heartbeat.getDataId(), true);
+        }catch(InvalidProtocolBufferException e){
+            e.printStackTrace();
+        }
 
-  }
+        return null;
     }
 
     @Override
-    public byte[] heartBeat(byte[] inp) throws RemoteException {
-    while(true)
-    {
-    try{
-        ProtoHDFS.Heartbeat heartbeat = ProtoHDFS.Heartbeat.parseFrom(inp);
-     }catch (InvalidProtocolBufferException e) {
-    
-    e.printStackTrace();
-  
-    //time interval for 4 seconds
-    Thread.sleep(4000);
-  
-    //send heartbeat
-    datastub.heartbeat();
-    map_heartbeat.put("Heartbeat Recieved", true);
-       
-  }
-
-  return null;
-
-  }
-}
-    
+    public byte[] reportBadBlocks(byte[] inp) throws RemoteException, InvalidProtocolBufferException {
+        ProtoHDFS.Request request = ProtoHDFS.Request.parseFrom(inp);
+        String requestId = request.getRequestId();
+
+        List<ProtoHDFS.Block> corruptBlocks = request.getBlockList();
+        for(ProtoHDFS.Block block : corruptBlocks){
+            ProtoHDFS.BlockMeta blockMeta = block.getBlockMeta();
+            this.replicationExecutor.submit(() -> reReplicate(blockMeta));
+        }
+
+        ProtoHDFS.Response.Builder responseBuilder = ProtoHDFS.Response.newBuilder();
+        responseBuilder.setResponseId(requestId);
+        responseBuilder.setResponseType(ProtoHDFS.Response.ResponseType.SUCCESS);
+        responseBuilder.setErrorMessage(String.format("%1$d corrupt replicas scheduled for re-replication",
+                corruptBlocks.size()));
+        ProtoHDFS.Response response = responseBuilder.buildPartial();
+        responseBuilder.clear();
+        return response.toByteArray();
+    }
+
+    // Makes a new copy of a corrupt replica on a data node that doesn't hold any replica of the block yet and points
+    // the file handle at it. Replicated blocks are copied from a healthy replica, while units of an erasure coded
+    // block group are rebuilt from the other units of the group
+    protected void reReplicate(ProtoHDFS.BlockMeta corruptBlockMeta){
+        String fileName = corruptBlockMeta.getFileName();
+        ProtoHDFS.FileHandle fileHandle = this.fileHandles.get(fileName);
+        if(fileHandle == null){
+            return;
+        }
+
+        ProtoHDFS.Pipeline pipeline = null;
+        for(ProtoHDFS.Pipeline p : fileHandle.getPipelinesList()){
+            if(p.getPipelineNumber() == corruptBlockMeta.getBlockNumber()){
+                pipeline = p;
+            }
+        }
+        if(pipeline == null){
+            return;
+        }
+
+        ArrayList<ProtoHDFS.Block> blocks = new ArrayList<>(pipeline.getBlocksList());
+        blocks.sort(new RepSorter());
+        ProtoHDFS.BlockMeta handleBlockMeta = null;
+        HashSet<String> usedDataNodes = new HashSet<>();
+        for(ProtoHDFS.Block b : blocks){
+            usedDataNodes.add(b.getBlockMeta().getDataId());
+            if(b.getBlockMeta().getRepNumber() == corruptBlockMeta.getRepNumber()){
+                handleBlockMeta = b.getBlockMeta();
+            }
+        }
+        if(handleBlockMeta == null || !handleBlockMeta.getDataId().equals(corruptBlockMeta.getDataId())){
+            // The replica was already moved somewhere else
+            return;
+        }
+
+        try{
+            ByteString blockContents;
+            if(fileHandle.hasEcPolicy()){
+                ReedSolomon codec = new ReedSolomon(fileHandle.getEcPolicy());
+                byte[][] units = new byte[blocks.size()][];
+                for(int i = 0; i < blocks.size(); i++){
+                    if(i != corruptBlockMeta.getRepNumber()){
+                        units[i] = readReplica(blocks.get(i));
+                    }
+                }
+                codec.decode(units);
+                blockContents = ByteString.copyFrom(units[corruptBlockMeta.getRepNumber()]);
+            }else{
+                blockContents = null;
+                for(ProtoHDFS.Block b : blocks){
+                    if(blockContents == null && b.getBlockMeta().getRepNumber() != corruptBlockMeta.getRepNumber()){
+                        byte[] replica = readReplica(b);
+                        blockContents = replica == null ? null : ByteString.copyFrom(replica);
+                    }
+                }
+                if(blockContents == null){
+                    System.out.println(String.format("No healthy replica left of block %1$d for %2$s",
+                            corruptBlockMeta.getBlockNumber(), fileName));
+                    return;
+                }
+            }
+
+            List<String> candidates = new ArrayList<>(Arrays.asList(this.serverRegistry.list()));
+            candidates.removeAll(usedDataNodes);
+            if(candidates.isEmpty()){
+                System.out.println("No data node available to re-replicate a block of " + fileName);
+                return;
+            }
+            Collections.shuffle(candidates);
+            String targetDataId = candidates.get(0);
+
+            ProtoHDFS.BlockMeta newBlockMeta = handleBlockMeta.toBuilder().setDataId(targetDataId).build();
+            ProtoHDFS.Block.Builder blockBuilder = ProtoHDFS.Block.newBuilder();
+            blockBuilder.setBlockMeta(newBlockMeta);
+            blockBuilder.setBlockContents(blockContents);
+            ProtoHDFS.Block newBlock = blockBuilder.build();
+            blockBuilder.clear();
+
+            ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+            requestBuilder.setRequestId(UUID.randomUUID().toString());
+            requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.WRITE);
+            requestBuilder.addBlock(newBlock);
+            ProtoHDFS.Request writeRequest = requestBuilder.buildPartial();
+            requestBuilder.clear();
+
+            DataNodeInterface dataNodeStub = (DataNodeInterface) this.serverRegistry.lookup(targetDataId);
+            ProtoHDFS.Response writeResponse = ProtoHDFS.Response.parseFrom(
+                    dataNodeStub.writeBlock(writeRequest.toByteArray()));
+            if(writeResponse.getResponseType() != ProtoHDFS.Response.ResponseType.SUCCESS){
+                System.out.println(writeResponse.getErrorMessage());
+                return;
+            }
+
+            // Swap the corrupt replica for the new one in the file handle
+            synchronized (this){
+                ProtoHDFS.FileHandle currentFileHandle = this.fileHandles.get(fileName);
+                ProtoHDFS.FileHandle.Builder fileHandleBuilder = currentFileHandle.toBuilder();
+                fileHandleBuilder.setGeneration(this.generations.incrementAndGet());
+                for(ProtoHDFS.Pipeline.Builder pipelineBuilder : fileHandleBuilder.getPipelinesBuilderList()){
+                    if(pipelineBuilder.getPipelineNumber() != corruptBlockMeta.getBlockNumber()){
+                        continue;
+                    }
+                    for(ProtoHDFS.Block.Builder b : pipelineBuilder.getBlocksBuilderList()){
+                        if(b.getBlockMeta().getRepNumber() == corruptBlockMeta.getRepNumber()){
+                            b.setBlockMeta(newBlockMeta);
+                        }
+                    }
+                }
+                this.fileHandles.put(fileName, fileHandleBuilder.build());
+                fileHandleBuilder.clear();
+            }
+
+            System.out.println(String.format("Block %1$d replication %2$d for %3$s moved from %4$s to %5$s",
+                    corruptBlockMeta.getBlockNumber(), corruptBlockMeta.getRepNumber(), fileName,
+                    corruptBlockMeta.getDataId(), targetDataId));
+        }catch(Exception e){
+            System.out.println("Failed to re-replicate a block of " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    // Reads one replica of a block from the data node holding it, returning null if it can't be read
+    protected byte[] readReplica(ProtoHDFS.Block block){
+        try{
+            ProtoHDFS.Request.Builder requestBuilder = ProtoHDFS.Request.newBuilder();
+            requestBuilder.setRequestId(UUID.randomUUID().toString());
+            requestBuilder.setRequestType(ProtoHDFS.Request.RequestType.READ);
+            requestBuilder.addBlock(block);
+            ProtoHDFS.Request readRequest = requestBuilder.buildPartial();
+            requestBuilder.clear();
+
+            DataNodeInterface dataNodeStub = (DataNodeInterface) this.serverRegistry.lookup(
+                    block.getBlockMeta().getDataId());
+            ProtoHDFS.Response readResponse = ProtoHDFS.Response.parseFrom(
+                    dataNodeStub.readBlock(readRequest.toByteArray()));
+            if(readResponse.getResponseType() == ProtoHDFS.Response.ResponseType.SUCCESS){
+                return readResponse.getBlock().getBlockContents().toByteArray();
+            }
+        }catch(Exception e){
+            System.out.println("Failed to read a replica from " + block.getBlockMeta().getDataId());
+        }
+        return null;
+    }
+
+    // Starts serving all methods of the name node over the non-blocking RPC transport next to RMI, for AsyncClient
+    // and NameNodeRpcStub. Connections are spread over readerThreads event loops and calls run on handlerThreads
+    // threads, with at most queueCapacity calls waiting for a handler in a fair call queue so one busy client can't
+    // starve the others
+    public InetSocketAddress startRpcServer(InetSocketAddress bindAddress, int readerThreads, int handlerThreads,
+                                            int queueCapacity) throws IOException {
+        return startRpcServer(bindAddress, readerThreads, handlerThreads, new FairCallQueue(queueCapacity));
+    }
+
+    public InetSocketAddress startRpcServer(InetSocketAddress bindAddress, int readerThreads, int handlerThreads,
+                                            CallQueue callQueue) throws IOException {
+        return startRpcServer(bindAddress, readerThreads, handlerThreads, callQueue, false);
+    }
+
+    // With virtualHandlers the handlers run on virtual threads, see RpcServer
+    public InetSocketAddress startRpcServer(InetSocketAddress bindAddress, int readerThreads, int handlerThreads,
+                                            CallQueue callQueue, boolean virtualHandlers) throws IOException {
+        this.rpcServer = new RpcServer("NameNode", bindAddress, readerThreads, handlerThreads, callQueue,
+                virtualHandlers);
+        this.rpcServer.register("openFile", this.instrumented::openFile);
+        this.rpcServer.register("closeFile", this.instrumented::closeFile);
+        this.rpcServer.register("renewLease", this.instrumented::renewLease);
+        this.rpcServer.register("getBlockLocations", this.instrumented::getBlockLocations);
+        this.rpcServer.register("getBatchBlockLocations", this.instrumented::getBatchBlockLocations);
+        this.rpcServer.register("getFileGeneration", this.instrumented::getFileGeneration);
+        this.rpcServer.register("assignBlock", this.instrumented::assignBlock);
+        this.rpcServer.register("list", this.instrumented::list);
+        this.rpcServer.register("blockReport", this.instrumented::blockReport);
+        this.rpcServer.register("heartBeat", this.instrumented::heartBeat);
+        this.rpcServer.register("reportBadBlocks", this.instrumented::reportBadBlocks);
+        this.rpcServer.registerMetrics(this.metrics, "rpc");
+        this.rpcServer.start();
+        return this.rpcServer.getAddress();
+    }
+
+    // Starts a second RPC server for the calls data nodes make (heartBeat, blockReport and reportBadBlocks). With
+    // their own port, call queue and handlers these calls never wait behind client calls, so a flood of client
+    // requests can't delay heartbeats until healthy data nodes look dead. Data nodes should be pointed at this
+    // address with DataNode.useRpcNameNode
+    public InetSocketAddress startServiceRpcServer(InetSocketAddress bindAddress, int handlerThreads)
+            throws IOException {
+        this.serviceRpcServer = new RpcServer("NameNode-Service", bindAddress, 1, handlerThreads,
+                100 * handlerThreads);
+        this.serviceRpcServer.register("blockReport", this.instrumented::blockReport);
+        this.serviceRpcServer.register("heartBeat", this.instrumented::heartBeat);
+        this.serviceRpcServer.register("reportBadBlocks", this.instrumented::reportBadBlocks);
+        this.serviceRpcServer.registerMetrics(this.metrics, "serviceRpc");
+        this.serviceRpcServer.start();
+        return this.serviceRpcServer.getAddress();
+    }
+
+    public MetricsRegistry getMetrics(){
+        return this.metrics;
+    }
+
+    // Serves the metrics of the name node as text at http://<address>/metrics
+    public InetSocketAddress startMetricsEndpoint(InetSocketAddress bindAddress) throws IOException {
+        return this.metrics.startHttpEndpoint(bindAddress);
+    }
+
+    public RpcServer getRpcServer(){
+        return this.rpcServer;
+    }
+
+    public RpcServer getServiceRpcServer(){
+        return this.serviceRpcServer;
+    }
+
+    // Call counts, queue depths and latencies of the RPC servers that are running
+    public String getRpcMetrics(){
+        StringBuilder metrics = new StringBuilder();
+        if(this.rpcServer != null){
+            metrics.append("client rpc: ").append(this.rpcServer).append('\n');
+            if(this.rpcServer.getCallQueue() instanceof FairCallQueue){
+                metrics.append("client call queue: ").append(this.rpcServer.getCallQueue()).append('\n');
+            }
+        }
+        if(this.serviceRpcServer != null){
+            metrics.append("service rpc: ").append(this.serviceRpcServer).append('\n');
+        }
+        return metrics.toString();
+    }
+
+    // Stops the RPC servers and the re-replication threads. Calls still running are not waited for
+    public void shutdown(){
+        if(this.rpcServer != null){
+            this.rpcServer.stop();
+        }
+        if(this.serviceRpcServer != null){
+            this.serviceRpcServer.stop();
+        }
+        this.replicationExecutor.shutdownNow();
+        this.metrics.close();
+    }
 
     public static void main(String[] args){
 
@@ -12,9 +12,18 @@ public interface NameNodeInterface extends Remote {
 
     byte[] closeFile(byte[] inp) throws RemoteException, InvalidProtocolBufferException;
 
+    /* Method to renew the lease on a file opened by the request given as the open request id */
+    byte[] renewLease(byte[] inp) throws RemoteException, InvalidProtocolBufferException;
+
     /* Method to get block locations given an array of block numbers */
     byte[] getBlockLocations(byte[] inp) throws RemoteException, InvalidProtocolBufferException;
 
+    /* Method to get the file handles of many files (by name or by prefix) in a single call */
+    byte[] getBatchBlockLocations(byte[] inp) throws RemoteException, InvalidProtocolBufferException;
+
+    /* Method to get only the generation of a file, so a client can check its expired cached file handle cheaply */
+    byte[] getFileGeneration(byte[] inp) throws RemoteException, InvalidProtocolBufferException;
+
     /* Method to assign a block which will return the replicated block locations */
     byte[] assignBlock(byte[] inp) throws RemoteException, InvalidProtocolBufferException;
 
@@ -30,4 +39,7 @@ public interface NameNodeInterface extends Remote {
 
     /* Heartbeat messages between NameNode and DataNode */
     byte[] heartBeat(byte[] inp) throws RemoteException;
+
+    /* Report replicas a DataNode found to be corrupt so they get re-replicated */
+    byte[] reportBadBlocks(byte[] inp) throws RemoteException, InvalidProtocolBufferException;
 }
@@ -0,0 +1,119 @@
+package ds.hdfs;
+
+import java.net.InetSocketAddress;
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Name node stub that makes its calls over the RPC transport instead of RMI. Code written against NameNodeInterface
+// (the client and the data nodes) can use it unchanged, and all threads of a process share a few connections
+public class NameNodeRpcStub implements NameNodeInterface {
+    protected final RpcClient rpcClient;
+    protected final InetSocketAddress nameNodeAddress;
+    protected final long timeoutMillis;
+    // Times a call the name node was too busy for is made again, waiting twice as long before every next try
+    protected static final int MAX_RETRIES = 8;
+    protected static final long FIRST_RETRY_MILLIS = 10;
+
+    public NameNodeRpcStub(RpcClient rpcClient, InetSocketAddress nameNodeAddress, long timeoutMillis){
+        this.rpcClient = rpcClient;
+        this.nameNodeAddress = nameNodeAddress;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public byte[] openFile(byte[] inp) throws RemoteException {
+        return invoke("openFile", inp);
+    }
+
+    @Override
+    public byte[] closeFile(byte[] inp) throws RemoteException {
+        return invoke("closeFile", inp);
+    }
+
+    @Override
+    public byte[] renewLease(byte[] inp) throws RemoteException {
+        return invoke("renewLease", inp);
+    }
+
+    @Override
+    public byte[] getBlockLocations(byte[] inp) throws RemoteException {
+        return invoke("getBlockLocations", inp);
+    }
+
+    @Override
+    public byte[] getBatchBlockLocations(byte[] inp) throws RemoteException {
+        return invoke("getBatchBlockLocations", inp);
+    }
+
+    @Override
+    public byte[] getFileGeneration(byte[] inp) throws RemoteException {
+        return invoke("getFileGeneration", inp);
+    }
+
+    @Override
+    public byte[] assignBlock(byte[] inp) throws RemoteException {
+        return invoke("assignBlock", inp);
+    }
+
+    @Override
+    public byte[] list(byte[] inp) throws RemoteException {
+        return invoke("list", inp);
+    }
+
+    @Override
+    public byte[] blockReport(byte[] inp) throws RemoteException {
+        return invoke("blockReport", inp);
+    }
+
+    @Override
+    public byte[] heartBeat(byte[] inp) throws RemoteException {
+        return invoke("heartBeat", inp);
+    }
+
+    @Override
+    public byte[] reportBadBlocks(byte[] inp) throws RemoteException {
+        return invoke("reportBadBlocks", inp);
+    }
+
+    // Makes the call and waits for its response, failing the way an RMI stub would. Calls the name node was too busy
+    // for are retried with exponential backoff and some jitter so the retries of many clients don't arrive together
+    protected byte[] invoke(String method, byte[] inp) throws RemoteException {
+        long backoffMillis = FIRST_RETRY_MILLIS;
+        for(int retry = 0; ; retry++){
+            try{
+                return invokeOnce(method, inp);
+            }catch(RetryLaterException e){
+                if(retry == MAX_RETRIES){
+                    throw e;
+                }
+            }
+            try{
+                Thread.sleep(backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1));
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new RemoteException(method + " interrupted", e);
+            }
+            backoffMillis *= 2;
+        }
+    }
+
+    protected byte[] invokeOnce(String method, byte[] inp) throws RemoteException {
+        try{
+            return this.rpcClient.call(this.nameNodeAddress, method, inp)
+                    .get(this.timeoutMillis, TimeUnit.MILLISECONDS);
+        }catch(ExecutionException e){
+            if(e.getCause() instanceof RemoteException){
+                throw (RemoteException) e.getCause();
+            }
+            throw new RemoteException(method + " failed", e.getCause());
+        }catch(TimeoutException e){
+            throw new RemoteException(String.format("%1$s timed out after %2$d ms", method, this.timeoutMillis));
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RemoteException(method + " interrupted", e);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package ds.hdfs;
+
+import proto.ProtoHDFS;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+// Detects readers streaming through a file on this data node and reads the data they will ask for next into the block
+// cache in the background, so disk reads overlap with sending the previous data over the network. A reader's window
+// starts at initialWindow bytes and doubles with every read that continues where the last one ended, up to maxWindow.
+// A read anywhere else resets it. The read-ahead continues into the next block of the file if it is stored here too
+// Prefetches run on the I/O threads of the volume holding the block, like every other disk read, so they share the
+// disk's queue instead of reading it from a pool of their own. Only so many are queued at once so they never crowd
+// out the reads clients are waiting for
+public class ReadAhead {
+    // Most streams tracked at once, the least recently read ones are forgotten first
+    protected static final int MAX_STREAMS = 1024;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    protected final DataNode dataNode;
+    protected final int initialWindow;
+    protected final int maxWindow;
+    protected final int maxInFlight;
+    protected final LinkedHashMap<String, Stream> streams;
+    // Chunks being read ahead right now, so overlapping windows don't read the same chunk twice
+    protected final Set<String> inFlight;
+    protected final LongAdder prefetchedChunks;
+
+    public ReadAhead(DataNode dataNode, int initialWindow, int maxWindow, int maxInFlight){
+        this.dataNode = dataNode;
+        this.initialWindow = initialWindow;
+        this.maxWindow = maxWindow;
+        this.maxInFlight = maxInFlight;
+        this.streams = new LinkedHashMap<>(16, 0.75f, true);
+        this.inFlight = ConcurrentHashMap.newKeySet();
+        this.prefetchedChunks = new LongAdder();
+    }
+
+    public long getPrefetchedChunks(){
+        return this.prefetchedChunks.sum();
+    }
+
+    // Called after every read a reader makes. The reader is whatever identifies it, normally the id of its client,
+    // and its reads of one file form one stream
+    public void onRead(String reader, ProtoHDFS.BlockMeta blockMeta, long offset, int length){
+        String streamKey = reader + "|" + blockMeta.getFileName();
+        int window;
+        synchronized (this.streams){
+            Stream stream = this.streams.get(streamKey);
+            if(stream == null){
+                stream = new Stream();
+                this.streams.put(streamKey, stream);
+                if(this.streams.size() > MAX_STREAMS){
+                    this.streams.remove(this.streams.keySet().iterator().next());
+                }
+            }
+
+            boolean sameBlock = stream.blockNumber == blockMeta.getBlockNumber() && stream.end == offset;
+            boolean nextBlock = stream.blockNumber + 1 == blockMeta.getBlockNumber() && offset == 0
+                    && stream.end >= stream.blockLength;
+            if(sameBlock || nextBlock){
+                stream.window = stream.window == 0 ? this.initialWindow : Math.min(this.maxWindow, stream.window * 2);
+            }else{
+                stream.window = 0;
+            }
+            stream.blockNumber = blockMeta.getBlockNumber();
+            stream.blockLength = blockMeta.getBlockLength();
+            stream.end = offset + length;
+            window = stream.window;
+        }
+
+        if(window > 0){
+            prefetch(blockMeta, offset + length, window);
+        }
+    }
+
+    // Queues the cache chunks covering the next bytes after start, moving on to the next local blocks of the file
+    // when the window goes past the end of the block
+    protected void prefetch(ProtoHDFS.BlockMeta blockMeta, long start, long bytes){
+        int chunkSize = this.dataNode.blockCache.getChunkSize();
+        while(bytes > 0 && blockMeta != null){
+            long end = Math.min(blockMeta.getBlockLength(), start + bytes);
+            for(int chunk = (int) (start / chunkSize); (long) chunk * chunkSize < end; chunk++){
+                submit(blockMeta, chunk);
+            }
+            bytes -= Math.max(0, end - start);
+            start = 0;
+            blockMeta = this.dataNode.findLocalBlock(blockMeta.getFileName(), blockMeta.getBlockNumber() + 1);
+        }
+    }
+
+    protected void submit(ProtoHDFS.BlockMeta blockMeta, int chunk){
+        String blockName = BlockStorage.blockName(blockMeta);
+        String key = BlockCache.key(blockName, chunk);
+        BlockStorage volume = this.dataNode.volumeManager.getVolume(blockName);
+        if(volume == null || this.inFlight.size() >= this.maxInFlight
+                || this.dataNode.blockCache.contains(blockName, blockMeta, chunk) || !this.inFlight.add(key)){
+            return;
+        }
+
+        Runnable task = () -> {
+            // A block being written or appended to is skipped rather than waited for, since the write itself may be
+            // queued on these same I/O threads
+            Lock readLock = this.dataNode.blockLock(blockName).readLock();
+            if(!readLock.tryLock()){
+                this.inFlight.remove(key);
+                return;
+            }
+            try{
+                // The block may have been removed or written again since the read-ahead was queued
+                if(this.dataNode.volumeManager.getVolume(blockName) != volume
+                        || this.dataNode.blockMetas.get(blockName) != blockMeta
+                        || this.dataNode.blockCache.contains(blockName, blockMeta, chunk)){
+                    return;
+                }
+
+                int chunkSize = this.dataNode.blockCache.getChunkSize();
+                long chunkStart = (long) chunk * chunkSize;
+                int chunkLength = (int) Math.min(chunkSize, blockMeta.getBlockLength() - chunkStart);
+                byte[] contents = new byte[chunkLength];
+                this.dataNode.readChunk(volume, blockMeta, chunkStart, chunkLength, contents, 0);
+                this.dataNode.blockCache.put(blockName, blockMeta, chunk, contents, 0, chunkLength);
+                this.prefetchedChunks.increment();
+            }catch(IOException e){
+                System.out.println("Read-ahead of " + key + " failed: " + e.getMessage());
+            }finally{
+                readLock.unlock();
+                this.inFlight.remove(key);
+            }
+        };
+        try{
+            this.dataNode.volumeManager.submit(volume, task);
+        }catch(RejectedExecutionException e){
+            // The volumes are shutting down
+            this.inFlight.remove(key);
+        }
+    }
+
+    // Forgets the streams. Queued prefetches go away with the I/O threads of the volumes
+    public void close(){
+        synchronized (this.streams){
+            this.streams.clear();
+        }
+    }
+
+    // Where a reader's last read of a file ended and how far ahead of it to read
+    protected static class Stream {
+        protected int blockNumber = -2;
+        protected long blockLength;
+        protected long end;
+        protected int window;
+    }
+}
@@ -0,0 +1,248 @@
+package ds.hdfs;
+
+import proto.ProtoHDFS;
+
+// Systematic Reed-Solomon codec over GF(2^8) used for erasure coded files. A stripe is made of dataUnits data cells
+// followed by parityUnits parity cells, and any dataUnits of the cells are enough to rebuild all the others
+public class ReedSolomon {
+    // Tables for multiplication in GF(2^8) using the primitive polynomial x^8 + x^4 + x^3 + x^2 + 1
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for(int i = 0; i < 255; i++){
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if((x & 0x100) != 0){
+                x ^= 0x11D;
+            }
+        }
+        for(int i = 255; i < 512; i++){
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    protected final int dataUnits;
+    protected final int parityUnits;
+    // (dataUnits + parityUnits) x dataUnits matrix whose top rows are the identity, so data cells are stored as is
+    protected final int[][] encodeMatrix;
+
+    public ReedSolomon(int dataUnits, int parityUnits){
+        if(dataUnits <= 0 || parityUnits <= 0 || dataUnits + parityUnits > 255){
+            throw new IllegalArgumentException(String.format("Invalid Reed-Solomon scheme RS-%1$d-%2$d",
+                    dataUnits, parityUnits));
+        }
+        this.dataUnits = dataUnits;
+        this.parityUnits = parityUnits;
+
+        // Any dataUnits rows of a Vandermonde matrix are invertible. Multiplying by the inverse of the top square
+        // keeps that property while turning the top rows into the identity
+        int totalUnits = dataUnits + parityUnits;
+        int[][] vandermonde = new int[totalUnits][dataUnits];
+        for(int r = 0; r < totalUnits; r++){
+            for(int c = 0; c < dataUnits; c++){
+                vandermonde[r][c] = pow(r, c);
+            }
+        }
+        int[][] top = new int[dataUnits][];
+        System.arraycopy(vandermonde, 0, top, 0, dataUnits);
+        this.encodeMatrix = multiply(vandermonde, invert(top));
+    }
+
+    public ReedSolomon(ProtoHDFS.EcPolicy ecPolicy){
+        this(ecPolicy.getDataUnits(), ecPolicy.getParityUnits());
+    }
+
+    // Builds a policy from a name such as "RS-6-3" (6 data units and 3 parity units)
+    public static ProtoHDFS.EcPolicy parsePolicy(String name, int cellSize){
+        String[] parts = name.split("-");
+        if(parts.length != 3 || !parts[0].equalsIgnoreCase("RS")){
+            throw new IllegalArgumentException("Unknown erasure coding policy " + name);
+        }
+
+        ProtoHDFS.EcPolicy.Builder ecPolicyBuilder = ProtoHDFS.EcPolicy.newBuilder();
+        ecPolicyBuilder.setName(name.toUpperCase());
+        ecPolicyBuilder.setDataUnits(Integer.parseInt(parts[1]));
+        ecPolicyBuilder.setParityUnits(Integer.parseInt(parts[2]));
+        ecPolicyBuilder.setCellSize(cellSize);
+        ProtoHDFS.EcPolicy ecPolicy = ecPolicyBuilder.build();
+        ecPolicyBuilder.clear();
+        return ecPolicy;
+    }
+
+    public int getDataUnits(){
+        return this.dataUnits;
+    }
+
+    public int getParityUnits(){
+        return this.parityUnits;
+    }
+
+    // Computes the parity units for the given data units. All data units must have the same length
+    public byte[][] encode(byte[][] data){
+        int length = data[0].length;
+        byte[][] parity = new byte[this.parityUnits][length];
+        for(int p = 0; p < this.parityUnits; p++){
+            int[] row = this.encodeMatrix[this.dataUnits + p];
+            for(int d = 0; d < this.dataUnits; d++){
+                mulAdd(row[d], data[d], parity[p]);
+            }
+        }
+        return parity;
+    }
+
+    // Rebuilds the missing units in place. units holds the data units followed by the parity units and a null entry
+    // marks a unit that could not be read. Fails if fewer than dataUnits units are available
+    public void decode(byte[][] units){
+        int totalUnits = this.dataUnits + this.parityUnits;
+        int[] survivors = new int[this.dataUnits];
+        int found = 0;
+        int length = -1;
+        for(int i = 0; i < totalUnits && found < this.dataUnits; i++){
+            if(units[i] != null){
+                survivors[found++] = i;
+                length = units[i].length;
+            }
+        }
+        if(found < this.dataUnits){
+            throw new IllegalStateException(String.format("Only %1$d of %2$d units available, need %3$d to decode",
+                    found, totalUnits, this.dataUnits));
+        }
+
+        boolean missingData = false;
+        for(int d = 0; d < this.dataUnits; d++){
+            missingData |= units[d] == null;
+        }
+
+        if(missingData){
+            int[][] subMatrix = new int[this.dataUnits][];
+            for(int i = 0; i < this.dataUnits; i++){
+                subMatrix[i] = this.encodeMatrix[survivors[i]];
+            }
+            int[][] decodeMatrix = invert(subMatrix);
+            for(int d = 0; d < this.dataUnits; d++){
+                if(units[d] == null){
+                    byte[] rebuilt = new byte[length];
+                    for(int i = 0; i < this.dataUnits; i++){
+                        mulAdd(decodeMatrix[d][i], units[survivors[i]], rebuilt);
+                    }
+                    units[d] = rebuilt;
+                }
+            }
+        }
+
+        boolean missingParity = false;
+        for(int p = this.dataUnits; p < totalUnits; p++){
+            missingParity |= units[p] == null;
+        }
+        if(missingParity){
+            byte[][] data = new byte[this.dataUnits][];
+            System.arraycopy(units, 0, data, 0, this.dataUnits);
+            byte[][] parity = encode(data);
+            for(int p = 0; p < this.parityUnits; p++){
+                if(units[this.dataUnits + p] == null){
+                    units[this.dataUnits + p] = parity[p];
+                }
+            }
+        }
+    }
+
+    private static int mul(int a, int b){
+        if(a == 0 || b == 0){
+            return 0;
+        }
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int div(int a, int b){
+        if(b == 0){
+            throw new ArithmeticException("Division by zero in GF(256)");
+        }
+        if(a == 0){
+            return 0;
+        }
+        return EXP[LOG[a] + 255 - LOG[b]];
+    }
+
+    private static int pow(int a, int n){
+        if(n == 0){
+            return 1;
+        }
+        if(a == 0){
+            return 0;
+        }
+        return EXP[(LOG[a] * n) % 255];
+    }
+
+    // out[i] ^= coefficient * in[i] for every byte
+    private static void mulAdd(int coefficient, byte[] in, byte[] out){
+        if(coefficient == 0){
+            return;
+        }
+        int logCoefficient = LOG[coefficient];
+        for(int i = 0; i < in.length; i++){
+            int v = in[i] & 0xFF;
+            if(v != 0){
+                out[i] ^= (byte) EXP[LOG[v] + logCoefficient];
+            }
+        }
+    }
+
+    private static int[][] multiply(int[][] a, int[][] b){
+        int[][] result = new int[a.length][b[0].length];
+        for(int r = 0; r < a.length; r++){
+            for(int c = 0; c < b[0].length; c++){
+                int v = 0;
+                for(int i = 0; i < b.length; i++){
+                    v ^= mul(a[r][i], b[i][c]);
+                }
+                result[r][c] = v;
+            }
+        }
+        return result;
+    }
+
+    // Gauss-Jordan elimination over GF(256)
+    private static int[][] invert(int[][] matrix){
+        int n = matrix.length;
+        int[][] work = new int[n][2 * n];
+        for(int r = 0; r < n; r++){
+            System.arraycopy(matrix[r], 0, work[r], 0, n);
+            work[r][n + r] = 1;
+        }
+
+        for(int c = 0; c < n; c++){
+            int pivot = c;
+            while(pivot < n && work[pivot][c] == 0){
+                pivot++;
+            }
+            if(pivot == n){
+                throw new IllegalStateException("Matrix is singular");
+            }
+            int[] tmp = work[c];
+            work[c] = work[pivot];
+            work[pivot] = tmp;
+
+            int scale = work[c][c];
+            for(int i = 0; i < 2 * n; i++){
+                work[c][i] = div(work[c][i], scale);
+            }
+            for(int r = 0; r < n; r++){
+                if(r != c && work[r][c] != 0){
+                    int factor = work[r][c];
+                    for(int i = 0; i < 2 * n; i++){
+                        work[r][i] ^= mul(factor, work[c][i]);
+                    }
+                }
+            }
+        }
+
+        int[][] inverse = new int[n][n];
+        for(int r = 0; r < n; r++){
+            System.arraycopy(work[r], n, inverse[r], 0, n);
+        }
+        return inverse;
+    }
+}
@@ -0,0 +1,90 @@
+package ds.hdfs;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Round trip check of the Reed-Solomon coder: encodes random data, erases every combination of up to parityUnits
+// units, decodes and compares with the original units. Also checks that one erasure too many is refused
+// Run with no arguments for RS-6-3 and RS-3-2, or pass dataUnits and parityUnits
+public class ReedSolomonCheck {
+    public static void main(String[] args){
+        int failures = 0;
+        if(args.length == 2){
+            failures += check(Integer.parseInt(args[0]), Integer.parseInt(args[1]), 4096);
+        }else{
+            failures += check(6, 3, 4096);
+            failures += check(3, 2, 4096);
+        }
+        if(failures > 0){
+            System.out.println(failures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    // Returns the number of failed erasure patterns
+    protected static int check(int dataUnits, int parityUnits, int unitSize){
+        ReedSolomon reedSolomon = new ReedSolomon(dataUnits, parityUnits);
+        int totalUnits = dataUnits + parityUnits;
+        Random random = new Random(dataUnits * 31 + parityUnits);
+
+        byte[][] data = new byte[dataUnits][unitSize];
+        for(byte[] unit : data){
+            random.nextBytes(unit);
+        }
+        byte[][] parity = reedSolomon.encode(data);
+        byte[][] original = new byte[totalUnits][];
+        System.arraycopy(data, 0, original, 0, dataUnits);
+        System.arraycopy(parity, 0, original, dataUnits, parityUnits);
+
+        int patterns = 0;
+        int failures = 0;
+        for(int erased = 1; erased < (1 << totalUnits); erased++){
+            int erasedCount = Integer.bitCount(erased);
+            if(erasedCount > parityUnits + 1){
+                continue;
+            }
+            byte[][] units = new byte[totalUnits][];
+            for(int i = 0; i < totalUnits; i++){
+                units[i] = (erased & (1 << i)) != 0 ? null : original[i].clone();
+            }
+
+            if(erasedCount > parityUnits){
+                // Fewer than dataUnits units are left, so decoding has to fail instead of making data up
+                try{
+                    reedSolomon.decode(units);
+                    System.out.println(String.format("RS-%1$d-%2$d decoded with units %3$s erased",
+                            dataUnits, parityUnits, erasedUnits(erased, totalUnits)));
+                    failures++;
+                }catch(IllegalStateException e){
+                    // Expected
+                }
+                continue;
+            }
+
+            patterns++;
+            reedSolomon.decode(units);
+            for(int i = 0; i < totalUnits; i++){
+                if(!Arrays.equals(units[i], original[i])){
+                    System.out.println(String.format("RS-%1$d-%2$d rebuilt unit %3$d wrong with units %4$s erased",
+                            dataUnits, parityUnits, i, erasedUnits(erased, totalUnits)));
+                    failures++;
+                    break;
+                }
+            }
+        }
+        System.out.println(String.format("RS-%1$d-%2$d: %3$d erasure patterns decoded, %4$d failures",
+                dataUnits, parityUnits, patterns, failures));
+        return failures;
+    }
+
+    protected static String erasedUnits(int erased, int totalUnits){
+        StringBuilder stringBuilder = new StringBuilder("[");
+        for(int i = 0; i < totalUnits; i++){
+            if((erased & (1 << i)) != 0){
+                stringBuilder.append(stringBuilder.length() > 1 ? ", " : "").append(i);
+            }
+        }
+        return stringBuilder.append("]").toString();
+    }
+}
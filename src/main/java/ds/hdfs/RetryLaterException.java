@@ -0,0 +1,12 @@
+package ds.hdfs;
+
+import java.rmi.RemoteException;
+
+// Thrown for a call the server was too busy to run. Nothing was done, so the call can safely be made again
+public class RetryLaterException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    public RetryLaterException(String message){
+        super(message);
+    }
+}
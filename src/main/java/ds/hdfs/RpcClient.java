@@ -0,0 +1,156 @@
+package ds.hdfs;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import proto.ProtoHDFS;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Non-blocking client side of the RPC transport. Calls to a server are spread over a few connections that each carry
+// any number of calls at once, matched to their responses by call id, and all connections are served by a single
+// event loop thread. So thousands of calls can be in flight without a thread per call
+public class RpcClient {
+    // Sent with every call so the server can share its handlers fairly between clients
+    protected final String clientId;
+    protected final int connectionsPerAddress;
+    // Completes the futures of calls, so code chained onto them never runs on (and stalls) the event loop
+    protected final Executor callbackExecutor;
+    protected final ConcurrentHashMap<InetSocketAddress, ClientConnection[]> connections;
+    protected final AtomicInteger nextConnection;
+    protected final AtomicLong nextCallId;
+    protected final EventLoop eventLoop;
+
+    public RpcClient(int connectionsPerAddress) throws IOException {
+        this(System.getProperty("user.name", ""), connectionsPerAddress, ForkJoinPool.commonPool());
+    }
+
+    public RpcClient(String clientId, int connectionsPerAddress, Executor callbackExecutor) throws IOException {
+        this.clientId = clientId;
+        this.connectionsPerAddress = connectionsPerAddress;
+        this.callbackExecutor = callbackExecutor;
+        this.connections = new ConcurrentHashMap<>();
+        this.nextConnection = new AtomicInteger();
+        this.nextCallId = new AtomicLong();
+        this.eventLoop = new EventLoop();
+        this.eventLoop.start();
+    }
+
+    // Calls a method on the server at the address. The future fails with a RemoteException if the method threw, with a
+    // RetryLaterException if the server was too busy to run it and with an IOException if the connection was lost
+    // before the response came back
+    public CompletableFuture<byte[]> call(InetSocketAddress address, String method, byte[] payload){
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        try{
+            ClientConnection connection = connection(address);
+            long callId = this.nextCallId.incrementAndGet();
+
+            ProtoHDFS.RpcRequest.Builder rpcRequestBuilder = ProtoHDFS.RpcRequest.newBuilder();
+            rpcRequestBuilder.setCallId(callId);
+            rpcRequestBuilder.setMethod(method);
+            rpcRequestBuilder.setPayload(ByteString.copyFrom(payload));
+            rpcRequestBuilder.setClientId(this.clientId);
+            ProtoHDFS.RpcRequest rpcRequest = rpcRequestBuilder.build();
+            rpcRequestBuilder.clear();
+
+            connection.pendingCalls.put(callId, future);
+            connection.enqueue(rpcRequest.toByteArray());
+            this.eventLoop.requestWrite(connection);
+            // The connection may have failed while the call was being queued, in which case nobody else fails it
+            if(connection.isClosed() && connection.pendingCalls.remove(callId) != null){
+                future.completeExceptionally(new IOException("Connection to " + address + " closed"));
+            }
+        }catch(IOException e){
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    // Picks one of the connections to the address in turn, opening it if it isn't open yet
+    protected ClientConnection connection(InetSocketAddress address) throws IOException {
+        ClientConnection[] pool = this.connections.computeIfAbsent(address,
+                a -> new ClientConnection[this.connectionsPerAddress]);
+        int index = Math.floorMod(this.nextConnection.getAndIncrement(), pool.length);
+        synchronized (pool){
+            ClientConnection connection = pool[index];
+            if(connection == null || connection.isClosed()){
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                boolean connected = channel.connect(address);
+                connection = new ClientConnection(channel);
+                pool[index] = connection;
+                this.eventLoop.register(connection, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+            }
+            return connection;
+        }
+    }
+
+    public void close(){
+        this.eventLoop.stop();
+    }
+
+    // A client connection also keeps the calls waiting for a response on it
+    protected static class ClientConnection extends RpcConnection {
+        protected final ConcurrentHashMap<Long, CompletableFuture<byte[]>> pendingCalls;
+
+        protected ClientConnection(SocketChannel channel){
+            super(channel);
+            this.pendingCalls = new ConcurrentHashMap<>();
+        }
+    }
+
+    protected class EventLoop extends RpcEventLoop {
+        protected EventLoop() throws IOException {
+            super("RpcClient");
+        }
+
+        @Override
+        protected void onFrame(RpcConnection connection, byte[] frame){
+            ProtoHDFS.RpcResponse rpcResponse;
+            try{
+                rpcResponse = ProtoHDFS.RpcResponse.parseFrom(frame);
+            }catch(InvalidProtocolBufferException e){
+                closeConnection(connection, e);
+                return;
+            }
+
+            CompletableFuture<byte[]> future = ((ClientConnection) connection).pendingCalls
+                    .remove(rpcResponse.getCallId());
+            if(future == null){
+                return;
+            }
+            callbackExecutor.execute(() -> {
+                if(rpcResponse.getStatus() == ProtoHDFS.RpcResponse.Status.SUCCESS){
+                    future.complete(rpcResponse.getPayload().toByteArray());
+                }else if(rpcResponse.getStatus() == ProtoHDFS.RpcResponse.Status.RETRY_LATER){
+                    future.completeExceptionally(new RetryLaterException(rpcResponse.getErrorMessage()));
+                }else{
+                    future.completeExceptionally(new RemoteException(rpcResponse.getErrorMessage()));
+                }
+            });
+        }
+
+        @Override
+        protected void onClosed(RpcConnection connection, IOException cause){
+            Map<Long, CompletableFuture<byte[]>> pendingCalls = ((ClientConnection) connection).pendingCalls;
+            for(Long callId : pendingCalls.keySet()){
+                CompletableFuture<byte[]> future = pendingCalls.remove(callId);
+                if(future != null){
+                    callbackExecutor.execute(() -> future.completeExceptionally(cause));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ds.hdfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// One non-blocking connection of the RPC transport carrying length prefixed frames both ways. Only the event loop
+// that owns the connection reads and writes it, any other thread just queues frames to send
+public class RpcConnection {
+    public static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+    protected static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    protected final SocketChannel channel;
+    protected final ConcurrentLinkedQueue<ByteBuffer> outgoing;
+    // Set while the event loop has been asked to write this connection, so queueing frames wakes it up only once
+    protected final AtomicBoolean writeScheduled;
+    protected final ByteBuffer readBuffer;
+    // The frame being read and how much of it has arrived
+    protected byte[] frame;
+    protected int frameFilled;
+    protected volatile SelectionKey key;
+    protected volatile boolean closed;
+
+    public RpcConnection(SocketChannel channel){
+        this.channel = channel;
+        this.outgoing = new ConcurrentLinkedQueue<>();
+        this.writeScheduled = new AtomicBoolean();
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    }
+
+    public SocketChannel getChannel(){
+        return this.channel;
+    }
+
+    // Host of the other end of the connection, or an empty string if it is no longer known
+    public String getRemoteHost(){
+        try{
+            InetSocketAddress remoteAddress = (InetSocketAddress) this.channel.getRemoteAddress();
+            return remoteAddress == null ? "" : remoteAddress.getHostString();
+        }catch(IOException e){
+            return "";
+        }
+    }
+
+    public boolean isClosed(){
+        return this.closed;
+    }
+
+    // Queues a frame to be sent. The event loop has to be told to write the connection afterwards
+    public void enqueue(byte[] frameBytes){
+        ByteBuffer buffer = ByteBuffer.allocate(4 + frameBytes.length);
+        buffer.putInt(frameBytes.length);
+        buffer.put(frameBytes);
+        buffer.flip();
+        this.outgoing.add(buffer);
+    }
+
+    public boolean hasPendingWrites(){
+        return !this.outgoing.isEmpty();
+    }
+
+    // Reads what the socket has and returns the frames it completed. Big frames are read straight into their array
+    // instead of going through the read buffer
+    public List<byte[]> readFrames() throws IOException {
+        ArrayList<byte[]> frames = new ArrayList<>();
+        int frameRemaining = this.frame == null ? 0 : this.frame.length - this.frameFilled;
+        if(this.readBuffer.position() == 0 && frameRemaining > READ_BUFFER_SIZE){
+            int read = this.channel.read(ByteBuffer.wrap(this.frame, this.frameFilled, frameRemaining));
+            if(read < 0){
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            this.frameFilled += read;
+            if(this.frameFilled == this.frame.length){
+                frames.add(this.frame);
+                this.frame = null;
+            }
+            return frames;
+        }
+
+        if(this.channel.read(this.readBuffer) < 0){
+            throw new EOFException("Connection closed");
+        }
+        this.readBuffer.flip();
+        while(true){
+            if(this.frame == null){
+                if(this.readBuffer.remaining() < 4){
+                    break;
+                }
+                int length = this.readBuffer.getInt();
+                if(length < 0 || length > MAX_FRAME_SIZE){
+                    throw new IOException("Invalid frame length " + length);
+                }
+                this.frame = new byte[length];
+                this.frameFilled = 0;
+            }
+
+            int copied = Math.min(this.readBuffer.remaining(), this.frame.length - this.frameFilled);
+            this.readBuffer.get(this.frame, this.frameFilled, copied);
+            this.frameFilled += copied;
+            if(this.frameFilled < this.frame.length){
+                break;
+            }
+            frames.add(this.frame);
+            this.frame = null;
+        }
+        this.readBuffer.compact();
+        return frames;
+    }
+
+    // Writes queued frames until the socket can't take more. Returns true once nothing is left to write
+    public boolean flush() throws IOException {
+        ByteBuffer buffer;
+        while((buffer = this.outgoing.peek()) != null){
+            this.channel.write(buffer);
+            if(buffer.hasRemaining()){
+                return false;
+            }
+            this.outgoing.poll();
+        }
+        return true;
+    }
+
+    public void close(){
+        this.closed = true;
+        if(this.key != null){
+            this.key.cancel();
+        }
+        try{
+            this.channel.close();
+        }catch(IOException ignored){
+            // Nothing left to do with a connection that fails to close
+        }
+    }
+}
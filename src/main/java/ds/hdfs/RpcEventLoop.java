@@ -0,0 +1,158 @@
+package ds.hdfs;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Selector thread of the RPC transport. It owns a set of connections and does all of their socket I/O, handing every
+// complete frame to onFrame(). Other threads talk to it only through tasks, so the selector is never touched from
+// two threads at once
+public abstract class RpcEventLoop implements Runnable {
+    protected final String name;
+    protected final Selector selector;
+    protected final ConcurrentLinkedQueue<Runnable> tasks;
+    protected volatile boolean running;
+    protected Thread thread;
+
+    public RpcEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    public void start(){
+        this.running = true;
+        this.thread = new Thread(this, this.name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // Runs the task on the event loop thread
+    public void execute(Runnable task){
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    // Adds a connection to this event loop, waiting for ops on it
+    public void register(RpcConnection connection, int ops){
+        execute(() -> {
+            try{
+                connection.key = connection.channel.register(this.selector, ops, connection);
+            }catch(ClosedChannelException e){
+                closeConnection(connection, e);
+            }
+        });
+    }
+
+    // Makes the event loop write the queued frames of the connection
+    public void requestWrite(RpcConnection connection){
+        if(connection.writeScheduled.compareAndSet(false, true)){
+            execute(() -> {
+                SelectionKey key = connection.key;
+                // A connection that is still connecting starts writing once it is connected
+                if(key != null && key.isValid() && connection.channel.isConnected()){
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void run(){
+        while(this.running){
+            try{
+                this.selector.select();
+            }catch(IOException e){
+                System.out.println(this.name + " failed to select: " + e.getMessage());
+                continue;
+            }
+
+            Runnable task;
+            while((task = this.tasks.poll()) != null){
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while(keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+                if(!key.isValid()){
+                    continue;
+                }
+                if(key.isAcceptable()){
+                    onAccept(key);
+                    continue;
+                }
+
+                RpcConnection connection = (RpcConnection) key.attachment();
+                try{
+                    if(key.isConnectable()){
+                        connection.channel.finishConnect();
+                        int ops = SelectionKey.OP_READ;
+                        if(connection.hasPendingWrites()){
+                            ops |= SelectionKey.OP_WRITE;
+                        }
+                        key.interestOps(ops);
+                    }
+                    if(key.isValid() && key.isReadable()){
+                        for(byte[] frame : connection.readFrames()){
+                            onFrame(connection, frame);
+                        }
+                    }
+                    if(key.isValid() && key.isWritable()){
+                        write(connection, key);
+                    }
+                }catch(IOException | CancelledKeyException e){
+                    closeConnection(connection, e instanceof IOException ? (IOException) e : new IOException(e));
+                }
+            }
+        }
+
+        for(SelectionKey key : this.selector.keys()){
+            if(key.attachment() instanceof RpcConnection){
+                closeConnection((RpcConnection) key.attachment(), new IOException(this.name + " stopped"));
+            }
+        }
+        try{
+            this.selector.close();
+        }catch(IOException ignored){
+            // Already stopping
+        }
+    }
+
+    // Writes what the socket takes and stops waiting for writability once everything queued has been sent
+    protected void write(RpcConnection connection, SelectionKey key) throws IOException {
+        if(!connection.flush()){
+            return;
+        }
+        connection.writeScheduled.set(false);
+        // Frames queued after the flush but before the flag was cleared would otherwise never be written
+        if(connection.hasPendingWrites() && connection.writeScheduled.compareAndSet(false, true)){
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    protected void closeConnection(RpcConnection connection, IOException cause){
+        if(!connection.isClosed()){
+            connection.close();
+            onClosed(connection, cause);
+        }
+    }
+
+    // Handles one complete frame that arrived on the connection. Runs on the event loop thread so it must not block
+    protected abstract void onFrame(RpcConnection connection, byte[] frame);
+
+    // Only event loops that listen on a server socket get accept events
+    protected void onAccept(SelectionKey key){
+    }
+
+    protected void onClosed(RpcConnection connection, IOException cause){
+    }
+
+    public void stop(){
+        this.running = false;
+        this.selector.wakeup();
+    }
+}
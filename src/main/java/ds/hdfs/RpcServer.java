@@ -0,0 +1,374 @@
+package ds.hdfs;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import proto.ProtoHDFS;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server side of the RPC transport. Methods are registered by name with a handler taking and returning the same
+// serialized protobuf messages as the RMI interfaces, so the name node and data nodes can serve both. A listener
+// accepts connections and spreads them over a pool of reader event loops, the readers put every call they read on a
+// bounded call queue, and a pool of handler threads takes calls off the queue so a slow call never holds up the rest
+public class RpcServer {
+    // One RPC method, byte[] in and byte[] out like the methods of the RMI interfaces
+    public interface Handler {
+        byte[] handle(byte[] request) throws Exception;
+    }
+
+    // A call read from a connection, waiting in the call queue for a handler
+    public static class Call {
+        protected final RpcConnection connection;
+        // The reader owning the connection, which has to write the response
+        protected final RpcEventLoop reader;
+        protected final ProtoHDFS.RpcRequest rpcRequest;
+        protected final long receivedNanos;
+        protected final String clientId;
+
+        protected Call(RpcConnection connection, RpcEventLoop reader, ProtoHDFS.RpcRequest rpcRequest){
+            this.connection = connection;
+            this.reader = reader;
+            this.rpcRequest = rpcRequest;
+            this.receivedNanos = System.nanoTime();
+            this.clientId = rpcRequest.getClientId().isEmpty() ? connection.getRemoteHost() : rpcRequest.getClientId();
+        }
+
+        public String getMethod(){
+            return this.rpcRequest.getMethod();
+        }
+
+        public String getClientId(){
+            return this.clientId;
+        }
+    }
+
+    protected final String name;
+    protected final InetSocketAddress bindAddress;
+    protected final ConcurrentHashMap<String, Handler> handlers;
+    protected final CallQueue callQueue;
+    protected final Reader[] readers;
+    protected final Thread[] handlerThreads;
+    // Runs every call on a virtual thread of its own, so there can be tens of thousands of them for calls that block
+    // on I/O. A single dispatcher thread then takes the calls off the call queue, and callPermits caps how many run
+    protected final boolean virtualHandlers;
+    protected final Semaphore callPermits;
+    protected final AtomicInteger nextReader;
+    protected ServerSocketChannel serverChannel;
+    protected Listener listener;
+    protected volatile boolean running;
+
+    protected final LongAdder callsReceived;
+    protected final LongAdder callsFailed;
+    // Calls answered with RETRY_LATER because the call queue had no room for them
+    protected final LongAdder callsRejected;
+    // Deepest the call queue has been since the server started
+    protected final LongAccumulator maxCallQueueLength;
+    // Time calls spend in the call queue and time the handlers take to run them
+    protected final LatencyHistogram queueLatencies;
+    protected final LatencyHistogram processingLatencies;
+
+    public RpcServer(String name, InetSocketAddress bindAddress, int handlerThreads) throws IOException {
+        this(name, bindAddress, 1, handlerThreads, 100 * handlerThreads);
+    }
+
+    public RpcServer(String name, InetSocketAddress bindAddress, int readerThreads, int handlerThreads,
+                     int queueCapacity) throws IOException {
+        this(name, bindAddress, readerThreads, handlerThreads, new FifoCallQueue(queueCapacity));
+    }
+
+    public RpcServer(String name, InetSocketAddress bindAddress, int readerThreads, int handlerThreads,
+                     CallQueue callQueue) throws IOException {
+        this(name, bindAddress, readerThreads, handlerThreads, callQueue, false);
+    }
+
+    // With virtualHandlers every call runs on a virtual thread of its own (see VirtualThreads), and up to
+    // handlerThreads of them at once. That makes a handler per call in flight affordable: calls then never wait for
+    // a handler while others block on disk or network I/O
+    public RpcServer(String name, InetSocketAddress bindAddress, int readerThreads, int handlerThreads,
+                     CallQueue callQueue, boolean virtualHandlers) throws IOException {
+        this.name = name;
+        this.virtualHandlers = virtualHandlers;
+        this.bindAddress = bindAddress;
+        this.handlers = new ConcurrentHashMap<>();
+        this.callQueue = callQueue;
+        this.readers = new Reader[readerThreads];
+        for(int i = 0; i < readerThreads; i++){
+            this.readers[i] = new Reader(i);
+        }
+        this.handlerThreads = new Thread[virtualHandlers ? 1 : handlerThreads];
+        this.callPermits = new Semaphore(handlerThreads);
+        this.nextReader = new AtomicInteger();
+        this.callsReceived = new LongAdder();
+        this.callsFailed = new LongAdder();
+        this.callsRejected = new LongAdder();
+        this.maxCallQueueLength = new LongAccumulator(Math::max, 0);
+        this.queueLatencies = new LatencyHistogram();
+        this.processingLatencies = new LatencyHistogram();
+    }
+
+    public void register(String method, Handler handler){
+        this.handlers.put(method, handler);
+    }
+
+    public void start() throws IOException {
+        this.running = true;
+        for(int i = 0; i < this.handlerThreads.length; i++){
+            if(this.virtualHandlers){
+                this.handlerThreads[i] = new Thread(this::dispatchCalls, this.name + "-Dispatcher");
+            }else{
+                this.handlerThreads[i] = new Thread(this::handleCalls,
+                        String.format("%1$s-Handler-%2$d", this.name, i));
+            }
+            this.handlerThreads[i].setDaemon(true);
+            this.handlerThreads[i].start();
+        }
+        for(Reader reader : this.readers){
+            reader.start();
+        }
+
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(this.bindAddress);
+        this.serverChannel.configureBlocking(false);
+        this.listener = new Listener();
+        this.listener.start();
+        this.listener.execute(() -> {
+            try{
+                this.serverChannel.register(this.listener.selector, SelectionKey.OP_ACCEPT);
+            }catch(IOException e){
+                System.out.println(this.name + " failed to listen: " + e.getMessage());
+            }
+        });
+        System.out.println(String.format("%1$s RPC server listening on %2$s with %3$d readers and %4$d %5$s handlers",
+                this.name, getAddress(), this.readers.length, this.callPermits.availablePermits(),
+                !this.virtualHandlers ? "pooled" : VirtualThreads.isSupported() ? "virtual" : "small stack"));
+    }
+
+    // The address the server is bound to, with the actual port if it was started on port 0
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) this.serverChannel.getLocalAddress();
+    }
+
+    public void stop(){
+        this.running = false;
+        if(this.listener != null){
+            this.listener.stop();
+        }
+        for(Reader reader : this.readers){
+            reader.stop();
+        }
+        for(Thread handlerThread : this.handlerThreads){
+            if(handlerThread != null){
+                handlerThread.interrupt();
+            }
+        }
+        this.callQueue.close();
+        try{
+            if(this.serverChannel != null){
+                this.serverChannel.close();
+            }
+        }catch(IOException ignored){
+            // Already stopping
+        }
+    }
+
+    public int getCallQueueLength(){
+        return this.callQueue.size();
+    }
+
+    public long getMaxCallQueueLength(){
+        return this.maxCallQueueLength.get();
+    }
+
+    public long getCallsReceived(){
+        return this.callsReceived.sum();
+    }
+
+    public long getCallsFailed(){
+        return this.callsFailed.sum();
+    }
+
+    public long getCallsRejected(){
+        return this.callsRejected.sum();
+    }
+
+    public CallQueue getCallQueue(){
+        return this.callQueue;
+    }
+
+    public LatencyHistogram getQueueLatencies(){
+        return this.queueLatencies;
+    }
+
+    public LatencyHistogram getProcessingLatencies(){
+        return this.processingLatencies;
+    }
+
+    // Publishes the call counts, queue depths and queue and processing latencies of this server as metrics named
+    // prefix.<metric>
+    public void registerMetrics(MetricsRegistry metrics, String prefix){
+        metrics.gauge(prefix + ".callQueueLength", this::getCallQueueLength);
+        metrics.gauge(prefix + ".maxCallQueueLength", this::getMaxCallQueueLength);
+        metrics.gauge(prefix + ".callsReceived", this::getCallsReceived);
+        metrics.gauge(prefix + ".callsFailed", this::getCallsFailed);
+        metrics.gauge(prefix + ".callsRejected", this::getCallsRejected);
+        metrics.histogram(prefix + ".queueTime", this.queueLatencies);
+        metrics.histogram(prefix + ".processingTime", this.processingLatencies);
+    }
+
+    @Override
+    public String toString(){
+        return String.format("calls=%1$d failed=%2$d rejected=%3$d queued=%4$d/%5$d maxQueued=%6$d "
+                        + "queueTime=[%7$s] processingTime=[%8$s]", getCallsReceived(), getCallsFailed(),
+                getCallsRejected(), getCallQueueLength(), this.callQueue.getCapacity(), getMaxCallQueueLength(),
+                this.queueLatencies, this.processingLatencies);
+    }
+
+    // Body of every handler thread
+    protected void handleCalls(){
+        while(this.running){
+            try{
+                process(this.callQueue.take());
+            }catch(InterruptedException e){
+                return;
+            }
+        }
+    }
+
+    // Body of the dispatcher thread with virtual handlers. A permit is taken before the call so calls that can't run
+    // yet stay in the call queue, where its ordering and admission control still apply to them
+    protected void dispatchCalls(){
+        while(this.running){
+            try{
+                this.callPermits.acquire();
+                Call call;
+                try{
+                    call = this.callQueue.take();
+                }catch(InterruptedException e){
+                    this.callPermits.release();
+                    throw e;
+                }
+                VirtualThreads.newThread(this.name + "-Call-" + call.rpcRequest.getCallId(), () -> {
+                    try{
+                        process(call);
+                    }finally{
+                        this.callPermits.release();
+                    }
+                }).start();
+            }catch(InterruptedException e){
+                return;
+            }
+        }
+    }
+
+    // Answers a call the call queue had no room for right away, without running it
+    protected void reject(Call call){
+        this.callsRejected.increment();
+
+        ProtoHDFS.RpcResponse.Builder rpcResponseBuilder = ProtoHDFS.RpcResponse.newBuilder();
+        rpcResponseBuilder.setCallId(call.rpcRequest.getCallId());
+        rpcResponseBuilder.setStatus(ProtoHDFS.RpcResponse.Status.RETRY_LATER);
+        rpcResponseBuilder.setErrorMessage(String.format("%1$s is busy, %2$d calls queued", this.name,
+                this.callQueue.size()));
+        ProtoHDFS.RpcResponse rpcResponse = rpcResponseBuilder.build();
+        rpcResponseBuilder.clear();
+
+        call.connection.enqueue(rpcResponse.toByteArray());
+        call.reader.requestWrite(call.connection);
+    }
+
+    // Runs a call and queues its response on the connection it came from
+    protected void process(Call call){
+        long startNanos = System.nanoTime();
+        this.queueLatencies.record(startNanos - call.receivedNanos);
+
+        ProtoHDFS.RpcRequest rpcRequest = call.rpcRequest;
+        ProtoHDFS.RpcResponse.Builder rpcResponseBuilder = ProtoHDFS.RpcResponse.newBuilder();
+        rpcResponseBuilder.setCallId(rpcRequest.getCallId());
+        Handler handler = this.handlers.get(rpcRequest.getMethod());
+        if(handler == null){
+            rpcResponseBuilder.setStatus(ProtoHDFS.RpcResponse.Status.ERROR);
+            rpcResponseBuilder.setErrorMessage("Unknown method " + rpcRequest.getMethod());
+        }else{
+            try{
+                byte[] payload = handler.handle(rpcRequest.getPayload().toByteArray());
+                rpcResponseBuilder.setStatus(ProtoHDFS.RpcResponse.Status.SUCCESS);
+                // Some methods (like heartBeat) have nothing to return
+                if(payload != null){
+                    rpcResponseBuilder.setPayload(ByteString.copyFrom(payload));
+                }
+            }catch(Exception e){
+                rpcResponseBuilder.setStatus(ProtoHDFS.RpcResponse.Status.ERROR);
+                rpcResponseBuilder.setErrorMessage(rpcRequest.getMethod() + " failed: " + e);
+            }
+        }
+        ProtoHDFS.RpcResponse rpcResponse = rpcResponseBuilder.build();
+        rpcResponseBuilder.clear();
+        if(rpcResponse.getStatus() != ProtoHDFS.RpcResponse.Status.SUCCESS){
+            this.callsFailed.increment();
+        }
+
+        call.connection.enqueue(rpcResponse.toByteArray());
+        call.reader.requestWrite(call.connection);
+        this.processingLatencies.record(System.nanoTime() - startNanos);
+    }
+
+    // Accepts connections and hands each to one of the readers in turn
+    protected class Listener extends RpcEventLoop {
+        protected Listener() throws IOException {
+            super(RpcServer.this.name + "-Listener");
+        }
+
+        @Override
+        protected void onAccept(SelectionKey key){
+            try{
+                SocketChannel channel;
+                while((channel = serverChannel.accept()) != null){
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    Reader reader = readers[Math.floorMod(nextReader.getAndIncrement(), readers.length)];
+                    reader.register(new RpcConnection(channel), SelectionKey.OP_READ);
+                }
+            }catch(IOException e){
+                System.out.println(RpcServer.this.name + " failed to accept a connection: " + e.getMessage());
+            }
+        }
+
+        // The listener has no connections of its own
+        @Override
+        protected void onFrame(RpcConnection connection, byte[] frame){
+        }
+    }
+
+    // Reads the calls of its connections and writes their responses
+    protected class Reader extends RpcEventLoop {
+        protected Reader(int index) throws IOException {
+            super(String.format("%1$s-Reader-%2$d", RpcServer.this.name, index));
+        }
+
+        @Override
+        protected void onFrame(RpcConnection connection, byte[] frame){
+            try{
+                ProtoHDFS.RpcRequest rpcRequest = ProtoHDFS.RpcRequest.parseFrom(frame);
+                callsReceived.increment();
+                Call call = new Call(connection, this, rpcRequest);
+                if(callQueue.offer(call)){
+                    maxCallQueueLength.accumulate(callQueue.size());
+                }else{
+                    reject(call);
+                }
+            }catch(InvalidProtocolBufferException e){
+                closeConnection(connection, e);
+            }
+        }
+    }
+}
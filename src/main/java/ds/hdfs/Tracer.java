@@ -0,0 +1,207 @@
+package ds.hdfs;
+
+import proto.ProtoHDFS;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Records spans of sampled requests (client open, name node allocation, every data node write and disk write, ...)
+// to a trace file in the Chrome trace event format, which chrome://tracing and Perfetto open directly. Whether a
+// request is sampled only depends on its trace id, so the client, the name node and all data nodes pick the same
+// requests without telling each other. The client puts the id of its first request of an operation in the traceId of
+// all the others, so all spans of one put or get share it.
+// Tracing is off until configure() is called, or the hdfs.trace.file (and optionally hdfs.trace.sampling, the
+// fraction of requests traced, 0.01 by default) system properties are set
+public class Tracer {
+    // Span of a request that is not sampled, it records nothing
+    public static final Span NOOP_SPAN = new Span(null, null, null);
+
+    protected static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    protected static volatile Tracer tracer;
+
+    protected final BufferedWriter writer;
+    protected final double sampling;
+    protected final ConcurrentLinkedQueue<String> events;
+    protected final Thread flusher;
+    protected final String processId;
+    // Wall clock time in microseconds at a known nanoTime, so spans from different processes line up
+    protected final long baseMicros;
+    protected final long baseNanos;
+    protected volatile boolean running;
+
+    static {
+        String traceFile = System.getProperty("hdfs.trace.file");
+        if(traceFile != null){
+            try{
+                configure(new File(traceFile), Double.parseDouble(System.getProperty("hdfs.trace.sampling", "0.01")));
+            }catch(IOException e){
+                System.out.println("Failed to open trace file " + traceFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    protected Tracer(File traceFile, double sampling) throws IOException {
+        this.writer = new BufferedWriter(new FileWriter(traceFile));
+        this.writer.write("[\n");
+        this.sampling = sampling;
+        this.events = new ConcurrentLinkedQueue<>();
+        String runtimeName = ManagementFactory.getRuntimeMXBean().getName();
+        this.processId = runtimeName.contains("@") ? runtimeName.substring(0, runtimeName.indexOf('@')) : "0";
+        this.baseMicros = System.currentTimeMillis() * 1000;
+        this.baseNanos = System.nanoTime();
+        this.running = true;
+        this.flusher = new Thread(this::flushPeriodically, "Tracer");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    // Starts writing the spans of the given fraction of requests to the trace file, replacing any earlier trace
+    public static synchronized void configure(File traceFile, double sampling) throws IOException {
+        close();
+        tracer = new Tracer(traceFile, sampling);
+    }
+
+    // Writes out the remaining spans and ends the trace file
+    public static synchronized void close(){
+        Tracer oldTracer = tracer;
+        tracer = null;
+        if(oldTracer != null){
+            oldTracer.stop();
+        }
+    }
+
+    public static boolean isSampled(String traceId){
+        Tracer currentTracer = tracer;
+        return currentTracer != null && traceId != null
+                && Math.floorMod(traceId.hashCode(), 1_000_000) < currentTracer.sampling * 1_000_000;
+    }
+
+    public static Span start(String traceId, String name){
+        return isSampled(traceId) ? new Span(tracer, traceId, name) : NOOP_SPAN;
+    }
+
+    // Starts a span of the operation the request is part of
+    public static Span start(ProtoHDFS.Request request, String name){
+        return start(request.hasTraceId() ? request.getTraceId() : request.getRequestId(), name);
+    }
+
+    protected void record(Span span, long endNanos){
+        StringBuilder event = new StringBuilder();
+        event.append("{\"name\":\"").append(escape(span.name)).append('"');
+        event.append(",\"cat\":\"hdfs\",\"ph\":\"X\"");
+        event.append(",\"ts\":").append(this.baseMicros + (span.startNanos - this.baseNanos) / 1000);
+        event.append(",\"dur\":").append((endNanos - span.startNanos) / 1000);
+        event.append(",\"pid\":").append(this.processId);
+        event.append(",\"tid\":").append(span.threadId);
+        event.append(",\"args\":{\"traceId\":\"").append(escape(span.traceId)).append('"');
+        for(Map.Entry<String, String> arg : span.args.entrySet()){
+            event.append(",\"").append(escape(arg.getKey())).append("\":\"").append(escape(arg.getValue()))
+                    .append('"');
+        }
+        event.append("}}");
+        this.events.add(event.toString());
+    }
+
+    protected void flushPeriodically(){
+        while(this.running){
+            try{
+                Thread.sleep(FLUSH_INTERVAL_MILLIS);
+            }catch(InterruptedException e){
+                break;
+            }
+            flush();
+        }
+        flush();
+    }
+
+    // Every event is followed by a comma, which the trace viewers accept, so the file can be read at any time
+    protected synchronized void flush(){
+        ArrayList<String> batch = new ArrayList<>();
+        String event;
+        while((event = this.events.poll()) != null){
+            batch.add(event);
+        }
+        if(batch.isEmpty()){
+            return;
+        }
+        try{
+            for(String e : batch){
+                this.writer.write(e);
+                this.writer.write(",\n");
+            }
+            this.writer.flush();
+        }catch(IOException e){
+            System.out.println("Failed to write " + batch.size() + " trace events: " + e.getMessage());
+        }
+    }
+
+    protected void stop(){
+        this.running = false;
+        this.flusher.interrupt();
+        try{
+            this.flusher.join();
+            synchronized (this){
+                this.writer.write("{}]\n");
+                this.writer.close();
+            }
+        }catch(InterruptedException | IOException e){
+            System.out.println("Failed to finish the trace file: " + e.getMessage());
+        }
+    }
+
+    protected static String escape(String value){
+        StringBuilder escaped = new StringBuilder();
+        for(char c : value.toCharArray()){
+            if(c == '"' || c == '\\'){
+                escaped.append('\\').append(c);
+            }else if(c < 0x20){
+                escaped.append(String.format("\\u%04x", (int) c));
+            }else{
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    // One timed step of a traced request. Closing it records it
+    public static class Span implements AutoCloseable {
+        protected final Tracer tracer;
+        protected final String traceId;
+        protected final String name;
+        protected final long startNanos;
+        protected final long threadId;
+        protected final LinkedHashMap<String, String> args;
+
+        protected Span(Tracer tracer, String traceId, String name){
+            this.tracer = tracer;
+            this.traceId = traceId;
+            this.name = name;
+            this.startNanos = System.nanoTime();
+            this.threadId = Thread.currentThread().getId();
+            this.args = tracer == null ? null : new LinkedHashMap<>();
+        }
+
+        // Adds a detail shown with the span, like the data node or block it is about
+        public Span arg(String key, Object value){
+            if(this.tracer != null){
+                this.args.put(key, String.valueOf(value));
+            }
+            return this;
+        }
+
+        @Override
+        public void close(){
+            if(this.tracer != null){
+                this.tracer.record(this, System.nanoTime());
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package ds.hdfs;
+
+import java.lang.reflect.Method;
+
+// Creates virtual threads on JVMs that have them (Java 21 and later). The project is still built for Java 8 so they
+// are looked up by reflection, and on older JVMs platform threads with a small stack are created instead
+public class VirtualThreads {
+    // Stack size of the platform threads used when virtual threads are not available
+    protected static final long FALLBACK_STACK_SIZE = 256 * 1024;
+
+    protected static final Method OF_VIRTUAL;
+    protected static final Method NAME;
+    protected static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try{
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builderClass.getMethod("name", String.class);
+            unstarted = builderClass.getMethod("unstarted", Runnable.class);
+            // Java 19 and 20 have the methods but throw unless preview features are enabled
+            ofVirtual.invoke(null);
+        }catch(ReflectiveOperationException | LinkageError e){
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    public static boolean isSupported(){
+        return OF_VIRTUAL != null;
+    }
+
+    // A new thread that is not started yet
+    public static Thread newThread(String threadName, Runnable task){
+        if(isSupported()){
+            try{
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), threadName);
+                return (Thread) UNSTARTED.invoke(builder, task);
+            }catch(ReflectiveOperationException e){
+                System.out.println("Failed to create a virtual thread, using a platform thread: " + e);
+            }
+        }
+        Thread thread = new Thread(null, task, threadName, FALLBACK_STACK_SIZE);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,235 @@
+package ds.hdfs;
+
+import proto.ProtoHDFS;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Manages the data directories (volumes) of a data node, normally one per disk. Every volume has its own block
+// storage and its own pool of I/O threads, so reads and writes to different disks never queue behind each other
+public class VolumeManager {
+    // How the volume for a new block is picked
+    public enum Policy {
+        ROUND_ROBIN,
+        AVAILABLE_SPACE
+    }
+
+    protected final List<BlockStorage> volumes;
+    protected final Map<BlockStorage, ExecutorService> ioExecutors;
+    protected final Policy policy;
+    // The volume every stored block lives on
+    protected final ConcurrentHashMap<String, BlockStorage> blockVolumes;
+    // The volume every quarantined block was moved aside on
+    protected final ConcurrentHashMap<String, BlockStorage> quarantineVolumes;
+    protected final AtomicInteger nextVolume;
+    // Runs disk operations on the calling thread instead of the I/O threads of the volume, see setCallerRuns
+    protected volatile boolean callerRuns;
+
+    public VolumeManager(List<File> roots, Policy policy, int threadsPerVolume) throws IOException {
+        if(roots.isEmpty()){
+            throw new IllegalArgumentException("A data node needs at least one volume");
+        }
+
+        this.volumes = new ArrayList<>();
+        this.ioExecutors = new HashMap<>();
+        for(File root : roots){
+            BlockStorage volume = new BlockStorage(root);
+            this.volumes.add(volume);
+            this.ioExecutors.put(volume, Executors.newFixedThreadPool(threadsPerVolume, r -> {
+                Thread thread = new Thread(r, "VolumeIO-" + root.getName());
+                thread.setDaemon(true);
+                return thread;
+            }));
+        }
+        this.policy = policy;
+        this.blockVolumes = new ConcurrentHashMap<>();
+        this.quarantineVolumes = new ConcurrentHashMap<>();
+        this.nextVolume = new AtomicInteger();
+    }
+
+    public List<BlockStorage> getVolumes(){
+        return this.volumes;
+    }
+
+    // Loads the blocks of all volumes, each volume on its own I/O threads so the disks are read at the same time
+    public Map<String, ProtoHDFS.BlockMeta> loadBlockMetas() throws IOException {
+        HashMap<BlockStorage, Future<Map<String, ProtoHDFS.BlockMeta>>> loads = new HashMap<>();
+        for(BlockStorage volume : this.volumes){
+            loads.put(volume, this.ioExecutors.get(volume).submit(volume::loadBlockMetas));
+        }
+
+        HashMap<String, ProtoHDFS.BlockMeta> blockMetas = new HashMap<>();
+        for(BlockStorage volume : this.volumes){
+            for(Map.Entry<String, ProtoHDFS.BlockMeta> entry : await(loads.get(volume)).entrySet()){
+                if(this.blockVolumes.putIfAbsent(entry.getKey(), volume) != null){
+                    System.out.println("Ignoring duplicate of block " + entry.getKey() + " in "
+                            + volume.getRoot().getAbsolutePath());
+                    continue;
+                }
+                blockMetas.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return blockMetas;
+    }
+
+    // Gets the volume a stored block is on, or null if the block isn't stored here
+    public BlockStorage getVolume(String blockName){
+        return this.blockVolumes.get(blockName);
+    }
+
+    // Picks the volume a block is written to. A block that is already stored stays on its volume, a new one goes to
+    // the next volume in turn or to the volume with the most free space, depending on the policy
+    public BlockStorage chooseVolume(String blockName, long blockSize) throws IOException {
+        BlockStorage existing = this.blockVolumes.get(blockName);
+        if(existing != null){
+            return existing;
+        }
+
+        BlockStorage chosen = null;
+        if(this.policy == Policy.AVAILABLE_SPACE){
+            long mostSpace = -1;
+            for(BlockStorage volume : this.volumes){
+                long usableSpace = volume.getRoot().getUsableSpace();
+                if(usableSpace > mostSpace){
+                    mostSpace = usableSpace;
+                    chosen = volume;
+                }
+            }
+            if(mostSpace < blockSize){
+                chosen = null;
+            }
+        }else{
+            for(int i = 0; i < this.volumes.size() && chosen == null; i++){
+                int index = Math.floorMod(this.nextVolume.getAndIncrement(), this.volumes.size());
+                BlockStorage volume = this.volumes.get(index);
+                if(volume.getRoot().getUsableSpace() >= blockSize){
+                    chosen = volume;
+                }
+            }
+        }
+
+        if(chosen == null){
+            throw new IOException(String.format("No volume has %1$d bytes free for %2$s", blockSize, blockName));
+        }
+        BlockStorage raced = this.blockVolumes.putIfAbsent(blockName, chosen);
+        return raced != null ? raced : chosen;
+    }
+
+    // Undoes chooseVolume for a new block whose first write failed, so the block isn't tied to a volume that may be
+    // broken or full and whatever part of it was written doesn't stay behind
+    public void discardFailedWrite(String blockName, BlockStorage volume){
+        if(this.blockVolumes.remove(blockName, volume)){
+            volume.removeBlock(blockName);
+        }
+    }
+
+    // For virtual thread handlers, which can block on disk I/O cheaply. Handing their disk operations to the fixed
+    // I/O pools would cap the transfers in flight at the size of the pools again and add a thread switch to each
+    public void setCallerRuns(boolean callerRuns){
+        this.callerRuns = callerRuns;
+    }
+
+    // Runs a disk operation on the I/O threads of the volume and waits for it, or right on the calling thread if
+    // callerRuns is set
+    public <T> T execute(BlockStorage volume, Callable<T> task) throws IOException {
+        if(this.callerRuns){
+            try{
+                return task.call();
+            }catch(IOException e){
+                throw e;
+            }catch(Exception e){
+                throw new IOException(e);
+            }
+        }
+        return await(this.ioExecutors.get(volume).submit(task));
+    }
+
+    // Queues a disk operation on the I/O threads of the volume without waiting for it
+    public Future<?> submit(BlockStorage volume, Runnable task){
+        return this.ioExecutors.get(volume).submit(task);
+    }
+
+    // Forgets a block and deletes it from its volume
+    public void removeBlock(String blockName){
+        BlockStorage volume = this.blockVolumes.remove(blockName);
+        if(volume != null){
+            volume.removeBlock(blockName);
+        }
+    }
+
+    // Takes a corrupt block out of the storage but keeps its bytes in the quarantine of its volume
+    public void quarantineBlock(ProtoHDFS.BlockMeta blockMeta) throws IOException {
+        String blockName = BlockStorage.blockName(blockMeta);
+        BlockStorage volume = this.blockVolumes.remove(blockName);
+        if(volume != null){
+            this.quarantineVolumes.put(blockName, volume);
+            volume.quarantineBlock(blockMeta);
+        }
+    }
+
+    // Loads the blocks that were quarantined before the data node last stopped
+    public Map<String, ProtoHDFS.BlockMeta> loadQuarantine(){
+        HashMap<String, ProtoHDFS.BlockMeta> blockMetas = new HashMap<>();
+        for(BlockStorage volume : this.volumes){
+            for(ProtoHDFS.BlockMeta blockMeta : volume.loadQuarantine()){
+                String blockName = BlockStorage.blockName(blockMeta);
+                this.quarantineVolumes.put(blockName, volume);
+                blockMetas.put(blockName, blockMeta);
+            }
+        }
+        return blockMetas;
+    }
+
+    public void removeQuarantined(String blockName){
+        BlockStorage volume = this.quarantineVolumes.remove(blockName);
+        if(volume != null){
+            volume.removeQuarantined(blockName);
+        }
+    }
+
+    // Saves the snapshot of every volume with the metas of the blocks on that volume
+    public void saveSnapshot(Collection<ProtoHDFS.BlockMeta> blockMetas) throws IOException {
+        HashMap<BlockStorage, List<ProtoHDFS.BlockMeta>> volumeBlockMetas = new HashMap<>();
+        for(BlockStorage volume : this.volumes){
+            volumeBlockMetas.put(volume, new ArrayList<>());
+        }
+        for(ProtoHDFS.BlockMeta blockMeta : blockMetas){
+            BlockStorage volume = this.blockVolumes.get(BlockStorage.blockName(blockMeta));
+            if(volume != null){
+                volumeBlockMetas.get(volume).add(blockMeta);
+            }
+        }
+        for(BlockStorage volume : this.volumes){
+            volume.saveSnapshot(volumeBlockMetas.get(volume));
+        }
+    }
+
+    public void close() throws IOException {
+        for(BlockStorage volume : this.volumes){
+            this.ioExecutors.get(volume).shutdown();
+            volume.close();
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try{
+            return future.get();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for volume I/O");
+        }catch(ExecutionException e){
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}